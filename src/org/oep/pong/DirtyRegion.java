@@ -0,0 +1,128 @@
+package org.oep.pong;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Keeps track of what moved between two frames so only that part of the
+ * screen needs redrawing. Moving things ("sprites") report where they will be
+ * drawn each frame; everything else is covered by a state key, and any change
+ * to the key forces a full redraw.
+ * 
+ * Only the thread drawing may report sprites and keys, but any thread may
+ * call {@link #invalidateAll()}.
+ */
+public class DirtyRegion {
+	/** Where each sprite was drawn last frame and will be drawn this frame */
+	private final Rect[] mLast, mNext;
+	
+	/** Scratch rectangle, so marking a frame never allocates */
+	private final Rect mUnion = new Rect();
+	
+	private long mLastKey;
+	
+	/** Set from whichever thread wants a full redraw; taken by the draw */
+	private final AtomicBoolean mFull = new AtomicBoolean(true);
+	
+	public DirtyRegion(int sprites) {
+		mLast = new Rect[sprites];
+		mNext = new Rect[sprites];
+		for(int i = 0; i < sprites; i++) {
+			mLast[i] = new Rect();
+			mNext[i] = new Rect();
+		}
+	}
+	
+	/**
+	 * Report where sprite <code>i</code> is being drawn this frame. An empty
+	 * rectangle means it isn't drawn at all.
+	 */
+	public void setSprite(int i, int left, int top, int right, int bottom) {
+		mNext[i].set(left, top, right, bottom);
+	}
+	
+	/**
+	 * Redraw sprite <code>i</code> this frame even if it hasn't moved, e.g.
+	 * because what's in it changed.
+	 */
+	public void invalidateSprite(int i) {
+		mLast[i].setEmpty();
+	}
+	
+	/**
+	 * Report the state of everything that isn't a sprite: lives, overlay
+	 * text and so on. If it differs from last frame, the whole view is dirty.
+	 */
+	public void setKey(long key) {
+		if(key != mLastKey) {
+			mLastKey = key;
+			mFull.set(true);
+		}
+	}
+	
+	/**
+	 * Redraw everything next frame. Safe to call from any thread.
+	 */
+	public void invalidateAll() {
+		mFull.set(true);
+	}
+	
+	/**
+	 * Marks the changed parts of <code>view</code> dirty and rolls this frame
+	 * over to be the last one.
+	 */
+	public void apply(View view) {
+		if(mFull.getAndSet(false)) {
+			view.invalidate();
+		}
+		else {
+			for(int i = 0; i < mNext.length; i++) {
+				if(spriteDirty(i)) view.invalidate(mUnion);
+			}
+		}
+		rollOver();
+	}
+	
+	/**
+	 * Collects the changed parts of the screen into one rectangle, e.g. to
+	 * lock a surface with, and rolls this frame over to be the last one.
+	 * @param out Set to the dirty rectangle
+	 * @return false if the whole screen must be redrawn, in which case
+	 * <code>out</code> is left alone
+	 */
+	public boolean apply(Rect out) {
+		boolean partial = !mFull.getAndSet(false);
+		if(partial) {
+			out.setEmpty();
+			for(int i = 0; i < mNext.length; i++) {
+				if(spriteDirty(i)) out.union(mUnion);
+			}
+		}
+		rollOver();
+		return partial;
+	}
+	
+	/**
+	 * @return true if sprite <code>i</code> moved, leaving the area it covers
+	 * before and after in mUnion
+	 */
+	private boolean spriteDirty(int i) {
+		Rect last = mLast[i], next = mNext[i];
+		if(last.left == next.left && last.top == next.top
+				&& last.right == next.right && last.bottom == next.bottom) {
+			return false;
+		}
+		
+		mUnion.set(last);
+		mUnion.union(next);
+		return !mUnion.isEmpty();
+	}
+	
+	private void rollOver() {
+		for(int i = 0; i < mNext.length; i++) {
+			mLast[i].set(mNext[i]);
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.oep.pong;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
@@ -7,21 +9,35 @@ import android.content.Intent;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.view.SurfaceView;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.Toast;
 
 public class GameActivity extends Activity {
 	private PongView mPongView;
 	private AlertDialog mAboutBox;
 	protected PowerManager.WakeLock mWakeLock;
+	private SyntheticInput mSynthetic;
 	
 	public static final String
 		EXTRA_RED_PLAYER = "red-is-player",
-		EXTRA_BLUE_PLAYER = "blue-is-player";
+		EXTRA_BLUE_PLAYER = "blue-is-player",
+		EXTRA_PEER = "peer",
+		EXTRA_WATCH = "watch",
+		EXTRA_SYNTHETIC_INPUT = "synthetic-input";
+	
+	/** The last match played is saved here in the app's files directory */
+	public static final String REPLAY_FILE = "last.replay";
+	
+	/** Tick and draw timings, if they're being logged */
+	public static final String FRAME_LOG_FILE = "frames.hlog";
 	
     @Override
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        long launched = SystemClock.uptimeMillis();
         
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         
@@ -30,12 +46,43 @@ public class GameActivity extends Activity {
         
         setContentView(R.layout.pong_view);
         mPongView = (PongView) findViewById(R.id.pong);
+        mPongView.setSurface((SurfaceView) findViewById(R.id.pong_surface));
+        mPongView.setLaunchTime(launched);
         
         Intent i = getIntent();
         Bundle b = i.getExtras();
         mPongView.setPlayerControl(b.getBoolean(EXTRA_RED_PLAYER, false),
         	b.getBoolean(EXTRA_BLUE_PLAYER, false)
         );
+        
+        // Scripted input for N seconds, timed and logged, then we're done
+        int synthetic = b.getInt(EXTRA_SYNTHETIC_INPUT, 0);
+        if(synthetic > 0) {
+        	mPongView.setPlayerControl(false, true);
+        	mPongView.setLogFrames(true);
+        	mSynthetic = new SyntheticInput(mPongView, synthetic * 1000L, new Runnable() {
+        		public void run() {
+        			finish();
+        		}
+        	});
+        }
+        mPongView.setFrameLog(new File(getFilesDir(), FRAME_LOG_FILE));
+        
+        // Versus another device; both paddles are players, one of them remote
+        String peer = b.getString(EXTRA_PEER);
+        if(peer != null && !mPongView.connect(peer)) {
+        	Toast.makeText(this, R.string.peer_bad_address, Toast.LENGTH_LONG).show();
+        	finish();
+        	return;
+        }
+        
+        // Watching someone else's match; nobody here plays
+        String host = b.getString(EXTRA_WATCH);
+        if(host != null && !mPongView.watch(host)) {
+        	Toast.makeText(this, R.string.peer_bad_address, Toast.LENGTH_LONG).show();
+        	finish();
+        	return;
+        }
         mPongView.update();
         
         this.setVolumeControlStream(AudioManager.STREAM_MUSIC);
@@ -47,18 +94,22 @@ public class GameActivity extends Activity {
     
     protected void onStop() {
     	super.onStop();
+    	if(mSynthetic != null) mSynthetic.stop();
 		mPongView.stop();
+		mPongView.saveReplay(new File(getFilesDir(), REPLAY_FILE));
     }
     
     protected void onResume() {
     	super.onResume();
     	mPongView.resume();
+    	if(mSynthetic != null) mSynthetic.start();
     }
     
     protected void onDestroy() {
     	super.onDestroy();
     	mPongView.release();
-    	mWakeLock.release();
+    	if(mSynthetic != null) mSynthetic.report();
+    	if(mWakeLock != null) mWakeLock.release();
     }
    
     public void hideAboutBox() {
@@ -0,0 +1,96 @@
+package org.oep.pong;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+
+/**
+ * Runs the game and draws it into a SurfaceHolder, entirely off of the UI
+ * thread. The UI thread only ever hands input over through PongView's
+ * InputLatches.
+ * @author OEP
+ *
+ */
+public class GameThread extends Thread {
+	private final PongView mView;
+	private final SurfaceHolder mHolder;
+	
+	private volatile boolean mRunning = true;
+	
+	/** Part of the surface that changed this frame */
+	private final Rect mDirty = new Rect();
+	
+	public GameThread(PongView view, SurfaceHolder holder) {
+		super("PongGame");
+		mView = view;
+		mHolder = holder;
+	}
+	
+	@Override
+	public void run() {
+		final long frame = 1000000000L / PongView.RENDER_FPS;
+		
+		while(mRunning) {
+			long start = System.nanoTime();
+			
+			if(mView.step(start)) {
+				draw();
+			}
+			
+			long left = frame - (System.nanoTime() - start);
+			if(left > 0) {
+				mView.getFrameStats().expectWake(start + frame);
+				try {
+					Thread.sleep(left / 1000000, (int) (left % 1000000));
+				}
+				catch (InterruptedException e) {
+					// finish() wakes us up this way
+				}
+			}
+		}
+	}
+	
+	private void draw() {
+		Canvas canvas;
+		if(mView.getDirtyRect(mDirty)) {
+			// Nothing moved, so the last frame is still good
+			if(mDirty.isEmpty()) return;
+			canvas = mHolder.lockCanvas(mDirty);
+		}
+		else {
+			canvas = mHolder.lockCanvas();
+		}
+		if(canvas == null) return;
+		
+		long start = System.nanoTime();
+		try {
+			canvas.drawColor(Color.BLACK);
+			mView.render(canvas);
+		}
+		finally {
+			mHolder.unlockCanvasAndPost(canvas);
+		}
+		mView.recordDraw(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Stops the thread and waits for it to exit, so the surface is safe to
+	 * tear down once this returns.
+	 */
+	public void finish() {
+		mRunning = false;
+		interrupt();
+		
+		boolean joined = false;
+		while(!joined) {
+			try {
+				join();
+				joined = true;
+			}
+			catch (InterruptedException e) {
+				// Try again
+			}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.oep.pong;
 
 import android.os.Build;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 
 public abstract class InputHandler {
@@ -17,6 +18,53 @@ public abstract class InputHandler {
 	public abstract int getTouchCount(MotionEvent e);
 	public abstract float getX(MotionEvent e, int i);
 	public abstract float getY(MotionEvent e, int i);
+	public abstract float getHistoricalX(MotionEvent e, int i, int pos);
+	public abstract float getHistoricalY(MotionEvent e, int i, int pos);
+	
+	/** @return whether pointer <code>i</code> just touched down */
+	public abstract boolean isDown(MotionEvent e, int i);
+	
+	/**
+	 * Gets each touch sample from a MotionEvent, oldest first.
+	 */
+	public interface SampleListener {
+		/**
+		 * @param time when the sample was taken, on the System.nanoTime() clock
+		 * @param down whether this is the first sample of a new touch
+		 */
+		void onSample(float x, float y, long time, boolean down);
+	}
+	
+	/**
+	 * @return <code>eventTime</code>, a MotionEvent timestamp, on the
+	 * System.nanoTime() clock
+	 */
+	public static long toNanoTime(long eventTime) {
+		// Events are stamped with uptimeMillis(); the game ticks by nanoTime()
+		return eventTime * 1000000 + System.nanoTime() - SystemClock.uptimeMillis() * 1000000;
+	}
+	
+	/**
+	 * Hands <code>listener</code> every sample in <code>e</code> in the order
+	 * they were taken: the ones batched up since the last event, then the
+	 * current ones.
+	 */
+	public void dispatch(MotionEvent e, SampleListener listener) {
+		long offset = toNanoTime(0);
+		int pointers = getTouchCount(e);
+		int history = e.getHistorySize();
+		for(int h = 0; h < history; h++) {
+			long time = e.getHistoricalEventTime(h) * 1000000 + offset;
+			for(int i = 0; i < pointers; i++) {
+				listener.onSample(getHistoricalX(e, i, h), getHistoricalY(e, i, h), time, false);
+			}
+		}
+		
+		long time = e.getEventTime() * 1000000 + offset;
+		for(int i = 0; i < pointers; i++) {
+			listener.onSample(getX(e, i), getY(e, i), time, isDown(e, i));
+		}
+	}
 	
 	private static class MultiInput extends InputHandler {
 		private static class Holder {
@@ -37,6 +85,26 @@ public abstract class InputHandler {
 		public float getY(MotionEvent e, int i) {
 			return e.getY(i);
 		}
+		
+		@Override
+		public float getHistoricalX(MotionEvent e, int i, int pos) {
+			return e.getHistoricalX(i, pos);
+		}
+		
+		@Override
+		public float getHistoricalY(MotionEvent e, int i, int pos) {
+			return e.getHistoricalY(i, pos);
+		}
+		
+		@Override
+		public boolean isDown(MotionEvent e, int i) {
+			// Older SDKs call the pointer index an ID
+			int action = e.getAction();
+			int masked = action & MotionEvent.ACTION_MASK;
+			if(masked == MotionEvent.ACTION_DOWN) return true;
+			return masked == MotionEvent.ACTION_POINTER_DOWN
+				&& (action >> MotionEvent.ACTION_POINTER_ID_SHIFT) == i;
+		}
 	}
 	
 	private static class SingleInput extends InputHandler {
@@ -58,5 +126,20 @@ public abstract class InputHandler {
 		public float getY(MotionEvent e, int i) {
 			return e.getY();
 		}
+		
+		@Override
+		public float getHistoricalX(MotionEvent e, int i, int pos) {
+			return e.getHistoricalX(pos);
+		}
+		
+		@Override
+		public float getHistoricalY(MotionEvent e, int i, int pos) {
+			return e.getHistoricalY(pos);
+		}
+		
+		@Override
+		public boolean isDown(MotionEvent e, int i) {
+			return e.getAction() == MotionEvent.ACTION_DOWN;
+		}
 	}
 }
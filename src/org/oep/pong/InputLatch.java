@@ -0,0 +1,211 @@
+package org.oep.pong;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.oep.pong.engine.Paddle;
+
+/**
+ * Hands input for one paddle from the UI thread to whichever thread is
+ * ticking the game, without locking. The UI thread posts whatever it likes;
+ * the game thread drains it into the paddle once per tick.
+ * 
+ * Touches are posted as timestamped samples, including the ones Android
+ * batches up between events, and each tick takes the sample taken closest
+ * to the time it simulates up to. A quick flick that spans two ticks moves
+ * the paddle through where the finger was at each, rather than jumping to
+ * wherever it ended up. With prediction turned on, a tick that's ahead of
+ * the latest sample carries on along the finger's path a little way.
+ */
+public class InputLatch {
+	/** What a drain() took, one bit each */
+	public static final int TOOK_SAMPLE = 1, TOOK_NUDGE = 2, TOOK_JOIN = 4;
+	
+	/** Samples kept for the game thread, a power of two */
+	private static final int SAMPLES = 64;
+	private static final int MASK = SAMPLES - 1;
+	
+	/** Marks the first sample of a touch, which starts a new path */
+	private static final long DOWN = 1L << 32;
+	
+	/** Two samples further apart than this aren't the same motion */
+	private static final long MAX_GAP = 50 * 1000000L;
+	
+	/** Samples ever posted; only the UI thread writes this */
+	private volatile long mPosted = 0;
+	
+	/**
+	 * Which sample each slot holds, or -1 while the UI thread is writing it,
+	 * so the game thread can tell when it read one half-written or already
+	 * overwritten.
+	 */
+	private final AtomicLongArray mSlots = new AtomicLongArray(SAMPLES);
+	private final AtomicLongArray mTimes = new AtomicLongArray(SAMPLES);
+	private final AtomicLongArray mXs = new AtomicLongArray(SAMPLES);
+	
+	/** How far past the latest sample to extrapolate, or 0 not to */
+	private volatile long mPrediction = 0;
+	
+	/** Relative movement, e.g. from the trackball */
+	private final AtomicInteger mNudge = new AtomicInteger(0);
+	
+	private volatile boolean mJoin = false;
+	
+	/**
+	 * Whether a human has the paddle, as of the last drain; the game thread
+	 * owns Paddle.player, so this is what the UI thread goes by
+	 */
+	private volatile boolean mPlaying = false;
+	
+	// Only the game thread touches these
+	private long mTaken = 0;
+	private boolean mHave = false, mHavePrevious = false;
+	private int mX, mPreviousX, mApplied;
+	private long mTime, mPreviousTime;
+	
+	/**
+	 * Move the paddle toward <code>x</code>, where the finger was at
+	 * <code>time</code>. Post samples in the order they were taken, and only
+	 * from the UI thread.
+	 * @param time on the System.nanoTime() clock
+	 * @param down whether this is the first sample of a new touch
+	 */
+	public void postSample(int x, long time, boolean down) {
+		long n = mPosted;
+		int slot = (int) (n & MASK);
+		mSlots.set(slot, -1);
+		mTimes.set(slot, time);
+		mXs.set(slot, (x & 0xFFFFFFFFL) | (down ? DOWN : 0));
+		mSlots.set(slot, n);
+		mPosted = n + 1;
+	}
+	
+	/**
+	 * Move the paddle's destination by <code>dx</code>. Nudges add up until
+	 * the next tick.
+	 */
+	public void postNudge(int dx) {
+		mNudge.addAndGet(dx);
+	}
+	
+	/**
+	 * Hand the paddle over to a human player.
+	 */
+	public void postJoin() {
+		mJoin = true;
+	}
+	
+	/**
+	 * @return true if a human has the paddle, or has asked for it. Safe to
+	 * call from the UI thread, unlike reading Paddle.player.
+	 */
+	public boolean isPlaying() {
+		// mJoin first: a drain clears it only after setting mPlaying
+		return mJoin || mPlaying;
+	}
+	
+	/**
+	 * Tells the UI thread who has the paddle, for when that changes other
+	 * than by a join, e.g. a new game. Game thread only; drain() does this
+	 * too.
+	 */
+	public void publish(Paddle paddle) {
+		mPlaying = paddle.player;
+	}
+	
+	/**
+	 * @param nanos how far ahead of the latest touch sample a tick may
+	 * extrapolate the finger's path, or 0 to only ever use real samples
+	 */
+	public void setPrediction(long nanos) {
+		mPrediction = Math.max(0, nanos);
+	}
+	
+	/**
+	 * Apply everything posted up to <code>time</code>. Call this only from
+	 * the thread that ticks the game.
+	 * @param paddle The paddle this input is for
+	 * @param width Width of the playing field
+	 * @param time what the tick simulates up to, on the System.nanoTime() clock
+	 * @return which of TOOK_SAMPLE, TOOK_NUDGE and TOOK_JOIN there were new
+	 * ones of, 0 if none
+	 */
+	public int drain(Paddle paddle, int width, long time) {
+		boolean joined = mJoin;
+		if(joined) {
+			if(!paddle.player) {
+				paddle.player = true;
+				paddle.destination = paddle.centerX();
+			}
+			mPlaying = true;
+			mJoin = false;
+		}
+		mPlaying = paddle.player;
+		
+		boolean took = takeSamples(time);
+		if(mHave) {
+			// Without a new sample, a prediction still runs on, or settles
+			// back once it's stale
+			int x = Math.max(0, Math.min(width, predict(time)));
+			if(took || x != mApplied) paddle.destination = mApplied = x;
+		}
+		
+		int dx = mNudge.getAndSet(0);
+		if(dx != 0) {
+			paddle.destination = Math.max(0, Math.min(width, paddle.destination + dx));
+		}
+		return (took ? TOOK_SAMPLE : 0) | (dx != 0 ? TOOK_NUDGE : 0) | (joined ? TOOK_JOIN : 0);
+	}
+	
+	/**
+	 * Moves along to the sample closest to <code>time</code>, leaving any
+	 * after it for later ticks.
+	 * @return true if there was a new one
+	 */
+	private boolean takeSamples(long time) {
+		long end = mPosted;
+		boolean took = false;
+		for(long k = Math.max(mTaken, end - SAMPLES); k < end; k++) {
+			int slot = (int) (k & MASK);
+			if(mSlots.get(slot) != k) continue;
+			long t = mTimes.get(slot), packed = mXs.get(slot);
+			if(mSlots.get(slot) != k) continue;
+			
+			// A sample from after the tick only counts if it's the closer one
+			if(t > time && mHave && t - time >= time - mTime) break;
+			
+			if((packed & DOWN) != 0) {
+				mHavePrevious = false;
+			}
+			else if(mHave) {
+				mPreviousX = mX;
+				mPreviousTime = mTime;
+				mHavePrevious = true;
+			}
+			mX = (int) packed;
+			mTime = t;
+			mHave = true;
+			mTaken = k + 1;
+			took = true;
+			if(t > time) break;
+		}
+		return took;
+	}
+	
+	/**
+	 * @return where the finger is likely to be at <code>time</code>, going by
+	 * the last two samples
+	 */
+	private int predict(long time) {
+		long prediction = mPrediction;
+		long ahead = time - mTime;
+		long gap = mTime - mPreviousTime;
+		if(prediction == 0 || !mHavePrevious || ahead <= 0 || gap <= 0 || gap > MAX_GAP) return mX;
+		
+		// The finger has most likely stopped if nothing's come in for a while
+		if(ahead > 2 * prediction) return mX;
+		
+		ahead = Math.min(ahead, prediction);
+		return mX + (int) ((long) (mX - mPreviousX) * ahead / gap);
+	}
+}
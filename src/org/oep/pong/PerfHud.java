@@ -0,0 +1,102 @@
+package org.oep.pong;
+
+import java.util.Locale;
+
+import org.oep.pong.perf.FrameStats;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Draws a few lines of frame timing from a FrameStats in the corner of the
+ * screen. The text is only rebuilt every so many frames, so the overlay
+ * doesn't noticeably change what it's measuring.
+ */
+public class PerfHud {
+	private static final int LINES = 4;
+	
+	private final FrameStats mStats;
+	private final FrameStats.Summary mSummary = new FrameStats.Summary();
+	private final Paint mPaint = new Paint();
+	
+	private final String[] mLines = new String[LINES];
+	private int mWidth = 0;
+	
+	private final int mRefreshFrames;
+	private int mUntilRefresh = 0;
+	
+	/**
+	 * @param refreshFrames how many frames to keep showing the same numbers
+	 */
+	public PerfHud(FrameStats stats, int refreshFrames) {
+		mStats = stats;
+		mRefreshFrames = refreshFrames;
+		mPaint.setColor(Color.YELLOW);
+		mPaint.setAntiAlias(true);
+		for(int i = 0; i < LINES; i++) mLines[i] = "";
+	}
+	
+	private int lineHeight() {
+		return (int) (mPaint.descent() - mPaint.ascent()) + 1;
+	}
+	
+	/**
+	 * Where the HUD is drawn with its top left corner at (x, y).
+	 */
+	public void getBounds(int x, int y, Rect out) {
+		out.set(x, y, x + mWidth + 1, y + LINES * lineHeight());
+	}
+	
+	/**
+	 * Rebuilds the text every so many frames. Call once a frame, before
+	 * working out what to redraw.
+	 * @return true if the text was rebuilt, so the HUD needs redrawing even
+	 * though its bounds may not have changed
+	 */
+	public boolean update() {
+		if(--mUntilRefresh > 0) return false;
+		refresh();
+		mUntilRefresh = mRefreshFrames;
+		return true;
+	}
+	
+	public void draw(Canvas canvas, int x, int y) {
+		int height = lineHeight();
+		int baseline = y - (int) mPaint.ascent();
+		for(int i = 0; i < LINES; i++) {
+			canvas.drawText(mLines[i], x, baseline + i * height, mPaint);
+		}
+	}
+	
+	private void refresh() {
+		mStats.summarize(FrameStats.FRAME, mSummary);
+		mLines[0] = String.format(Locale.US, "frame p50 %.1f p95 %.1f p99 %.1f ms",
+				ms(mSummary.p50), ms(mSummary.p95), ms(mSummary.p99));
+		
+		mStats.summarize(FrameStats.LOGIC, mSummary);
+		double logic = ms(mSummary.p95);
+		mStats.summarize(FrameStats.AI, mSummary);
+		mLines[1] = String.format(Locale.US, "p95 logic %.2f ai %.2f ms", logic, ms(mSummary.p95));
+		
+		mStats.summarize(FrameStats.DRAW, mSummary);
+		double draw = ms(mSummary.p95);
+		mStats.summarize(FrameStats.INPUT, mSummary);
+		mLines[2] = String.format(Locale.US, "p95 draw %.2f input %.2f ms", draw, ms(mSummary.p95));
+		
+		mStats.summarize(FrameStats.JITTER, mSummary);
+		mLines[3] = String.format(Locale.US, "p95 jitter %.1f ms, %d dropped",
+				ms(mSummary.p95), mStats.getDroppedFrames());
+		
+		int width = 0;
+		for(String line : mLines) {
+			width = Math.max(width, (int) Math.ceil(mPaint.measureText(line)));
+		}
+		mWidth = Math.max(mWidth, width);
+	}
+	
+	private static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+}
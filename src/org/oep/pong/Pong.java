@@ -1,13 +1,21 @@
 package org.oep.pong;
 
+import org.oep.pong.net.Addresses;
+
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.EditText;
+import android.widget.Toast;
 
 public class Pong extends Activity {
 
@@ -15,6 +23,15 @@ public class Pong extends Activity {
 		super.onCreate(icicle);
 		setContentView(R.layout.act_title);
 		setListeners();
+		
+		// Get the game's assets ready while the player picks a mode
+		Preloader.get(this).start();
+	}
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if(isFinishing()) Preloader.release();
 	}
 	
 	@Override
@@ -59,6 +76,56 @@ public class Pong extends Activity {
 				startGame(true,true);
 			}
 		});
+		
+		this.findViewById(R.id.title_btnNetwork)
+		.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				askForPeer(false);
+			}
+		});
+		
+		this.findViewById(R.id.title_btnWatch)
+		.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				askForPeer(true);
+			}
+		});
+	}
+	
+	/**
+	 * Asks where the other device is, remembering the last answer.
+	 * @param watch whether we're going to watch its match rather than play it
+	 */
+	protected void askForPeer(final boolean watch) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		final String pref = (watch) ? PREF_WATCH : PREF_PEER;
+		final EditText address = new EditText(this);
+		address.setSingleLine(true);
+		address.setHint(R.string.peer_hint);
+		address.setText(prefs.getString(pref, ""));
+		
+		new AlertDialog.Builder(this)
+		.setTitle((watch) ? R.string.watch_title : R.string.peer_title)
+		.setView(address)
+		.setPositiveButton((watch) ? R.string.watch_play : R.string.peer_play, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				String peer = address.getText().toString().trim();
+				if(peer.length() == 0) return;
+				prefs.edit().putString(pref, peer).commit();
+				
+				// Names would need a DNS lookup on the way into the game
+				if(Addresses.numeric(peer) == null) {
+					Toast.makeText(Pong.this, R.string.peer_not_ip, Toast.LENGTH_LONG).show();
+					return;
+				}
+				if(watch) startWatching(peer);
+				else startNetworkGame(peer);
+			}
+		})
+		.setNegativeButton(R.string.peer_cancel, null)
+		.show();
 	}
 	
 	protected void startGame(boolean redPlayer, boolean bluePlayer) {
@@ -68,13 +135,33 @@ public class Pong extends Activity {
 		startActivity(i);
 	}
 	
+	protected void startNetworkGame(String peer) {
+		Intent i = new Intent(this, GameActivity.class);
+		i.putExtra(GameActivity.EXTRA_PEER, peer);
+		startActivity(i);
+	}
+	
+	protected void startWatching(String host) {
+		Intent i = new Intent(this, GameActivity.class);
+		i.putExtra(GameActivity.EXTRA_WATCH, host);
+		startActivity(i);
+	}
+	
 	
 	public static final String
 		PREF_BALL_SPEED = "ball_speed",
 		PREF_STRATEGY = "strategy",
 		PREF_LIVES = "lives",
 		PREF_HANDICAP = "handicap",
-		PREF_MUTED = "muted";
+		PREF_MUTED = "muted",
+		PREF_SURFACE = "surface",
+		PREF_HUD = "hud",
+		PREF_FRAME_LOG = "frame_log",
+		PREF_SPRITES = "sprites",
+		PREF_PEER = "peer",
+		PREF_WATCH = "watch",
+		PREF_BROADCAST = "broadcast",
+		PREF_TOUCH_PREDICTION = "touch_prediction";
 	
 	public static final String
 		KEY_AI_STRATEGY = "key_ai_strategy";
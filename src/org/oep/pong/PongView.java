@@ -1,54 +1,85 @@
 package org.oep.pong;
 
-import java.util.Random;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import org.oep.pong.engine.Ball;
+import org.oep.pong.engine.FixedStep;
+import org.oep.pong.engine.GameListener;
+import org.oep.pong.engine.IntRect;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.net.Addresses;
+import org.oep.pong.net.BroadcastClient;
+import org.oep.pong.net.BroadcastServer;
+import org.oep.pong.net.LockstepSession;
+import org.oep.pong.perf.FrameStats;
+import org.oep.pong.perf.HistogramSink;
+import org.oep.pong.perf.InputLatency;
+import org.oep.pong.replay.ReplayRecorder;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Paint.Style;
-import android.media.AudioManager;
-import android.media.SoundPool;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.View.OnKeyListener;
 import android.view.View.OnTouchListener;
 import android.widget.Toast;
 
 /**
- * This class is the main viewing window for the Pong game. All the game's
- * logic takes place within this class as well.
+ * This class is the main viewing window for the Pong game. The game's logic
+ * lives in {@link PongEngine}; this class drives it, draws it and feeds it
+ * input.
  * @author OEP
  *
  */
-public class PongView extends View implements OnTouchListener, OnKeyListener {
+public class PongView extends View implements OnTouchListener, OnKeyListener, GameListener,
+		SurfaceHolder.Callback {
 	/** Debug tag */
-	@SuppressWarnings("unused")
 	private static final String TAG = "PongView";
-	protected static final int FPS = 30;
+	/** Rate the simulation ticks at. All speeds are in pixels per tick. */
+	protected static final int FPS = PongEngine.TICK_RATE;
+	
+	/** Rate we try to draw at, independent of FPS */
+	protected static final int RENDER_FPS = 60;
 	
 	public static final int
-		STARTING_LIVES = 1,
-		PLAYER_PADDLE_SPEED = 10;
+		STARTING_LIVES = PongEngine.STARTING_LIVES,
+		PLAYER_PADDLE_SPEED = PongEngine.PLAYER_PADDLE_SPEED;
 	
 	/**
 	 * This is mostly deprecated but kept around if the need
 	 * to add more game states comes around.
 	 */
-	private State mCurrentState = State.Running;
-	private State mLastState = State.Stopped;
+	private volatile State mCurrentState = State.Running;
+	private volatile State mLastState = State.Stopped;
 	public static enum State { Running, Stopped}
 
 	/** Flag that marks this view as initialized */
-	private boolean mInitialized = false;
+	private volatile boolean mInitialized = false;
 	
 	/** Preferences loaded at startup */
 	private int mBallSpeedModifier;
@@ -62,47 +93,121 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 	/** CPU handicap */
 	private int mCpuHandicap;
 	
-	/** Starts a new round when set to true */
-	private boolean mNewRound = true;
-	
 	/** Keeps the game thread alive */
 	private boolean mContinue = true;
 	
+	/** Draw into a SurfaceView from a GameThread instead of onDraw() */
+	private boolean mUseSurface = false;
+	
+	/** Surface we draw into when mUseSurface is set */
+	private SurfaceHolder mHolder;
+	private boolean mSurfaceReady = false;
+	
+	/** Runs the game when drawing into a surface */
+	private GameThread mThread;
+	
 	/** Mutes sounds when true */
 	private boolean mMuted = false;
 
+	/** The simulation. This is created in initializePongView() */
+	private PongEngine mEngine;
+
 	private Paddle mRed, mBlue;
 	
+	/** Records the match so it can be played back exactly */
+	private ReplayRecorder mRecorder;
+	
+	/** Input headed for each paddle, applied once per tick */
+	private final InputLatch mRedInput = new InputLatch(), mBlueInput = new InputLatch();
+	
+	/** How far ahead of the finger to draw a swiped paddle, if at all */
+	private static final long TOUCH_PREDICTION = 20 * 1000000L;
+	private boolean mPredictTouch = false;
+	
 	/** Touch boxes for various functions. These are assigned in initialize() */
 	private Rect mPauseTouchBox;
 
-	/** Timestamp of the last frame created */
-	private long mLastFrame = 0;
+	/** Decides how many ticks each drawn frame is worth */
+	private final FixedStep mStep = new FixedStep(FPS);
+	
+	/** Positions as of the previous tick, for interpolating between ticks */
+	private float mLastBallX, mLastBallY;
+	private int mLastRedX, mLastBlueX;
+	
+	/** How far between the previous and current tick we are drawing */
+	private float mAlpha = 1;
 
-	protected Ball mBall = new Ball();
+	protected Ball mBall;
 
-	/** Random number generator */
-	private static final Random RNG = new Random();
-	
-	/** Pool for our sound effects */
-	protected SoundPool mPool = new SoundPool(3, AudioManager.STREAM_MUSIC, 0);
+	/** Plays our sound effects off of the game loop; shared with the Preloader */
+	protected SoundQueue mSounds;
 	
+	/** Effect ids in mSounds */
 	protected int mWinSFX, mMissSFX, mPaddleSFX, mWallSFX;
 	
+	/** When the activity was created, to time how long the first frame took */
+	private long mLaunchTime = -1;
+	
 	/** Paint object */
 	private final Paint mPaint = new Paint();
+	
+	/** What needs redrawing each frame: the ball, both paddles and the HUD */
+	private final DirtyRegion mDirty = new DirtyRegion(4);
+	private static final int DIRTY_BALL = 0, DIRTY_RED = 1, DIRTY_BLUE = 2, DIRTY_HUD = 3;
+	
+	/** Where frame time goes, for the last few seconds */
+	private final FrameStats mStats = new FrameStats(256, RENDER_FPS);
+	
+	/** Frame timing overlay */
+	private final PerfHud mHud = new PerfHud(mStats, RENDER_FPS / 2);
+	private volatile boolean mShowHud = false;
+	private final Rect mHudBounds = new Rect();
+	
+	/** Ball, paddles and lives pre-rendered, unless turned off to compare */
+	private final SpriteCache mSprites = new SpriteCache(PADDING);
+	private boolean mUseSprites = true;
+	
+	/** Tick and draw latencies streamed to a file, if the player asked for it */
+	private boolean mLogFrames = false;
+	private HistogramSink mFrameLog;
+	public static final int LOG_TICK = 0, LOG_DRAW = 1, LOG_INPUT = 2;
+	private static final String[] LOG_SERIES = {
+		"tick", "draw", "touch-tick", "touch-draw", "track-tick", "track-draw"
+	};
+	
+	/** How long input takes to reach a tick and then the screen */
+	private final InputLatency mInputLatency = new InputLatency();
+	
+	/** How often the frame log is written out */
+	private static final long LOG_INTERVAL = 5000;
+	
+	/** Text drawn over the game, measured against mPaint */
+	private volatile Labels mLabels;
 
 	/** Padding for touch zones and paddles */
-	private static final int PADDING = 3;
+	private static final int PADDING = PongEngine.PADDING;
 	
 	/** Scrollwheel sensitivity */
 	private static final int SCROLL_SENSITIVITY = 80;
 
-	/** Redraws the screen according to FPS */
+	/** Redraws the screen according to RENDER_FPS */
 	private RefreshHandler mRedrawHandler = new RefreshHandler();
 	
 	/** Flags indicating who is a player */
 	private boolean mRedPlayer = false, mBluePlayer = false;
+	
+	/** The match against another device, if this is one */
+	private LockstepSession mSession;
+	
+	/** Where our player last asked our paddle to go; the paddle gets there a few ticks later */
+	private int mNetAim;
+	
+	/** The match we're watching, if we're only a spectator */
+	private BroadcastClient mWatching;
+	
+	/** Spectators watching this match, if the player turned broadcasting on */
+	private BroadcastServer mBroadcast;
+	private boolean mBroadcasting = false;
 
 	/**
 	 * An overloaded class that repaints this view in a separate thread.
@@ -114,7 +219,7 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 		@Override
 		public void handleMessage(Message msg) {
 			PongView.this.update();
-			PongView.this.invalidate(); // Mark the view as 'dirty'
+			PongView.this.invalidateChanged(); // Mark what moved as 'dirty'
 		}
 		
 		public void sleep(long delay) {
@@ -151,12 +256,18 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
     	loadSFX();
     }
     
+    /**
+     * The title screen will usually have loaded these already. If not, they
+     * load in the background and play once they're ready.
+     */
     protected void loadSFX() {
-    	Context ctx = getContext();
-    	mWinSFX = mPool.load(ctx, R.raw.wintone, 1);
-    	mMissSFX = mPool.load(ctx, R.raw.ballmiss, 1);
-    	mPaddleSFX = mPool.load(ctx, R.raw.paddle, 1);
-    	mWallSFX = mPool.load(ctx, R.raw.wall, 1);
+    	Preloader assets = Preloader.get(getContext());
+    	assets.start();
+    	mSounds = assets.getSounds();
+    	mWinSFX = Preloader.SFX_WIN;
+    	mMissSFX = Preloader.SFX_MISS;
+    	mPaddleSFX = Preloader.SFX_PADDLE;
+    	mWallSFX = Preloader.SFX_WALL;
     }
     
     protected void loadPreferences(SharedPreferences prefs) {
@@ -167,6 +278,14 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
     	mMuted = prefs.getBoolean(Pong.PREF_MUTED, mMuted);
     	mLivesModifier = Math.max(0, prefs.getInt(Pong.PREF_LIVES, 2));
     	mCpuHandicap = Math.max(0, Math.min(PLAYER_PADDLE_SPEED-1, prefs.getInt(Pong.PREF_HANDICAP, 4)));
+    	mUseSurface = prefs.getBoolean(Pong.PREF_SURFACE, mUseSurface);
+    	mShowHud = prefs.getBoolean(Pong.PREF_HUD, mShowHud);
+    	mLogFrames = prefs.getBoolean(Pong.PREF_FRAME_LOG, mLogFrames);
+    	mUseSprites = prefs.getBoolean(Pong.PREF_SPRITES, mUseSprites);
+    	mBroadcasting = prefs.getBoolean(Pong.PREF_BROADCAST, mBroadcasting);
+    	mPredictTouch = prefs.getBoolean(Pong.PREF_TOUCH_PREDICTION, mPredictTouch);
+    	mRedInput.setPrediction(mPredictTouch ? TOUCH_PREDICTION : 0);
+    	mBlueInput.setPrediction(mPredictTouch ? TOUCH_PREDICTION : 0);
     	
     	String strategy = prefs.getString(Pong.PREF_STRATEGY, null);
     	String strategies[] = r.getStringArray(R.array.values_ai_strategies);
@@ -182,233 +301,191 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
     }
     
     /**
-     * The main loop. Call this to update the game state.
+     * The main loop. Call this to update the game state. The simulation steps
+     * at a fixed FPS no matter how often this gets called; frames in between
+     * ticks are interpolated when drawn.
+     * 
+     * When drawing into a surface the GameThread runs the loop instead and
+     * this does nothing.
      */
     public void update() {
-    	if(getHeight() == 0 || getWidth() == 0) {
-    		mRedrawHandler.sleep(1000 / FPS);
+    	if(mUseSurface) return;
+    	
+    	long now = System.nanoTime();
+    	if(!step(now)) {
+    		mRedrawHandler.sleep(1000 / RENDER_FPS);
     		return;
     	}
     	
+    	// We will take this much time off of the next update() call to normalize for
+    	// CPU time used updating the game state.
+    	
+    	if(mContinue) {
+    		long diff = (System.nanoTime() - now) / 1000000;
+    		long delay = Math.max(0, (1000 / RENDER_FPS) - diff);
+    		mStats.expectWake(System.nanoTime() + delay * 1000000);
+    		mRedrawHandler.sleep(delay);
+    	}
+    }
+    
+    /**
+     * Runs however many ticks are due at time <code>now</code>. Only the thread
+     * running the loop may call this.
+     * @param now Current time in nanoseconds
+     * @return false if the view hasn't been sized yet and there is nothing to draw
+     */
+    boolean step(long now) {
+    	if(getHeight() == 0 || getWidth() == 0) {
+    		return false;
+    	}
+    	
+    	// Until the other device answers there's only a message to draw
+    	if(mSession != null && !updateSession(now)) {
+    		return true;
+    	}
+    	
+    	// Likewise until the first keyframe of a match we're watching
+    	if(mWatching != null && !updateWatching()) {
+    		return true;
+    	}
+    	
     	if(!mInitialized) {
     		initializePongView();
     		mInitialized = true;
+    		
+    		if(mLaunchTime >= 0) {
+    			Log.i(TAG, "First frame " + (SystemClock.uptimeMillis() - mLaunchTime) + "ms after launch, assets "
+    					+ (Preloader.get(getContext()).isReady() ? "ready" : "still loading"));
+    		}
     	}
     	
-    	long now = System.currentTimeMillis();
+    	mStats.beginFrame(now);
+    	if(mFrameLog != null) mFrameLog.roll(now);
+    	
     	if(gameRunning() && mCurrentState != State.Stopped) {
-	    	if(now - mLastFrame >= 1000 / FPS) {
-	    		if(mNewRound) {
-	    			nextRound();
-	    			mNewRound = false;
-	    		}
-	    		doGameLogic();
-	    	}
+    		int ticks = mStep.advance(now);
+    		for(int i = 0; i < ticks && gameRunning(); i++) {
+    			long start;
+    			
+    			// Touches are matched up with the moment each tick stands for
+    			long time = mStep.tickTime(i, ticks);
+    			if(mSession != null) {
+    				if(!mSession.canTick()) break;
+    				inputTaken(drainNetInput(time));
+    				rememberPositions();
+    				
+    				start = System.nanoTime();
+    				tickSession(now);
+    			}
+    			else {
+    				inputTaken(mRedInput.drain(mRed, mEngine.getWidth(), time)
+    						| mBlueInput.drain(mBlue, mEngine.getWidth(), time));
+    				mRecorder.record(mEngine);
+    				rememberPositions();
+    				
+    				start = System.nanoTime();
+    				mEngine.tick();
+    			}
+    			if(mFrameLog != null) mFrameLog.record(LOG_TICK, System.nanoTime() - start);
+    			if(mBroadcast != null) mBroadcast.publish(mEngine);
+    		}
+    		mAlpha = mStep.alpha();
+    		
+    		// Whatever the ticks wanted to play goes to the audio thread
+    		mSounds.flush();
+    		
+    		long ai = mEngine.takeAiNanos();
+    		mStats.add(FrameStats.LOGIC, System.nanoTime() - now - ai);
+    		mStats.add(FrameStats.AI, ai);
     	}
-    	
-    	// We will take this much time off of the next update() call to normalize for
-    	// CPU time used updating the game state.
-    	
-    	if(mContinue) {
-    		long diff = System.currentTimeMillis() - now;
-    		mRedrawHandler.sleep(Math.max(0, (1000 / FPS) - diff) );
+    	else {
+    		// Don't let paused time pile up into a burst of ticks
+    		mStep.reset(now);
+    		mAlpha = 1;
     	}
+    	return true;
     }
-
+    
     /**
-     * All of the game's logic (per game iteration) is in this function.
-     * Given some initial game state, it computes the next game state.
+     * Reads whatever the other device sent.
+     * @return false if the match hasn't started yet
      */
-	private void doGameLogic() {
-		float px = mBall.x;
-		float py = mBall.y;
-		
-		mBall.move();
-		
-		// Shake it up if it appears to not be moving vertically
-		if(py == mBall.y && mBall.serving() == false) {
-			mBall.randomAngle();
-		}
-		
-		// Do some basic paddle AI
-		if(!mRed.player) doAI(mRed, mBlue);
-		else mRed.move();
-		
-		if(!mBlue.player) doAI(mBlue, mRed);
-		else mBlue.move();
-		
-		handleBounces(px,py);
-		
-		// See if all is lost
-		if(mBall.y >= getHeight()) {
-			mNewRound = true;
-			mBlue.loseLife();
-			
-			if(mBlue.living()) playSound(mMissSFX);
-			else playSound(mWinSFX);
-		}
-		else if (mBall.y <= 0) {
-			mNewRound = true;
-			mRed.loseLife();
-			if(mRed.living()) playSound(mMissSFX);
-			else playSound(mWinSFX);
-		}
-	}
-	
-	protected void handleBounces(float px, float py) {
-		handleTopFastBounce(mRed, px, py);
-		handleBottomFastBounce(mBlue, px, py);
-		
-		// Handle bouncing off of a wall
-		if(mBall.x <= Ball.RADIUS || mBall.x >= getWidth() - Ball.RADIUS) {
-			mBall.bounceWall();
-			playSound(mWallSFX);
-			if(mBall.x == Ball.RADIUS)
-				mBall.x++;
-			else
-				mBall.x--;
-		}
-		
-	}
-	
-	protected void handleTopFastBounce(Paddle paddle, float px, float py) {
-		if(mBall.goingUp() == false) return;
-		
-		float tx = mBall.x;
-		float ty = mBall.y - Ball.RADIUS;
-		float ptx = px;
-		float pty = py - Ball.RADIUS;
-		float dyp = ty - paddle.getBottom();
-		float xc = tx + (tx - ptx) * dyp / (ty - pty);
-		
-		if(ty < paddle.getBottom() && pty > paddle.getBottom()
-				&& xc > paddle.getLeft() && xc < paddle.getRight()) {
-			
-			mBall.x = xc;
-			mBall.y = paddle.getBottom() + Ball.RADIUS;
-			mBall.bouncePaddle(paddle);
-			playSound(mPaddleSFX);
-			increaseDifficulty();
-		}
-	}
-	
-	protected void handleBottomFastBounce(Paddle paddle, float px, float py) {
-		if(mBall.goingDown() == false) return;
-		
-		float bx = mBall.x;
-		float by = mBall.y + Ball.RADIUS;
-		float pbx = px;
-		float pby = py + Ball.RADIUS;
-		float dyp = by - paddle.getTop();
-		float xc = bx + (bx - pbx) * dyp / (pby - by);
-		
-		if(by > paddle.getTop() && pby < paddle.getTop()
-				&& xc > paddle.getLeft() && xc < paddle.getRight()) {
-			
-			mBall.x = xc;
-			mBall.y = paddle.getTop() - Ball.RADIUS;
-			mBall.bouncePaddle(paddle);
-			playSound(mPaddleSFX);
-			increaseDifficulty();
-		}
-	}
-	
-	private void doAI(Paddle cpu, Paddle opponent) {
-		switch(mAiStrategy) {
-		case 2:	aiFollow(cpu); break;
-		case 1:	aiExact(cpu); break;
-		default: aiPrediction(cpu,opponent); break;
-		}
-	}
-	
-	/**
-	 * A generalized Pong AI player. Takes a Rect object and a Ball, computes where the ball will
-	 * be when ball.y == rect.y, and tries to move toward that x-coordinate. If the ball is moving
-	 * straight it will try to clip the ball with the edge of the paddle.
-	 * @param cpu
-	 */
-	private void aiPrediction(Paddle cpu, Paddle opponent) {
-		Ball ball = new Ball(mBall);
-		
-		// Special case: move torward the center if the ball is blinking
-		if(mBall.serving()) {
-			cpu.destination = getWidth() / 2;
-			cpu.move(true);
-			return;
-		}
-		
-		// Something is wrong if vy = 0.. let's wait until things fix themselves
-		if(ball.vy == 0) return;
-		
-		// Y-Distance from ball to Rect 'cpu'
-		float cpuDist = Math.abs(ball.y - cpu.centerY());
-		// Y-Distance to opponent.
-		float oppDist = Math.abs( ball.y - opponent.centerY() );
-		
-		// Distance between two paddles.
-		float paddleDistance = Math.abs(cpu.centerY() - opponent.centerY());
-		
-		// Is the ball coming at us?
-		boolean coming = (cpu.centerY() < ball.y && ball.vy < 0)
-			|| (cpu.centerY() > ball.y && ball.vy > 0);
-		
-		// Total amount of x-distance the ball covers
-		float total = ((((coming) ? cpuDist : oppDist + paddleDistance)) / Math.abs(ball.vy)) * Math.abs( ball.vx );
-		
-		// Playable width of the stage
-		float playWidth = getWidth() - 2 * Ball.RADIUS;
-		
-		
-		float wallDist = (ball.goingLeft()) ? ball.x - Ball.RADIUS : playWidth - ball.x + Ball.RADIUS;
-		
-		// Effective x-translation left over after first bounce 
-		float remains = (total - wallDist) % playWidth;
-		
-		// Bounces the ball will incur
-		int bounces = (int) ((total) / playWidth);
-		
-		boolean left = (bounces % 2 == 0) ? !ball.goingLeft() : ball.goingLeft();
-		
-		cpu.destination = getWidth() / 2;
-		
-		// Now we need to compute the final x. That's all that matters.
-		if(bounces == 0) {
-			cpu.destination = (int) (ball.x + total * Math.signum(ball.vx));
-		}
-		else if(left) {
-			cpu.destination = (int) (Ball.RADIUS + remains);
-		}
-		else { // The ball is going right...
-			cpu.destination = (int) ((Ball.RADIUS + playWidth) - remains);
-		}
-		
-		// Try to give it a little kick if vx = 0
-		int salt = (int) (System.currentTimeMillis() / 10000);
-		Random r = new Random((long) (cpu.centerY() + ball.vx + ball.vy + salt));
-		int width = cpu.getWidth();
-		cpu.destination = (int) bound(
-				cpu.destination + r.nextInt(2 * width - (width / 5)) - width + (width / 10),
-				0, getWidth()
-		);
-		cpu.move(true);
-	}
-	
-	private void aiExact(Paddle cpu) {
-		cpu.destination = (int) mBall.x;
-		cpu.setPosition(cpu.destination);
-	}
-	
-	private void aiFollow(Paddle cpu) {
-		cpu.destination = (int) mBall.x;
-		cpu.move(true);
-	}
-	
-	/**
-	 * Knocks up the framerate a bit to keep it difficult.
-	 */
-	private void increaseDifficulty() {
-		mBall.speed++;
-	}
+    private boolean updateSession(long now) {
+    	try {
+    		mSession.update(now);
+    	}
+    	catch (IOException e) {
+    		Log.w(TAG, "Lost the connection", e);
+    		mSession.close();
+    	}
+    	return mSession.getEngine() != null;
+    }
+    
+    /**
+     * Our player only steers our own paddle, and what they ask for is sent
+     * to the other device rather than applied straight away.
+     * @return what the latch took, as InputLatch.drain() says
+     */
+    private int drainNetInput(long time) {
+    	Paddle local = mSession.isRed() ? mRed : mBlue;
+    	local.destination = mNetAim;
+    	int took = (mSession.isRed() ? mRedInput : mBlueInput).drain(local, mEngine.getWidth(), time);
+    	mNetAim = local.destination;
+    	return took;
+    }
+    
+    /**
+     * Times the input a tick took, by source: touches arrive as samples and
+     * the trackball as nudges.
+     */
+    private void inputTaken(int took) {
+    	if(took == 0) return;
+    	long now = System.nanoTime();
+    	if((took & InputLatch.TOOK_SAMPLE) != 0) mInputLatency.consumed(InputLatency.TOUCH, now);
+    	if((took & InputLatch.TOOK_NUDGE) != 0) mInputLatency.consumed(InputLatency.TRACKBALL, now);
+    }
+    
+    /**
+     * Reads whatever the broadcast sent, which moves everything straight to
+     * where the stream says it is. There's nothing to interpolate from, so
+     * the positions are remembered first and frames are drawn as they come.
+     * @return false until there's a match to draw
+     */
+    private boolean updateWatching() {
+    	if(mInitialized) rememberPositions();
+    	try {
+    		mWatching.poll();
+    	}
+    	catch (IOException e) {
+    		Log.w(TAG, "Lost the broadcast", e);
+    		mWatching.close();
+    	}
+    	return mWatching.getEngine() != null;
+    }
+    
+    private void tickSession(long now) {
+    	try {
+    		mSession.tick(mNetAim, now);
+    	}
+    	catch (IOException e) {
+    		Log.w(TAG, "Lost the connection", e);
+    		mSession.close();
+    	}
+    }
+    
+    /**
+     * Save where everything is before a tick so we can draw in between.
+     */
+    private void rememberPositions() {
+    	mLastBallX = mBall.x;
+    	mLastBallY = mBall.y;
+    	mLastRedX = mRed.getLeft();
+    	mLastBlueX = mBlue.getLeft();
+    }
+    
+    private float lerp(float from, float to) {
+    	return from + (to - from) * mAlpha;
+    }
 
 	/**
 	 * Set the state, start a new round, start the loop if needed.
@@ -433,50 +510,82 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
      * its inflated size.
      */
     private void initializePongView() {
-    	initializePause();
     	initializePaddles();
+    	initializePause();
     }
     
     private void initializePause() {
-    	int min = Math.min(getWidth() / 4, getHeight() / 4);
-    	int xmid = getWidth() / 2;
-    	int ymid = getHeight() / 2;
+    	int min = Math.min(fieldWidth() / 4, fieldHeight() / 4);
+    	int xmid = fieldWidth() / 2;
+    	int ymid = fieldHeight() / 2;
     	mPauseTouchBox = new Rect(xmid - min, ymid - min, xmid + min, ymid + min);
     }
     
     private void initializePaddles() {
-    	Rect redTouch = new Rect(0,0,getWidth(),getHeight() / 8);
-    	Rect blueTouch = new Rect(0, 7 * getHeight() / 8, getWidth(), getHeight());
-    	
-    	mRed = new Paddle(Color.RED, redTouch.bottom + PADDING);
-    	mBlue = new Paddle(Color.BLUE, blueTouch.top - PADDING - Paddle.PADDLE_THICKNESS);
-    	
-    	mRed.setTouchbox( redTouch );
-    	mBlue.setTouchbox( blueTouch );
+    	if(mSession != null) {
+    		// The session has set up the match both devices agreed on
+    		mEngine = mSession.getEngine();
+    	}
+    	else if(mWatching != null) {
+    		// Never ticked, only moved to match the broadcast
+    		mEngine = mWatching.getEngine();
+    	}
+    	else {
+    		mEngine = new PongEngine(getWidth(), getHeight());
+    		mEngine.setBallSpeedModifier(mBallSpeedModifier);
+    		mEngine.setAiStrategy(mAiStrategy);
+    		mEngine.setCpuHandicap(mCpuHandicap);
+    		mEngine.setLives(STARTING_LIVES + mLivesModifier);
+    	}
+    	mEngine.setListener(this);
+    	mEngine.setAiTiming(true);
     	
-    	mRed.setHandicap(mCpuHandicap);
-    	mBlue.setHandicap(mCpuHandicap);
+    	mBall = mEngine.getBall();
+    	mRed = mEngine.getRed();
+    	mBlue = mEngine.getBlue();
     	
-    	mRed.player = mRedPlayer;
-    	mBlue.player = mBluePlayer;
+    	if(mSession != null) {
+    		mNetAim = (mSession.isRed() ? mRed : mBlue).destination;
+    	}
+    	else if(mWatching == null) {
+    		mRed.player = mRedPlayer;
+    		mBlue.player = mBluePlayer;
+    		mRecorder = new ReplayRecorder(mEngine);
+    	}
+    	mRedInput.publish(mRed);
+    	mBlueInput.publish(mBlue);
+    	rememberPositions();
     	
-    	mRed.setLives(STARTING_LIVES + mLivesModifier);
-    	mBlue.setLives(STARTING_LIVES + mLivesModifier);
+    	if(mBroadcasting && mWatching == null) startBroadcast();
+    }
+    
+    private void startBroadcast() {
+    	try {
+    		mBroadcast = new BroadcastServer(BroadcastServer.DEFAULT_PORT);
+    	}
+    	catch (IOException e) {
+    		Log.w(TAG, "Couldn't start broadcasting", e);
+    	}
     }
     
     /**
-     * Reset ball to an initial state
+     * Size of the playing field. Against another device this is the smaller
+     * of the two screens, and watching one it's that device's screen, so it
+     * may not fill ours.
      */
-    private void serveBall() {
-    	mBall.x = getWidth() / 2;
-    	mBall.y = getHeight() / 2;
-    	mBall.speed = Ball.SPEED + mBallSpeedModifier;
-    	mBall.randomAngle();
-    	mBall.pause();
+    private int fieldWidth() {
+    	return (mEngine != null) ? mEngine.getWidth() : getWidth();
     }
     
-    protected float bound(float x, float low, float hi) {
-    	return Math.max(low, Math.min(x, hi));
+    private int fieldHeight() {
+    	return (mEngine != null) ? mEngine.getHeight() : getHeight();
+    }
+    
+    /**
+     * Reset ball to an initial state
+     */
+    private void serveBall() {
+    	mEngine.serveBall();
     }
     
     /**
@@ -506,111 +615,281 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
     	}
     }
     
+    @Override
     public void onSizeChanged(int w, int h, int ow, int oh) {
+    	// Good time to pick up any new strings or text sizes
+    	mLabels = new Labels(getContext(), mPaint);
+    	mDirty.invalidateAll();
     }
     
     /**
-     * Paints the game!
+     * Invalidates whatever changed since the last frame, or the whole view
+     * if the game changed state.
+     */
+    private void invalidateChanged() {
+    	if(!mInitialized) {
+    		invalidate();
+    		return;
+    	}
+    	markDirty();
+    	mDirty.apply(this);
+    }
+    
+    /**
+     * Works out the part of the screen that changed since the last frame,
+     * for drawing into a surface.
+     * @param out Set to the changed area
+     * @return false if the whole screen needs to be redrawn
+     */
+    boolean getDirtyRect(Rect out) {
+    	if(!mInitialized) return false;
+    	markDirty();
+    	return mDirty.apply(out);
+    }
+    
+    /**
+     * Tell mDirty where everything will be drawn this frame.
+     */
+    private void markDirty() {
+    	// One pixel of slack for anti-aliasing
+    	if(mBall.visible()) {
+    		int x = (int) ballDrawX(), y = (int) ballDrawY();
+    		mDirty.setSprite(DIRTY_BALL, x - Ball.RADIUS - 1, y - Ball.RADIUS - 1,
+    				x + Ball.RADIUS + 2, y + Ball.RADIUS + 2);
+    	}
+    	else {
+    		mDirty.setSprite(DIRTY_BALL, 0, 0, 0, 0);
+    	}
+    	markPaddle(DIRTY_RED, mRed, mLastRedX);
+    	markPaddle(DIRTY_BLUE, mBlue, mLastBlueX);
+    	
+    	if(mShowHud) {
+    		// New numbers in the same box still need drawing
+    		if(mHud.update()) mDirty.invalidateSprite(DIRTY_HUD);
+    		mHud.getBounds(hudX(), hudY(), mHudBounds);
+    		mDirty.setSprite(DIRTY_HUD, mHudBounds.left, mHudBounds.top, mHudBounds.right, mHudBounds.bottom);
+    	}
+    	else {
+    		mDirty.setSprite(DIRTY_HUD, 0, 0, 0, 0);
+    	}
+    	
+    	// Everything else only changes along with one of these
+    	long key = (mBall.serving() ? 1 : 0)
+    		| (mBall.visible() ? 2 : 0)
+    		| (mCurrentState == State.Stopped ? 4 : 0)
+    		| (mRed.player ? 8 : 0)
+    		| (mBlue.player ? 16 : 0)
+    		| ((long) mRed.getLives() << 8)
+    		| (mShowHud ? 32 : 0)
+    		| ((mSession != null) ? (long) mSession.getState().ordinal() << 40 : 0)
+    		| ((mWatching != null && mWatching.isClosed()) ? 64 : 0)
+    		| ((long) mBlue.getLives() << 24);
+    	mDirty.setKey(key);
+    }
+    
+    private void markPaddle(int sprite, Paddle paddle, int lastLeft) {
+    	IntRect r = paddle.getRect();
+    	int left = (int) lerp(lastLeft, r.left);
+    	mDirty.setSprite(sprite, left - 1, r.top - 1, left + r.width() + 2, r.bottom + 2);
+    }
+    
+    @Override
+    protected void onConfigurationChanged(Configuration config) {
+    	super.onConfigurationChanged(config);
+    	mLabels = new Labels(getContext(), mPaint);
+    }
+    
+    /**
+     * @return labels measured for mPaint's current text size
+     */
+    private Labels getLabels() {
+    	Labels labels = mLabels;
+    	if(labels == null || labels.textSize != mPaint.getTextSize()) {
+    		labels = mLabels = new Labels(getContext(), mPaint);
+    	}
+    	return labels;
+    }
+    
+    /**
+     * Paints the game, unless a GameThread is doing it.
      */
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         
+        if(mUseSurface == false) {
+        	long start = System.nanoTime();
+        	render(canvas);
+        	recordDraw(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Paints the game!
+     */
+    void render(Canvas canvas) {
         if(mInitialized == false) {
+        	if(mSession != null || mWatching != null) drawNetStatus(canvas, getLabels(), getWidth(), getHeight());
         	return;
         }
         
-    	Context context = getContext();
+    	Labels labels = getLabels();
     	
         // Draw the paddles / touch boundaries
-    	mRed.draw(canvas);
-    	mBlue.draw(canvas);
+    	drawPaddle(canvas, mRed, mLastRedX, SpriteCache.RED, Color.RED);
+    	drawPaddle(canvas, mBlue, mLastBlueX, SpriteCache.BLUE, Color.BLUE);
 
     	// Draw touchboxes if needed
     	if(gameRunning() && mRed.player && mCurrentState == State.Running)
-        	mRed.drawTouchbox(canvas);
+        	drawTouchbox(canvas, mRed, Color.RED);
         
         if(gameRunning() && mBlue.player && mCurrentState == State.Running)
-        	mBlue.drawTouchbox(canvas);
+        	drawTouchbox(canvas, mBlue, Color.BLUE);
         
         // Draw ball stuff
         mPaint.setStyle(Style.FILL);
         mPaint.setColor(Color.WHITE);
         
-        mBall.draw(canvas);
+        drawBall(canvas);
         
         // If either is a not a player, blink and let them know they can join in!
         // This blinks with the ball.
-        if(mBall.serving()) {
-        	String join = context.getString(R.string.join_in);
-        	int joinw = (int) mPaint.measureText(join);
+        if(mBall.serving() && mWatching == null) {
+        	String join = labels.join;
+        	int joinw = labels.joinWidth;
         	
         	if(!mRed.player) {
         		mPaint.setColor(Color.RED);
-        		canvas.drawText(join, getWidth() / 2 - joinw / 2, mRed.touchCenterY(), mPaint);
+        		canvas.drawText(join, fieldWidth() / 2 - joinw / 2, mRed.touchCenterY(), mPaint);
         	}
         	
         	if(!mBlue.player) {
         		mPaint.setColor(Color.BLUE);
-        		canvas.drawText(join, getWidth() / 2 - joinw / 2, mBlue.touchCenterY(), mPaint);
+        		canvas.drawText(join, fieldWidth() / 2 - joinw / 2, mBlue.touchCenterY(), mPaint);
         	}
         }
         
         // Show where the player can touch to pause the game
-        if(mBall.serving()) {
-        	String pause = context.getString(R.string.pause);
-        	int pausew = (int) mPaint.measureText(pause);
+        if(mBall.serving() && mSession == null && mWatching == null) {
+        	String pause = labels.pause;
+        	int pausew = labels.pauseWidth;
         
         	mPaint.setColor(Color.GREEN);
         	mPaint.setStyle(Style.STROKE);
         	canvas.drawRect(mPauseTouchBox, mPaint);
-        	canvas.drawText(pause, getWidth() / 2 - pausew / 2, getHeight() / 2, mPaint);
+        	canvas.drawText(pause, fieldWidth() / 2 - pausew / 2, fieldHeight() / 2, mPaint);
         }
 
     	// Paint a PAUSED message
         if(gameRunning() && mCurrentState == State.Stopped) {
-        	String s = context.getString(R.string.paused);
-        	int width = (int) mPaint.measureText(s);
-        	int height = (int) (mPaint.ascent() + mPaint.descent()); 
+        	String s = labels.paused;
+        	int width = labels.pausedWidth;
+        	int height = labels.height;
         	mPaint.setColor(Color.WHITE);
-        	canvas.drawText(s, getWidth() / 2 - width / 2, getHeight() / 2 - height / 2, mPaint);
+        	canvas.drawText(s, fieldWidth() / 2 - width / 2, fieldHeight() / 2 - height / 2, mPaint);
         }
         
         // Draw a 'lives' counter
-    	mPaint.setColor(Color.WHITE);
-    	mPaint.setStyle(Style.FILL_AND_STROKE);
-    	for(int i = 0; i < mRed.getLives(); i++) {
-    		canvas.drawCircle(Ball.RADIUS + PADDING + i * (2 * Ball.RADIUS + PADDING),
-    				PADDING + Ball.RADIUS,
-    				Ball.RADIUS,
-    				mPaint);
-    	}
-    	
-    	for(int i = 0; i < mBlue.getLives(); i++) {
-    		canvas.drawCircle(Ball.RADIUS + PADDING + i * (2 * Ball.RADIUS + PADDING),
-    				getHeight() - PADDING - Ball.RADIUS,
-    				Ball.RADIUS,
-    				mPaint);
-    	}
+        if(mUseSprites) {
+        	mSprites.drawLives(canvas, mRed.getLives(), PADDING, PADDING + Ball.RADIUS);
+        	mSprites.drawLives(canvas, mBlue.getLives(), PADDING, fieldHeight() - PADDING - Ball.RADIUS);
+        }
+        else {
+        	mPaint.setColor(Color.WHITE);
+        	mPaint.setStyle(Style.FILL_AND_STROKE);
+        	for(int i = 0; i < mRed.getLives(); i++) {
+        		canvas.drawCircle(Ball.RADIUS + PADDING + i * (2 * Ball.RADIUS + PADDING),
+        				PADDING + Ball.RADIUS,
+        				Ball.RADIUS,
+        				mPaint);
+        	}
+        	
+        	for(int i = 0; i < mBlue.getLives(); i++) {
+        		canvas.drawCircle(Ball.RADIUS + PADDING + i * (2 * Ball.RADIUS + PADDING),
+        				fieldHeight() - PADDING - Ball.RADIUS,
+        				Ball.RADIUS,
+        				mPaint);
+        	}
+        }
         
         // Announce the winner!
-        if(!gameRunning()) {
+        if(!mEngine.gameRunning()) {
+        	mPaint.setStyle(Style.FILL_AND_STROKE);
         	mPaint.setColor(Color.GREEN);
-        	String s = "You both lose";
+        	String s = labels.bothLose;
+        	int width = labels.bothLoseWidth;
         	
         	if(!mBlue.living()) {
-        		s = context.getString(R.string.red_wins);
+        		s = labels.redWins;
+        		width = labels.redWinsWidth;
         		mPaint.setColor(Color.RED);
         	}
         	else if(!mRed.living()) {
-        		s = context.getString(R.string.blue_wins);
+        		s = labels.blueWins;
+        		width = labels.blueWinsWidth;
         		mPaint.setColor(Color.BLUE);
         	}
         	
-        	int width = (int) mPaint.measureText(s);
-        	int height = (int) (mPaint.ascent() + mPaint.descent()); 
-        	canvas.drawText(s, getWidth() / 2 - width / 2, getHeight() / 2 - height / 2, mPaint);
-        }        
+        	int height = labels.height;
+        	canvas.drawText(s, fieldWidth() / 2 - width / 2, fieldHeight() / 2 - height / 2, mPaint);
+        }
+        
+        // Tell the player if the match against the other device is over
+        if(mSession != null || mWatching != null) {
+        	drawNetStatus(canvas, labels, fieldWidth(), fieldHeight());
+        }
+        
+        if(mShowHud) {
+        	mHud.draw(canvas, hudX(), hudY());
+        }
+    }
+    
+    private void drawNetStatus(Canvas canvas, Labels labels, int width, int height) {
+    	String s;
+    	int w;
+    	if(mWatching != null) {
+    		if(mWatching.isClosed()) {
+    			s = labels.watchEnded;
+    			w = labels.watchEndedWidth;
+    		}
+    		else if(mWatching.getEngine() == null) {
+    			s = labels.watchWaiting;
+    			w = labels.watchWaitingWidth;
+    		}
+    		else {
+    			return;
+    		}
+    	}
+    	else {
+    		switch(mSession.getState()) {
+    		case CONNECTING:
+    			s = labels.netWaiting;
+    			w = labels.netWaitingWidth;
+    			break;
+    		case DESYNCED:
+    			s = labels.netDesynced;
+    			w = labels.netDesyncedWidth;
+    			break;
+    		case DISCONNECTED:
+    			s = labels.netDisconnected;
+    			w = labels.netDisconnectedWidth;
+    			break;
+    		default:
+    			return;
+    		}
+    	}
+    	mPaint.setStyle(Style.FILL);
+    	mPaint.setColor(Color.WHITE);
+    	canvas.drawText(s, width / 2 - w / 2, height / 2 - labels.height / 2, mPaint);
+    }
+    
+    /** The HUD goes in the top left, under red's lives */
+    private int hudX() {
+    	return PADDING;
+    }
+    
+    private int hudY() {
+    	return 2 * (PADDING + Ball.RADIUS);
     }
 
     /**
@@ -619,10 +898,35 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
      * game.
      */
 	public boolean onTouch(View v, MotionEvent mo) {
+		long start = System.nanoTime();
+		boolean handled = handleTouch(v, mo);
+		mStats.addInput(System.nanoTime() - start);
+		return handled;
+	}
+	
+	private boolean handleTouch(View v, MotionEvent mo) {
 		if(v != this || !gameRunning()) return false;
 		
 		// We want to support multiple touch and single touch
 		InputHandler handle = InputHandler.getInstance();
+		
+		// A player joining in steers from the touch that joins, so join
+		// before its samples go out
+		if(mo.getAction() == MotionEvent.ACTION_DOWN) {
+			for(int i = 0; i < handle.getTouchCount(mo); i++) {
+				int tx = (int) handle.getX(mo, i);
+				int ty = (int) handle.getY(mo, i);
+				if(ours(mBlue) && !mBlueInput.isPlaying() && mBlue.inTouchbox(tx,ty)) {
+					mBlueInput.postJoin();
+				}
+				else if(ours(mRed) && !mRedInput.isPlaying() && mRed.inTouchbox(tx,ty)) {
+					mRedInput.postJoin();
+				}
+			}
+		}
+		
+		// Every sample since the last event steers, not just the latest
+		handle.dispatch(mo, mTouchSamples);
 
 		// Loop through all the pointers that we detected and 
 		// process them as normal touch events.
@@ -630,15 +934,11 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 			int tx = (int) handle.getX(mo, i);
 			int ty = (int) handle.getY(mo, i);
 			
-			// Bottom paddle moves when we are playing in one or two player mode and the touch
-			// was in the lower quartile of the screen.
-			if(mBlue.player && mBlue.inTouchbox(tx,ty)) {
-				mBlue.destination = tx;
-			}
-			else if(mRed.player && mRed.inTouchbox(tx,ty)) {
-				mRed.destination = tx;
+			if(steering(tx, ty)) {
+				// Already posted along with the samples before it
 			}
-			else if(mo.getAction() == MotionEvent.ACTION_DOWN && mPauseTouchBox.contains(tx, ty)) {
+			else if(mo.getAction() == MotionEvent.ACTION_DOWN && mSession == null
+					&& mPauseTouchBox.contains(tx, ty)) {
 				if(mCurrentState != State.Stopped) {
 					mLastState = mCurrentState;
 					mCurrentState = State.Stopped;
@@ -648,33 +948,68 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 					mLastState = State.Stopped;
 				}
 			}
-			
-			// In case a player wants to join in...
-			if(mo.getAction() == MotionEvent.ACTION_DOWN) {
-				if(!mBlue.player && mBlue.inTouchbox(tx,ty)) {
-					mBlue.player = true;
-				}
-				else if(!mRed.player && mRed.inTouchbox(tx,ty)) {
-					mRed.player = true;
-				}
-			}
 		}
 		
 		return true;
 	}
 	
+	/**
+	 * @return whether a touch here moves a player's paddle, i.e. is in the
+	 * touchbox of a paddle someone's playing. UI thread only.
+	 */
+	private boolean steering(int tx, int ty) {
+		return (ours(mBlue) && mBlueInput.isPlaying() && mBlue.inTouchbox(tx, ty))
+			|| (ours(mRed) && mRedInput.isPlaying() && mRed.inTouchbox(tx, ty));
+	}
+	
+	/**
+	 * @return false for the other device's paddle in a versus match; its
+	 * latch is never drained, so touches there would just go stale
+	 */
+	private boolean ours(Paddle paddle) {
+		return mSession == null || paddle == (mSession.isRed() ? mRed : mBlue);
+	}
+	
+	/** Sends each touch sample to the paddle whose touchbox it's in */
+	private final InputHandler.SampleListener mTouchSamples = new InputHandler.SampleListener() {
+		public void onSample(float x, float y, long time, boolean down) {
+			int tx = (int) x, ty = (int) y;
+			if(ours(mBlue) && mBlueInput.isPlaying() && mBlue.inTouchbox(tx, ty)) {
+				mBlueInput.postSample(tx, time, down);
+			}
+			else if(ours(mRed) && mRedInput.isPlaying() && mRed.inTouchbox(tx, ty)) {
+				mRedInput.postSample(tx, time, down);
+			}
+			else {
+				return;
+			}
+			mInputLatency.posted(InputLatency.TOUCH, time);
+		}
+	};
+	
 	@Override
 	public boolean onTrackballEvent(MotionEvent event) {
+		long start = System.nanoTime();
+		boolean handled = handleTrackball(event);
+		mStats.addInput(System.nanoTime() - start);
+		return handled;
+	}
+	
+	private boolean handleTrackball(MotionEvent event) {
 		if(!gameRunning()) return false;
 		
-		if(mBlue.player == false) {
-			mBlue.player = true;
-			mBlue.destination = mBlue.centerX();
+		// Against another device the trackball steers whichever paddle is ours
+		InputLatch input = (mSession != null && mSession.isRed()) ? mRedInput : mBlueInput;
+		
+		long time = InputHandler.toNanoTime(event.getEventTime());
+		if(!input.isPlaying()) {
+			input.postJoin();
 		}
 		
 		switch(event.getAction()) {
 		case MotionEvent.ACTION_MOVE:
-			mBlue.destination = (int) Math.max(0, Math.min(getWidth(), mBlue.destination + SCROLL_SENSITIVITY * event.getX()));
+			input.postNudge((int) (SCROLL_SENSITIVITY * event.getX()));
+			mInputLatency.posted(InputLatency.TRACKBALL, time);
 			break;
 		}
 		
@@ -685,8 +1020,12 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 	 * Reset the lives, paddles and the like for a new game.
 	 */
 	public void newGame() {
+		// Both devices would have to agree on it, and spectators don't get a say
+		if(mSession != null || mWatching != null) return;
+		
 		resetPaddles();
 		serveBall();
+		rememberPositions();
 		resumeLastState();
 	}
 	
@@ -694,13 +1033,7 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 	 * Resets the lives and the position of the paddles.
 	 */
 	private void resetPaddles() {
-		int mid = getWidth() / 2;
-		mRed.setPosition(mid);
-		mBlue.setPosition(mid);
-		mRed.destination = mid;
-		mBlue.destination = mid;
-		mRed.setLives(STARTING_LIVES);
-		mBlue.setLives(STARTING_LIVES);
+		mEngine.resetPaddles();
 	}
 	
 	/**
@@ -720,11 +1053,14 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 	}
 	
 	public boolean gameRunning() {
-		return mInitialized && mRed != null && mBlue != null
-			&& mRed.living() && mBlue.living();
+		return mInitialized && mEngine != null && mEngine.gameRunning() && mWatching == null
+			&& (mSession == null || mSession.getState() == LockstepSession.State.PLAYING);
 	}
 	
 	public void pause() {
+		// The other device can't wait for us
+		if(mSession != null) return;
+		
 		mLastState = mCurrentState;
 		mCurrentState = State.Stopped;
 	}
@@ -733,25 +1069,242 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 		return false;
 	}
 
+	/**
+	 * Timing for recent frames. Safe to read from any thread, e.g. to
+	 * export it from a test.
+	 */
+	public FrameStats getFrameStats() {
+		return mStats;
+	}
+	
+	/**
+	 * Adds to the time spent drawing this frame, which has just gone to the
+	 * screen. Only the thread running the loop may call this.
+	 */
+	void recordDraw(long nanos) {
+		mStats.add(FrameStats.DRAW, nanos);
+		if(mFrameLog != null) mFrameLog.record(LOG_DRAW, nanos);
+		mInputLatency.drawn(System.nanoTime());
+	}
+	
+	/**
+	 * @return input latencies so far, per source; read them only once the
+	 * game has stopped
+	 */
+	public InputLatency getInputLatency() {
+		return mInputLatency;
+	}
+	
+	/**
+	 * @return the middle of blue's touch zone, or -1 until the first frame
+	 * has laid out the field
+	 */
+	int getBlueTouchY() {
+		return mInitialized ? mBlue.touchCenterY() : -1;
+	}
+	
+	/**
+	 * Streams tick, draw and input latency histograms to <code>file</code>
+	 * while the game runs, if frame logging is turned on in the preferences.
+	 * See HistogramLog for reading them back.
+	 */
+	public void setFrameLog(File file) {
+		if(!mLogFrames || mFrameLog != null) return;
+		mFrameLog = new HistogramSink(file, LOG_SERIES, LOG_INTERVAL, System.nanoTime());
+		mInputLatency.setSink(mFrameLog, LOG_INPUT);
+	}
+	
+	/**
+	 * Turns frame logging on whatever the preferences say, for runs nobody's
+	 * watching. Call it before {@link #setFrameLog(File)}.
+	 */
+	public void setLogFrames(boolean log) {
+		mLogFrames = log;
+	}
+	
+	/**
+	 * @param time SystemClock.uptimeMillis() when the activity started, for
+	 * logging how long it took to get to the first frame
+	 */
+	public void setLaunchTime(long time) {
+		mLaunchTime = time;
+	}
+	
+	public void setHudVisible(boolean visible) {
+		mShowHud = visible;
+	}
+	
+	public boolean isHudVisible() {
+		return mShowHud;
+	}
+	
 	public void setPlayerControl(boolean red, boolean blue) {
 		mRedPlayer = red;
 		mBluePlayer = blue;
 	}
+	
+	/**
+	 * Plays against another device instead, which should be doing the same
+	 * with our address. The match starts once it answers. Call before the
+	 * game starts.
+	 * @param host the other device's IP address; names aren't looked up,
+	 * since this runs on the UI thread
+	 * @return false if we couldn't set up to talk to it
+	 */
+	public boolean connect(String host) {
+		InetAddress address = Addresses.numeric(host);
+		if(address == null) {
+			Log.w(TAG, "Not an IP address: " + host);
+			return false;
+		}
+		
+		try {
+			InetSocketAddress peer = new InetSocketAddress(address, LockstepSession.DEFAULT_PORT);
+			
+			DatagramChannel channel = DatagramChannel.open();
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(LockstepSession.DEFAULT_PORT));
+			
+			// Each device fits the field to its own screen; until we're laid
+			// out, the display is as good a guess as any
+			DisplayMetrics metrics = getResources().getDisplayMetrics();
+			mSession = new LockstepSession(channel, peer, metrics.widthPixels, metrics.heightPixels,
+					mBallSpeedModifier, STARTING_LIVES + mLivesModifier, LockstepSession.DEFAULT_DELAY,
+					System.nanoTime());
+			return true;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Couldn't open a socket for " + host, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Watches the match another device is broadcasting instead of playing.
+	 * Call before the game starts.
+	 * @param host the broadcasting device's IP address; names aren't looked
+	 * up, since this runs on the UI thread
+	 * @return false if we couldn't set up to connect to it
+	 */
+	public boolean watch(String host) {
+		try {
+			mWatching = BroadcastClient.connect(host, BroadcastServer.DEFAULT_PORT);
+			return true;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Couldn't connect to " + host, e);
+			return false;
+		}
+	}
 
 	public void resume() {
 		mContinue = true;
-		update();
+		if(mUseSurface) startThread();
+		else update();
 	}
 	
 	public void stop() {
 		mContinue = false;
+		stopThread();
+		
+		// Keep the time we're stopped out of the log
+		if(mFrameLog != null) mFrameLog.flush(System.nanoTime());
+	}
+	
+	/**
+	 * Hands over the surface to draw into, if the player asked for one. If not
+	 * the surface is hidden and we keep drawing in onDraw().
+	 */
+	public void setSurface(SurfaceView surface) {
+		if(!mUseSurface) {
+			surface.setVisibility(View.GONE);
+			return;
+		}
+		
+		// Nothing to draw on this view itself, it just takes input
+		setWillNotDraw(true);
+		mHolder = surface.getHolder();
+		mHolder.addCallback(this);
+	}
+	
+	public void surfaceCreated(SurfaceHolder holder) {
+		mSurfaceReady = true;
+		if(mContinue) startThread();
+	}
+	
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+	}
+	
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		mSurfaceReady = false;
+		stopThread();
+	}
+	
+	private void startThread() {
+		if(mThread != null || !mSurfaceReady) return;
+		mThread = new GameThread(this, mHolder);
+		mThread.start();
+	}
+	
+	private void stopThread() {
+		if(mThread == null) return;
+		mThread.finish();
+		mThread = null;
+	}
+	
+	/**
+	 * Saves a replay of the match so far. Only call this while the game loop
+	 * is stopped.
+	 * @param file Where to save it
+	 */
+	public void saveReplay(File file) {
+		if(mRecorder == null) return;
+		
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				mRecorder.finish(mEngine).write(out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Couldn't save replay to " + file, e);
+		}
 	}
 	
 	/**
 	 * Release all resource locks.
 	 */
 	public void release() {
-		mPool.release();
+		mSprites.release();
+		
+		if(mSession != null) {
+			mSession.close();
+			mSession = null;
+		}
+		
+		if(mWatching != null) {
+			mWatching.close();
+			mWatching = null;
+		}
+		
+		if(mBroadcast != null) {
+			mBroadcast.close(0);
+			mBroadcast = null;
+		}
+		
+		if(mFrameLog != null) {
+			mInputLatency.setSink(null, 0);
+			try {
+				mFrameLog.close(System.nanoTime());
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Couldn't write frame log", e);
+			}
+			mFrameLog = null;
+		}
 	}
 	
 	public void toggleMuted() {
@@ -776,341 +1329,120 @@ public class PongView extends View implements OnTouchListener, OnKeyListener {
 		Toast.makeText(ctx, rid, Toast.LENGTH_SHORT).show();
 	}
 	
-	private void playSound(int rid) {
+	private void playSound(int effect) {
 		if(mMuted == true) return;
-		mPool.play(rid, 0.2f, 0.2f, 1, 0, 1.0f);
+		mSounds.post(effect);
 	}
 	
-	class Ball {
-		public float x, y, xp, yp, vx, vy;
-		public float speed = SPEED;
-		
-		protected double mAngle;
-		protected boolean mNextPointKnown = false;
-		protected int mCounter = 0;
-		
-		public Ball() {
-			findVector();
-		}
-		
-		public Ball(Ball other) {
-			x = other.x;
-			y = other.y;
-			xp = other.xp;
-			yp = other.yp;
-			vx = other.vx;
-			vy = other.vy;
-			speed = other.speed;
-			mAngle = other.mAngle;
-		}
-		
-		protected void findVector() {
-			vx = (float) (speed * Math.cos(mAngle));
-			vy = (float) (speed * Math.sin(mAngle));
-		}
-		
-		public boolean goingUp() {
-			return mAngle >= Math.PI;
-		}
-		
-		public boolean goingDown() {
-			return !goingUp();
-		}
-		
-		public boolean goingLeft() {
-			return mAngle <= 3 * Math.PI / 2 && mAngle > Math.PI / 2;
-		}
-		
-		public boolean goingRight() {
-			return !goingLeft();
-		}
-		
-		public double getAngle() {
-			return mAngle;
-		}
-		
-		public boolean serving() {
-			return mCounter > 0;
-		}
-		
-		public void pause() {
-			mCounter = 60;
-		}
-		
-		public void move() {
-			if(mCounter <= 0) {
-				x = keepX(x + vx); 
-				y += vy;
-			}
-			else {
-				mCounter--;
-			}
-		}
-		
-		public void randomAngle() {
-			setAngle( Math.PI / 2 + RNG.nextInt(2) * Math.PI + Math.PI / 2 * RNG.nextGaussian() );
-		}
-		
-		public void setAngle(double angle) {
-			mAngle = angle % (2 * Math.PI);
-			mAngle = boundAngle(mAngle);
-			findVector();
-		}
-		
-		public void draw(Canvas canvas) {
-	        if((mCounter / 10) % 2 == 1 || mCounter == 0)
-	        	canvas.drawCircle(x, y, Ball.RADIUS, mPaint);
-		}
-		
-		/**
-		 * Tells us if the ball collides with a rectangle.
-		 * @param r, the rectangle
-		 * @return true if the ball is colliding, false if not
-		 */
-		public boolean collides(Paddle p) {
-			return p.collides(this); 
-		}
-		
-		/**
-		 * Method bounces the ball across a vertical axis. Seriously it's that easy.
-		 * Math failed me when figuring this out so I guessed instead.
-		 */
-		public void bouncePaddle(Paddle p) {
-			double angle;
-			
-			// up-right case
-			if(mAngle >= Math.PI) {
-				angle = 4 * Math.PI - mAngle;
-			}
-			// down-left case
-			else {
-				angle = 2 * Math.PI - mAngle;
-			}
-			
-			angle %= (2 * Math.PI);
-			angle = salt(angle, p);
-//			normalize(p);
-			setAngle(angle);
-		}
-
-		/**
-		 * Bounce the ball off a horizontal axis.
-		 */
-		public void bounceWall() {
-			setAngle(3 * Math.PI - mAngle);
-		}
-		
-		protected double salt(double angle, Paddle paddle) {
-			int cx = paddle.centerX();
-			double halfWidth = paddle.getWidth() / 2;
-			double change = 0.0;
-			
-			if(goingUp()) change = SALT * ((cx - x) / halfWidth);
-			else change = SALT * ((x - cx) / halfWidth);
-			
-			return boundAngle(angle, change);
-		}
-		
-		/**
-		 * Normalizes a ball's position after it has hit a paddle.
-		 * @param r The paddle the ball has hit.
-		 */
-		protected void normalize(Paddle p) {
-			// Quit if the ball is outside the width of the paddle
-			if(x < p.getLeft() || x > p.getRight()) {
-				return;
-			}
-			
-			// Case if ball is above the paddle
-			if(y < p.getTop()) {
-				y = Math.min(y, p.getTop() - Ball.RADIUS);
-			}
-			else if(y > p.getBottom()) {
-				y = Math.max(y, p.getBottom() + Ball.RADIUS);
-			}
-		}
-		
-		/**
-		 * Bounds sum of <code>angle</code> and <code>angleChange</code> to the side of the
-		 * unit circle that <code>angle</code> is on.
-		 * @param angle The initial angle.
-		 * @param angleChange Amount to add to angle.
-		 * @return bounded angle sum
-		 */
-		protected double boundAngle(double angle, double angleChange) {
-			return boundAngle(angle + angleChange, angle >= Math.PI);
-		}
-		
-		protected double boundAngle(double angle) {
-			return boundAngle(angle, angle >= Math.PI);
-		}
-		
-		/**
-		 * Bounds an angle in radians to a subset of the top
-		 * or bottom part of the unit circle.
-		 * @param angle The angle in radians to bound.
-		 * @param top Flag which indicates if we should bound to the top or not.
-		 * @return the bounded angle
-		 */
-		protected double boundAngle(double angle, boolean top) {
-			if(top) {
-				return Math.max(Math.PI + BOUND, Math.min(2 * Math.PI - BOUND, angle));
-			}
-
-			return Math.max(BOUND, Math.min(Math.PI - BOUND, angle));
-		}
-		
-
-		/**
-		 * Given it a coordinate, it transforms it into a proper x-coordinate for the ball.
-		 * @param x, the x-coord to transform
-		 * @return
-		 */
-		protected float keepX(float x) {
-			return bound(x, Ball.RADIUS, getWidth() - Ball.RADIUS);
+	public void onWallBounce() {
+		playSound(mWallSFX);
+	}
+	
+	public void onPaddleBounce(Paddle paddle) {
+		playSound(mPaddleSFX);
+	}
+	
+	public void onLifeLost(Paddle paddle) {
+		if(paddle.living()) playSound(mMissSFX);
+		else playSound(mWinSFX);
+	}
+	
+	/**
+	 * Where to draw the ball this frame. A served ball has jumped to the
+	 * middle, so don't smear it across the field.
+	 */
+	private float ballDrawX() {
+		return (mBall.serving()) ? mBall.x : lerp(mLastBallX, mBall.x);
+	}
+	
+	private float ballDrawY() {
+		return (mBall.serving()) ? mBall.y : lerp(mLastBallY, mBall.y);
+	}
+	
+	private void drawBall(Canvas canvas) {
+		if(!mBall.visible()) return;
+		if(mUseSprites) mSprites.drawBall(canvas, ballDrawX(), ballDrawY());
+		else canvas.drawCircle(ballDrawX(), ballDrawY(), Ball.RADIUS, mPaint);
+	}
+	
+	private void drawPaddle(Canvas canvas, Paddle paddle, int lastLeft, int sprite, int color) {
+		IntRect r = paddle.getRect();
+		float left = lerp(lastLeft, r.left);
+		if(mUseSprites) {
+			mSprites.drawPaddle(canvas, sprite, left, r.top, r.width(), r.height());
+			return;
 		}
 		
-		public static final double BOUND = Math.PI / 9;
-		public static final float SPEED = 4.0f; 
-		public static final int RADIUS = 4;
-		public static final double SALT = 4 * Math.PI / 9;
+		mPaint.setColor(color);
+		mPaint.setStyle(Style.FILL);
+		canvas.drawRect(left, r.top, left + r.width(), r.bottom, mPaint);
 	}
-
-	class Paddle {
-		protected int mColor;
-		protected Rect mRect;
-		protected Rect mTouch;
-		protected int mHandicap = 0;
-		protected int mSpeed = PLAYER_PADDLE_SPEED;
-		protected int mLives = STARTING_LIVES;
+	
+	private void drawTouchbox(Canvas canvas, Paddle paddle, int color) {
+		IntRect touch = paddle.getTouchbox();
+		mPaint.setColor(color);
+		mPaint.setStyle(Style.STROKE);
+		
+		// Heuristic for deciding which line to paint:
+		// draw the one closest to middle
+		int mid = fieldHeight() / 2;
+		int top = Math.abs(touch.top - mid), bot = Math.abs(touch.bottom - mid);
+		float y = (top < bot) ? touch.top : touch.bottom;
+		canvas.drawLine(touch.left, y, touch.right, y, mPaint);
+	}
+	
+	/**
+	 * Strings drawn over the game along with their measurements, so that
+	 * drawing a frame never has to look up resources or measure text. These
+	 * are immutable; swap in a new set when the text size or locale changes.
+	 */
+	static class Labels {
+		final String join, pause, paused, redWins, blueWins, bothLose;
+		final int joinWidth, pauseWidth, pausedWidth, redWinsWidth, blueWinsWidth, bothLoseWidth;
 		
-		public boolean player = false;
-
-		public int destination;
+		/** Where a match against another device is at */
+		final String netWaiting, netDesynced, netDisconnected;
+		final int netWaitingWidth, netDesyncedWidth, netDisconnectedWidth;
 		
-		public Paddle(int c, int y) {
-			mColor = c;
-			
-			int mid = PongView.this.getWidth() / 2;
-			mRect = new Rect(mid - PADDLE_WIDTH, y,
-					mid + PADDLE_WIDTH, y + PADDLE_THICKNESS);
-			destination = mid;
-		}
+		/** Where a match we're watching is at */
+		final String watchWaiting, watchEnded;
+		final int watchWaitingWidth, watchEndedWidth;
 		
-		public void move() {
-			move(mSpeed);
-		}
+		/** ascent() + descent() of the text, which is negative */
+		final int height;
 		
-		public void move(boolean handicapped) {
-			move((handicapped) ? mSpeed - mHandicap : mSpeed);
-		}
+		/** Text size these were measured at */
+		final float textSize;
 		
-		public void move(int s) {
-			int dx = (int) Math.abs(mRect.centerX() - destination);
+		Labels(Context context, Paint paint) {
+			// Measure with a copy since another thread may be drawing with paint
+			Paint p = new Paint(paint);
+			textSize = p.getTextSize();
+			height = (int) (p.ascent() + p.descent());
 			
-			if(destination < mRect.centerX()) {
-				mRect.offset( (dx > s) ? -s : -dx, 0);
-			}
-			else if(destination > mRect.centerX()) {
-				mRect.offset( (dx > s) ? s : dx, 0);
-			}
-		}
-		
-		public void setLives(int lives) {
-			mLives = Math.max(0, lives);
-		}
-		
-		public void setPosition(int x) {
-			mRect.offset(x - mRect.centerX(), 0);
-		}
-		
-		public void setTouchbox(Rect r) {
-			mTouch = r;
-		}
-		
-		public void setSpeed(int s) {
-			mSpeed = (s > 0) ? s : mSpeed;
-		}
-		
-		public void setHandicap(int h) {
-			mHandicap = (h >= 0 && h < mSpeed) ? h : mHandicap; 
-		}
-		
-		public boolean inTouchbox(int x, int y) {
-			return mTouch.contains(x, y);
-		}
-		
-		public void loseLife() {
-			mLives = Math.max(0, mLives - 1);
-		}
-		
-		public boolean living() {
-			return mLives > 0;
-		}
-		
-		public int getWidth() {
-			return Paddle.PADDLE_WIDTH;
-		}
-		
-		public int getTop() {
-			return mRect.top;
-		}
-		
-		public int getBottom() {
-			return mRect.bottom;
-		}
-		
-		public int centerX() {
-			return mRect.centerX();
-		}
-		
-		public int centerY() {
-			return mRect.centerY();
-		}
-		
-		public int getLeft() {
-			return mRect.left;
-		}
-		
-		public int getRight() {
-			return mRect.right;
-		}
-		
-		public int touchCenterY() {
-			return mTouch.centerY();
-		}
-		
-		public int getLives() {
-			return mLives;
-		}
-		
-		public void draw(Canvas canvas) {
-			mPaint.setColor(mColor);
-			mPaint.setStyle(Style.FILL);
-			canvas.drawRect(mRect, mPaint);
-		}
-		
-		public void drawTouchbox(Canvas canvas) {
-			mPaint.setColor(mColor);
-			mPaint.setStyle(Style.STROKE);
+			join = context.getString(R.string.join_in);
+			pause = context.getString(R.string.pause);
+			paused = context.getString(R.string.paused);
+			redWins = context.getString(R.string.red_wins);
+			blueWins = context.getString(R.string.blue_wins);
+			bothLose = "You both lose";
+			netWaiting = context.getString(R.string.net_waiting);
+			netDesynced = context.getString(R.string.net_desynced);
+			netDisconnected = context.getString(R.string.net_disconnected);
+			watchWaiting = context.getString(R.string.watch_waiting);
+			watchEnded = context.getString(R.string.watch_ended);
 			
-			// Heuristic for deciding which line to paint:
-			// draw the one closest to middle
-			int mid = getHeight() / 2;
-			int top = Math.abs(mTouch.top - mid), bot = Math.abs(mTouch.bottom - mid);
-			float y = (top < bot) ? mTouch.top : mTouch.bottom;
-			canvas.drawLine(mTouch.left, y, mTouch.right, y, mPaint);
+			joinWidth = (int) p.measureText(join);
+			pauseWidth = (int) p.measureText(pause);
+			pausedWidth = (int) p.measureText(paused);
+			redWinsWidth = (int) p.measureText(redWins);
+			blueWinsWidth = (int) p.measureText(blueWins);
+			bothLoseWidth = (int) p.measureText(bothLose);
+			netWaitingWidth = (int) p.measureText(netWaiting);
+			netDesyncedWidth = (int) p.measureText(netDesynced);
+			netDisconnectedWidth = (int) p.measureText(netDisconnected);
+			watchWaitingWidth = (int) p.measureText(watchWaiting);
+			watchEndedWidth = (int) p.measureText(watchEnded);
 		}
-		
-		public boolean collides(Ball b) {
-			return b.x >= mRect.left && b.x <= mRect.right && 
-			b.y >= mRect.top - Ball.RADIUS && b.y <= mRect.bottom + Ball.RADIUS;
-		}
-		
-		/** Thickness of the paddle */
-		private static final int PADDLE_THICKNESS = 10;
-		
-		/** Width of the paddle */
-		private static final int PADDLE_WIDTH = 40;
 	}
 }
@@ -0,0 +1,133 @@
+package org.oep.pong;
+
+import org.oep.pong.engine.Ball;
+import org.oep.pong.engine.FixedBall;
+import org.oep.pong.engine.PongEngine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Gets everything a game needs ready while the player is still on the title
+ * screen: the preferences file is read into memory, the engine's lookup
+ * tables are built and the sound effects are decoded, all on a background
+ * thread. There's one per process, so a second game starts as warm as the
+ * first left off.
+ * 
+ * Nothing waits on this. A game started before it's done reads what it
+ * needs itself, as it always did, and plays sounds once they've loaded.
+ */
+public class Preloader {
+	private static final String TAG = "Preloader";
+	
+	private static Preloader sInstance;
+	
+	/** Effect ids in getSounds(), in the order they're added */
+	public static final int SFX_WIN = 0, SFX_MISS = 1, SFX_PADDLE = 2, SFX_WALL = 3;
+	
+	private static final float SFX_VOLUME = 0.2f;
+	
+	/** Bounce sounds closer together than this just sound like noise */
+	private static final long BOUNCE_GAP = 50;
+	
+	private final Context mContext;
+	private final SoundQueue mSounds;
+	
+	private Thread mThread;
+	
+	/** When preloading started, and how long the preferences took to warm up */
+	private volatile long mStartTime = -1;
+	private volatile long mConfigTime = -1;
+	
+	public static synchronized Preloader get(Context context) {
+		if(sInstance == null) {
+			sInstance = new Preloader(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+	
+	private Preloader(Context context) {
+		mContext = context;
+		mSounds = new SoundQueue(new SoundPool(3, AudioManager.STREAM_MUSIC, 0));
+		mSounds.add(SFX_VOLUME, 0);
+		mSounds.add(SFX_VOLUME, 0);
+		mSounds.add(SFX_VOLUME, BOUNCE_GAP);
+		mSounds.add(SFX_VOLUME, BOUNCE_GAP);
+	}
+	
+	/**
+	 * Starts preloading, if it hasn't been already.
+	 */
+	public synchronized void start() {
+		if(mThread != null) return;
+		
+		mStartTime = SystemClock.uptimeMillis();
+		mThread = new Thread("Preloader") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				preload();
+			}
+		};
+		mThread.start();
+	}
+	
+	private void preload() {
+		// The first read loads and parses the whole file; after that it's
+		// all in memory for PongView.loadPreferences()
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+		prefs.getAll();
+		mContext.getResources().getStringArray(R.array.values_ai_strategies);
+		mConfigTime = SystemClock.uptimeMillis() - mStartTime;
+		
+		// Build the static tables the physics uses
+		initialize(PongEngine.class);
+		initialize(Ball.class);
+		initialize(FixedBall.class);
+		
+		mSounds.load(SFX_WIN, mContext, R.raw.wintone);
+		mSounds.load(SFX_MISS, mContext, R.raw.ballmiss);
+		mSounds.load(SFX_PADDLE, mContext, R.raw.paddle);
+		mSounds.load(SFX_WALL, mContext, R.raw.wall);
+		
+		Log.i(TAG, "Preferences ready after " + mConfigTime + "ms, sounds loading after "
+				+ (SystemClock.uptimeMillis() - mStartTime) + "ms");
+	}
+	
+	private static void initialize(Class<?> c) {
+		try {
+			Class.forName(c.getName(), true, c.getClassLoader());
+		}
+		catch (ClassNotFoundException e) {
+			// We already have it
+		}
+	}
+	
+	public SoundQueue getSounds() {
+		return mSounds;
+	}
+	
+	/**
+	 * @return true once the preferences are in memory and every sound has
+	 * finished loading
+	 */
+	public boolean isReady() {
+		return mConfigTime >= 0 && mSounds.isReady();
+	}
+	
+	/**
+	 * Stops the sound thread and frees the sounds. Only for when the app is
+	 * going away; anything after this needs to get() a new one.
+	 */
+	public static synchronized void release() {
+		if(sInstance == null) return;
+		sInstance.mSounds.release();
+		sInstance = null;
+	}
+}
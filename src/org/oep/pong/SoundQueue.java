@@ -0,0 +1,261 @@
+package org.oep.pong;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import android.content.Context;
+import android.media.SoundPool;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Plays sound effects from a thread of its own so the game loop never waits
+ * on SoundPool, which goes across to the audio service on every play().
+ * 
+ * The game posts effects as they happen, which just sets a bit, and calls
+ * {@link #flush()} once a frame. Posting an effect several times in a frame
+ * plays it once, and an effect played again sooner than its minimum gap is
+ * dropped, so a pile of bounces in one tick can't flood the audio service.
+ * 
+ * Effects can be posted before their samples have finished loading; they are
+ * skipped until then. On Android 2.2 and up SoundPool says when each sample
+ * is ready. Before that there's no way to tell, so samples count as ready as
+ * soon as load() returns.
+ */
+public class SoundQueue {
+	/** Most effects a queue can hold, one bit each */
+	public static final int MAX_EFFECTS = 32;
+	
+	private static final int MSG_PLAY = 1, MSG_RELEASE = 2;
+	
+	private final SoundPool mPool;
+	
+	/**
+	 * Per effect: SoundPool sample, or NO_SAMPLE until load() is called and
+	 * LOADING until SoundPool has given it an id
+	 */
+	private final AtomicIntegerArray mSamples = new AtomicIntegerArray(MAX_EFFECTS);
+	private static final int NO_SAMPLE = 0, LOADING = -1;
+	
+	/**
+	 * Samples SoundPool said were loaded before load() had their ids, and
+	 * whether they worked; guarded by this
+	 */
+	private final int[] mEarlySamples = new int[MAX_EFFECTS];
+	private final boolean[] mEarlyOk = new boolean[MAX_EFFECTS];
+	private int mEarly = 0;
+	
+	/** Per effect: volume and minimum gap between plays */
+	private final float[] mVolumes = new float[MAX_EFFECTS];
+	private final long[] mGaps = new long[MAX_EFFECTS];
+	private int mEffects = 0;
+	
+	/** When each effect last played; audio thread only */
+	private final long[] mLastPlayed = new long[MAX_EFFECTS];
+	
+	/** Effects posted since the last flush(), one bit each */
+	private final AtomicInteger mPosted = new AtomicInteger();
+	
+	/** Effects handed to the audio thread that it hasn't played yet */
+	private final AtomicInteger mPending = new AtomicInteger();
+	
+	/** Effects whose samples can be played, and that are done loading either way */
+	private final AtomicInteger mLoaded = new AtomicInteger();
+	private final AtomicInteger mDone = new AtomicInteger();
+	
+	/** Effects dropped for coming too soon after themselves */
+	private volatile int mDropped = 0;
+	
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	
+	public SoundQueue(SoundPool pool) {
+		mPool = pool;
+		
+		mThread = new HandlerThread("SoundQueue", Process.THREAD_PRIORITY_AUDIO);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if(msg.what == MSG_PLAY) play();
+				else if(msg.what == MSG_RELEASE) {
+					mPool.release();
+					mThread.quit();
+				}
+			}
+		};
+		
+		if(Integer.parseInt(Build.VERSION.SDK) >= 8) {
+			LoadListener.listen(this);
+		}
+	}
+	
+	/**
+	 * Adds an effect. Do this before posting anything.
+	 * @param volume 0 to 1
+	 * @param gap least milliseconds between two plays of this effect
+	 * @return the effect's id, for {@link #post(int)}
+	 */
+	public int add(float volume, long gap) {
+		if(mEffects == MAX_EFFECTS) {
+			throw new IllegalStateException("No room for more than " + MAX_EFFECTS + " effects");
+		}
+		mVolumes[mEffects] = volume;
+		mGaps[mEffects] = gap;
+		mLastPlayed[mEffects] = Long.MIN_VALUE / 2;
+		return mEffects++;
+	}
+	
+	/**
+	 * Loads the sample for an effect. This decodes the sound, so it's best
+	 * done off the UI thread. Only one thread may load at a time.
+	 * @param resId a raw resource
+	 */
+	public void load(int effect, Context context, int resId) {
+		mSamples.set(effect, LOADING);
+		int sample = mPool.load(context, resId, 1);
+		
+		if(sample == NO_SAMPLE) {
+			// Nothing will ever say it's done
+			finish(effect, false);
+		}
+		else {
+			published(effect, sample);
+			if(Integer.parseInt(Build.VERSION.SDK) < 8) loaded(sample, true);
+		}
+	}
+	
+	/**
+	 * SoundPool has given <code>effect</code> its sample, which may already
+	 * have finished loading: the listener runs on the main thread and can
+	 * beat load() back.
+	 */
+	private synchronized void published(int effect, int sample) {
+		mSamples.set(effect, sample);
+		for(int i = 0; i < mEarly; i++) {
+			if(mEarlySamples[i] != sample) continue;
+			finish(effect, mEarlyOk[i]);
+			mEarly--;
+			mEarlySamples[i] = mEarlySamples[mEarly];
+			mEarlyOk[i] = mEarlyOk[mEarly];
+			return;
+		}
+	}
+	
+	/** A sample has finished loading, or failed to */
+	private synchronized void loaded(int sample, boolean ok) {
+		if(sample == NO_SAMPLE || sample == LOADING) return;
+		
+		boolean matched = false;
+		for(int i = 0; i < MAX_EFFECTS; i++) {
+			if(mSamples.get(i) != sample) continue;
+			finish(i, ok);
+			matched = true;
+		}
+		
+		// Keep it for when load() catches up
+		if(!matched && mEarly < MAX_EFFECTS) {
+			mEarlySamples[mEarly] = sample;
+			mEarlyOk[mEarly] = ok;
+			mEarly++;
+		}
+	}
+	
+	private void finish(int effect, boolean ok) {
+		int bit = 1 << effect;
+		if(ok) set(mLoaded, bit);
+		set(mDone, bit);
+	}
+	
+	/** Sets <code>bits</code> in <code>mask</code> and returns what it was before */
+	private static int set(AtomicInteger mask, int bits) {
+		int old;
+		do {
+			old = mask.get();
+		} while(!mask.compareAndSet(old, old | bits));
+		return old;
+	}
+	
+	/**
+	 * @return true once every effect added has finished loading, whether
+	 * it worked or not
+	 */
+	public boolean isReady() {
+		int all = (mEffects == MAX_EFFECTS) ? -1 : (1 << mEffects) - 1;
+		return (mDone.get() & all) == all;
+	}
+	
+	/** Only touched on Android 2.2 and up, where the listener exists */
+	private static class LoadListener implements SoundPool.OnLoadCompleteListener {
+		private final SoundQueue mQueue;
+		
+		private LoadListener(SoundQueue queue) {
+			mQueue = queue;
+		}
+		
+		static void listen(SoundQueue queue) {
+			queue.mPool.setOnLoadCompleteListener(new LoadListener(queue));
+		}
+		
+		public void onLoadComplete(SoundPool pool, int sample, int status) {
+			mQueue.loaded(sample, status == 0);
+		}
+	}
+	
+	/**
+	 * Queues an effect to play at the next flush(). Never blocks, and is
+	 * safe to call from inside the simulation.
+	 */
+	public void post(int effect) {
+		int bit = 1 << effect;
+		if((mPosted.get() & bit) != 0) return;
+		set(mPosted, bit);
+	}
+	
+	/**
+	 * Hands this frame's effects to the audio thread. Call once a frame from
+	 * the game loop.
+	 */
+	public void flush() {
+		int posted = mPosted.getAndSet(0);
+		if(posted == 0) return;
+		
+		// Only wake the audio thread if it isn't already due to run
+		if(set(mPending, posted) == 0) mHandler.sendEmptyMessage(MSG_PLAY);
+	}
+	
+	private void play() {
+		// Anything still loading is skipped rather than played late
+		int pending = mPending.getAndSet(0) & mLoaded.get();
+		long now = SystemClock.uptimeMillis();
+		
+		for(int i = 0; pending != 0; i++, pending >>>= 1) {
+			if((pending & 1) == 0) continue;
+			
+			if(now - mLastPlayed[i] < mGaps[i]) {
+				mDropped++;
+				continue;
+			}
+			mLastPlayed[i] = now;
+			mPool.play(mSamples.get(i), mVolumes[i], mVolumes[i], 1, 0, 1.0f);
+		}
+	}
+	
+	/** Effects dropped so far for playing too soon after themselves */
+	public int getDropped() {
+		return mDropped;
+	}
+	
+	/**
+	 * Forgets anything queued, releases the SoundPool and stops the audio
+	 * thread once it's done with whatever it was playing.
+	 */
+	public void release() {
+		mPosted.set(0);
+		mHandler.sendEmptyMessage(MSG_RELEASE);
+	}
+}
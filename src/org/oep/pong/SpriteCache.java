@@ -0,0 +1,128 @@
+package org.oep.pong;
+
+import org.oep.pong.engine.Ball;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Paint.Style;
+
+/**
+ * Bitmaps of the ball, the paddles and a row of lives markers, rasterized
+ * once and then blitted every frame with no Paint at all. Each one is redrawn
+ * only when its size (or for the lives, the most lives shown) changes.
+ * 
+ * Sprites are drawn at one bitmap pixel per canvas pixel whatever the screen
+ * density, since game sizes are already in pixels.
+ * 
+ * Only the thread drawing the game may use this.
+ */
+public class SpriteCache {
+	public static final int RED = 0, BLUE = 1;
+	
+	/** Clear space around round sprites for the edge of the circle */
+	private static final int MARGIN = 1;
+	
+	private final Paint mPaint = new Paint();
+	
+	private Bitmap mBall;
+	
+	private final Bitmap[] mPaddles = new Bitmap[2];
+	private final int[] mPaddleColors = { Color.RED, Color.BLUE };
+	
+	/** One marker per life, with the spacing they're drawn at */
+	private Bitmap mLives;
+	private int mLivesCount = 0;
+	private final int mLivesSpacing;
+	private final Rect mSrc = new Rect(), mDst = new Rect();
+	
+	/**
+	 * @param spacing space between lives markers
+	 */
+	public SpriteCache(int spacing) {
+		mLivesSpacing = spacing;
+	}
+	
+	private static Bitmap newBitmap(int width, int height) {
+		Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		b.setDensity(Bitmap.DENSITY_NONE);
+		return b;
+	}
+	
+	private static void recycle(Bitmap b) {
+		if(b != null) b.recycle();
+	}
+	
+	/**
+	 * Draws a circle the size of the ball, centered on (x, y).
+	 */
+	public void drawBall(Canvas canvas, float x, float y) {
+		if(mBall == null) {
+			int size = 2 * (Ball.RADIUS + MARGIN);
+			mBall = newBitmap(size, size);
+			mPaint.setColor(Color.WHITE);
+			mPaint.setStyle(Style.FILL);
+			new Canvas(mBall).drawCircle(size / 2, size / 2, Ball.RADIUS, mPaint);
+		}
+		canvas.drawBitmap(mBall, x - Ball.RADIUS - MARGIN, y - Ball.RADIUS - MARGIN, null);
+	}
+	
+	/**
+	 * Draws a solid paddle.
+	 * @param which RED or BLUE
+	 */
+	public void drawPaddle(Canvas canvas, int which, float left, float top, int width, int height) {
+		Bitmap b = mPaddles[which];
+		if(b == null || b.getWidth() != width || b.getHeight() != height) {
+			recycle(b);
+			b = mPaddles[which] = newBitmap(width, height);
+			b.eraseColor(mPaddleColors[which]);
+		}
+		canvas.drawBitmap(b, left, top, null);
+	}
+	
+	/**
+	 * Draws a row of <code>count</code> lives markers, each the size of the
+	 * ball, starting at <code>left</code> and centered on <code>y</code>.
+	 */
+	public void drawLives(Canvas canvas, int count, int left, int y) {
+		if(count <= 0) return;
+		
+		int step = 2 * Ball.RADIUS + mLivesSpacing;
+		int size = 2 * (Ball.RADIUS + MARGIN);
+		if(count > mLivesCount) {
+			recycle(mLives);
+			mLives = newBitmap(count * step + 2 * MARGIN, size);
+			mLivesCount = count;
+			
+			Canvas c = new Canvas(mLives);
+			mPaint.setColor(Color.WHITE);
+			mPaint.setStyle(Style.FILL_AND_STROKE);
+			for(int i = 0; i < count; i++) {
+				c.drawCircle(MARGIN + Ball.RADIUS + i * step, size / 2, Ball.RADIUS, mPaint);
+			}
+		}
+		
+		int width = (count - 1) * step + size;
+		mSrc.set(0, 0, width, size);
+		mDst.set(left - MARGIN, y - size / 2, left - MARGIN + width, y - size / 2 + size);
+		canvas.drawBitmap(mLives, mSrc, mDst, null);
+	}
+	
+	/**
+	 * Frees the bitmaps. They are made again if anything is drawn after.
+	 */
+	public void release() {
+		recycle(mBall);
+		mBall = null;
+		for(int i = 0; i < mPaddles.length; i++) {
+			recycle(mPaddles[i]);
+			mPaddles[i] = null;
+		}
+		recycle(mLives);
+		mLives = null;
+		mLivesCount = 0;
+	}
+}
@@ -0,0 +1,158 @@
+package org.oep.pong;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * Plays a fixed script of input into a PongView, so input latency can be
+ * measured on a device with nobody holding it and come out the same from
+ * run to run. It takes turns: a few seconds of a finger sweeping back and
+ * forth in blue's touch zone, sampled at 125Hz and batched two samples to
+ * an event the way touchscreens deliver them, then a few seconds of
+ * trackball rolls. Both go in through onTouch() and onTrackballEvent(),
+ * so they're timed exactly as a player's would be.
+ * 
+ * GameActivity runs it when started with an extra, for instance:
+ * 
+ * <pre>
+ * adb shell am start -n org.oep.pong/.GameActivity --ei synthetic-input 60
+ * </pre>
+ * 
+ * When it's done the activity finishes, the latencies are logged, and the
+ * frame log has them too for HistogramDiff to compare against another run.
+ */
+public class SyntheticInput implements Runnable {
+	private static final String TAG = "SyntheticInput";
+	
+	/** Between touch samples, and samples per event */
+	private static final long SAMPLE_PERIOD = 8;
+	private static final int BATCH = 2;
+	
+	/** Between trackball events */
+	private static final long TRACKBALL_PERIOD = 30;
+	
+	/** How long each source gets before the other takes over */
+	private static final long TURN = 5000;
+	
+	/** One sweep of the finger across and back */
+	private static final long SWEEP = 1500;
+	
+	private final PongView mView;
+	private final long mDuration;
+	private final Runnable mDone;
+	private final Handler mHandler = new Handler();
+	
+	private long mStart = -1;
+	private long mDownTime = -1;
+	private int mRolls = 0;
+	
+	/**
+	 * @param duration how long to play for, in milliseconds
+	 * @param done run on the UI thread once the script is over
+	 */
+	public SyntheticInput(PongView view, long duration, Runnable done) {
+		mView = view;
+		mDuration = duration;
+		mDone = done;
+	}
+	
+	/** Starts, or carries on with, the script. Call on the UI thread. */
+	public void start() {
+		mHandler.removeCallbacks(this);
+		mHandler.post(this);
+	}
+	
+	public void stop() {
+		mHandler.removeCallbacks(this);
+		lift(SystemClock.uptimeMillis());
+	}
+	
+	public void run() {
+		long now = SystemClock.uptimeMillis();
+		
+		// Wait for the field to be laid out
+		if(mView.getBlueTouchY() < 0) {
+			mHandler.postAtTime(this, now + 100);
+			return;
+		}
+		if(mStart < 0) mStart = now;
+		
+		long t = now - mStart;
+		if(t >= mDuration) {
+			lift(now);
+			mDone.run();
+			return;
+		}
+		
+		if((t / TURN) % 2 == 0) {
+			touch(now, t);
+			mHandler.postAtTime(this, now + SAMPLE_PERIOD * BATCH);
+		}
+		else {
+			lift(now);
+			roll(now);
+			mHandler.postAtTime(this, now + TRACKBALL_PERIOD);
+		}
+	}
+	
+	/** Where the finger is <code>t</code> ms into the script */
+	private float fingerX(long t) {
+		int width = mView.getWidth();
+		return (float) (width / 2 + width * 0.4 * Math.sin(2 * Math.PI * t / SWEEP));
+	}
+	
+	/** Sends the samples taken since the last event, ending at <code>now</code> */
+	private void touch(long now, long t) {
+		float y = mView.getBlueTouchY();
+		MotionEvent event;
+		if(mDownTime < 0) {
+			mDownTime = now;
+			event = MotionEvent.obtain(mDownTime, now, MotionEvent.ACTION_DOWN, fingerX(t), y, 0);
+		}
+		else {
+			long first = now - SAMPLE_PERIOD * (BATCH - 1);
+			event = MotionEvent.obtain(mDownTime, first, MotionEvent.ACTION_MOVE,
+					fingerX(t - (now - first)), y, 0);
+			for(int i = 1; i < BATCH; i++) {
+				long time = first + i * SAMPLE_PERIOD;
+				event.addBatch(time, fingerX(t - (now - time)), y, 1, 1, 0);
+			}
+		}
+		mView.onTouch(mView, event);
+		event.recycle();
+	}
+	
+	/** Takes the finger off the screen, if it's on it */
+	private void lift(long now) {
+		if(mDownTime < 0) return;
+		MotionEvent event = MotionEvent.obtain(mDownTime, now, MotionEvent.ACTION_UP,
+				fingerX(now - mStart), mView.getBlueTouchY(), 0);
+		mView.onTouch(mView, event);
+		event.recycle();
+		mDownTime = -1;
+	}
+	
+	/** Rolls the trackball a little, eight rolls one way then eight back */
+	private void roll(long now) {
+		float dx = ((mRolls++ / 8) % 2 == 0) ? 0.1f : -0.1f;
+		MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_MOVE, dx, 0, 0);
+		mView.onTrackballEvent(event);
+		event.recycle();
+	}
+	
+	/**
+	 * Logs the input latencies. Call once the game loop has stopped.
+	 */
+	public void report() {
+		String summary = mView.getInputLatency().summarize();
+		if(summary.length() == 0) {
+			Log.w(TAG, "No input made it to the screen");
+			return;
+		}
+		for(String line : summary.split("\n")) {
+			Log.i(TAG, line);
+		}
+	}
+}
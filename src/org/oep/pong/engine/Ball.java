@@ -0,0 +1,324 @@
+package org.oep.pong.engine;
+
+/**
+ * The ball. Its heading is kept as a unit vector, so bounces are sign flips
+ * and paddle english is a rotation from a table; trigonometry is only needed
+ * to serve. Angles, where they come up, are measured in radians with y
+ * growing downward, so anything in [PI, 2PI) is heading toward the top of
+ * the field.
+ */
+public class Ball {
+	public float x, y, vx, vy;
+	public float speed = SPEED;
+	
+	/** Unit vector the ball is heading along; vx and vy are this times speed */
+	protected float mUx = 1, mUy = 0;
+	protected int mCounter = 0;
+	
+	/** Bumped every time the velocity changes; see getTrajectory() */
+	protected int mTrajectory = 0;
+	
+	/** Ints save() writes, with room for a FixedBall's */
+	public static final int SNAPSHOT_SIZE = 15;
+	
+	public Ball() {
+		findVector();
+	}
+	
+	public Ball(Ball other) {
+		x = other.x;
+		y = other.y;
+		vx = other.vx;
+		vy = other.vy;
+		speed = other.speed;
+		mUx = other.mUx;
+		mUy = other.mUy;
+		mCounter = other.mCounter;
+		mTrajectory = other.mTrajectory;
+	}
+	
+	/**
+	 * Writes everything about the ball into <code>out</code> at
+	 * <code>at</code>, floats bit for bit.
+	 * @return the index after the ball's SNAPSHOT_SIZE ints
+	 */
+	public int save(int[] out, int at) {
+		out[at] = Float.floatToRawIntBits(x);
+		out[at + 1] = Float.floatToRawIntBits(y);
+		out[at + 2] = Float.floatToRawIntBits(vx);
+		out[at + 3] = Float.floatToRawIntBits(vy);
+		out[at + 4] = Float.floatToRawIntBits(speed);
+		out[at + 5] = Float.floatToRawIntBits(mUx);
+		out[at + 6] = Float.floatToRawIntBits(mUy);
+		out[at + 7] = mCounter;
+		out[at + 8] = mTrajectory;
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	/**
+	 * Puts back a ball written by save().
+	 * @return the index after the ball's SNAPSHOT_SIZE ints
+	 */
+	public int load(int[] in, int at) {
+		x = Float.intBitsToFloat(in[at]);
+		y = Float.intBitsToFloat(in[at + 1]);
+		vx = Float.intBitsToFloat(in[at + 2]);
+		vy = Float.intBitsToFloat(in[at + 3]);
+		speed = Float.intBitsToFloat(in[at + 4]);
+		mUx = Float.intBitsToFloat(in[at + 5]);
+		mUy = Float.intBitsToFloat(in[at + 6]);
+		mCounter = in[at + 7];
+		mTrajectory = in[at + 8];
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	protected void findVector() {
+		vx = speed * mUx;
+		vy = speed * mUy;
+		mTrajectory++;
+	}
+	
+	/**
+	 * Identifies the straight line the ball is currently travelling along.
+	 * This changes whenever the velocity does (serves, bounces, random kicks)
+	 * and stays the same in between, so anything derived from the ball's path
+	 * can be cached against it.
+	 */
+	public int getTrajectory() {
+		return mTrajectory;
+	}
+	
+	public boolean goingUp() {
+		return mUy < 0;
+	}
+	
+	public boolean goingDown() {
+		return !goingUp();
+	}
+	
+	public boolean goingLeft() {
+		return mUx < 0;
+	}
+	
+	public boolean goingRight() {
+		return !goingLeft();
+	}
+	
+	public double getAngle() {
+		double angle = Math.atan2(mUy, mUx);
+		return (angle < 0) ? angle + 2 * Math.PI : angle;
+	}
+	
+	/** x component of the unit vector the ball is heading along */
+	public float getHeadingX() {
+		return mUx;
+	}
+	
+	public float getHeadingY() {
+		return mUy;
+	}
+	
+	/**
+	 * Changes speed without changing direction.
+	 */
+	public void setSpeed(float speed) {
+		this.speed = speed;
+		findVector();
+	}
+	
+	public void setPosition(float x, float y) {
+		this.x = x;
+		this.y = y;
+	}
+	
+	/** The x-coordinate, truncated to a whole pixel */
+	public int pixelX() {
+		return (int) x;
+	}
+	
+	public boolean serving() {
+		return mCounter > 0;
+	}
+	
+	/**
+	 * The ball blinks while it is being served.
+	 * @return true if the ball should be drawn this frame
+	 */
+	public boolean visible() {
+		return (mCounter / 10) % 2 == 1 || mCounter == 0;
+	}
+	
+	public void pause() {
+		mCounter = 60;
+	}
+	
+	/** Ticks left before a served ball starts moving. */
+	public int getServeCounter() {
+		return mCounter;
+	}
+	
+	public void setServeCounter(int ticks) {
+		mCounter = Math.max(0, ticks);
+	}
+	
+	/**
+	 * Advance the ball one tick on a field <code>width</code> pixels wide.
+	 */
+	public void move(int width) {
+		if(mCounter <= 0) {
+			x = keepX(x + vx, width); 
+			y += vy;
+		}
+		else {
+			mCounter--;
+		}
+	}
+	
+	public void randomAngle(Rand48 rng) {
+		setAngle( Math.PI / 2 + rng.nextInt(2) * Math.PI + Math.PI / 2 * rng.nextGaussian() );
+	}
+	
+	public void setAngle(double angle) {
+		angle = boundAngle(angle % (2 * Math.PI));
+		mUx = (float) Math.cos(angle);
+		mUy = (float) Math.sin(angle);
+		findVector();
+	}
+	
+	/**
+	 * Bounces the ball off a paddle, which reverses its vertical direction
+	 * and then turns it by up to SALT radians depending on how far from the
+	 * middle of the paddle it hit.
+	 */
+	public void bouncePaddle(Paddle p) {
+		float offset = (x - p.centerX()) / (p.getWidth() / 2);
+		int i = englishIndex((goingUp()) ? -offset : offset);
+		
+		// Mirror vertically, then rotate
+		float ux = mUx, uy = -mUy;
+		float c = ENGLISH_COS[i], s = ENGLISH_SIN[i];
+		mUx = ux * c - uy * s;
+		mUy = ux * s + uy * c;
+		
+		bound(uy < 0, i - ENGLISH_STEPS * ENGLISH_REACH);
+		findVector();
+	}
+
+	/**
+	 * Bounce the ball off a horizontal axis.
+	 */
+	public void bounceWall() {
+		mUx = -mUx;
+		findVector();
+	}
+	
+	/**
+	 * Bounces off a surface at any angle.
+	 * @param nx, ny the surface's unit normal
+	 */
+	public void bounce(float nx, float ny) {
+		float ux = mUx, uy = mUy;
+		float dot = ux * nx + uy * ny;
+		mUx = ux - 2 * dot * nx;
+		mUy = uy - 2 * dot * ny;
+		bound(mUy < 0, 0);
+		
+		// Bounding the heading can point us back into the surface, in which
+		// case just go back the way we came
+		if(mUx * nx + mUy * ny < 0) {
+			mUx = -ux;
+			mUy = -uy;
+		}
+		findVector();
+	}
+	
+	/**
+	 * Keeps the heading at least BOUND radians away from horizontal, on the
+	 * top half of the unit circle if <code>top</code> is set and the bottom
+	 * half if not.
+	 * @param turn the sign of the angle the heading was just rotated by, if
+	 * any. Rotating out of range clamps to the limit it was rotating toward,
+	 * even if it went far enough to come out on the other side.
+	 */
+	protected void bound(boolean top, int turn) {
+		// Rotations from the table drift off unit length over time
+		float n = (float) (1 / Math.sqrt(mUx * mUx + mUy * mUy));
+		mUx *= n;
+		mUy *= n;
+		
+		float side = (top) ? -1 : 1;
+		if(mUy * side <= 0 || Math.abs(mUx) > COS_BOUND) {
+			boolean right = (turn == 0) ? mUx >= 0 : (turn > 0) == top;
+			mUx = (right) ? COS_BOUND : -COS_BOUND;
+			mUy = side * SIN_BOUND;
+		}
+	}
+	
+	protected double boundAngle(double angle) {
+		return boundAngle(angle, angle >= Math.PI);
+	}
+	
+	/**
+	 * Bounds an angle in radians to a subset of the top
+	 * or bottom part of the unit circle.
+	 * @param angle The angle in radians to bound.
+	 * @param top Flag which indicates if we should bound to the top or not.
+	 * @return the bounded angle
+	 */
+	protected double boundAngle(double angle, boolean top) {
+		if(top) {
+			return Math.max(Math.PI + BOUND, Math.min(2 * Math.PI - BOUND, angle));
+		}
+
+		return Math.max(BOUND, Math.min(Math.PI - BOUND, angle));
+	}
+	
+	/**
+	 * Index into the english tables for a hit <code>offset</code> half
+	 * widths from the middle of a paddle, toward the ball's direction of
+	 * travel.
+	 */
+	static int englishIndex(float offset) {
+		int i = Math.round((offset + ENGLISH_REACH) * ENGLISH_STEPS);
+		return Math.max(0, Math.min(ENGLISH_COS.length - 1, i));
+	}
+	
+	/**
+	 * Given it a coordinate, it transforms it into a proper x-coordinate for the ball.
+	 * @param x, the x-coord to transform
+	 * @param width, the width of the field
+	 * @return
+	 */
+	protected float keepX(float x, int width) {
+		return PongEngine.bound(x, Ball.RADIUS, width - Ball.RADIUS);
+	}
+	
+	public static final double BOUND = Math.PI / 9;
+	public static final float SPEED = 4.0f; 
+	public static final int RADIUS = 4;
+	public static final double SALT = 4 * Math.PI / 9;
+	
+	static final float COS_BOUND = (float) Math.cos(BOUND);
+	static final float SIN_BOUND = (float) Math.sin(BOUND);
+	
+	/**
+	 * Half widths either side of the middle of a paddle the english tables
+	 * cover. Paddles are drawn twice as wide as Paddle.getWidth() says.
+	 */
+	static final int ENGLISH_REACH = 2;
+	
+	/** Table entries per half width */
+	static final int ENGLISH_STEPS = 64;
+	
+	/** Rotation by SALT times the hit offset */
+	static final float[] ENGLISH_COS = new float[2 * ENGLISH_REACH * ENGLISH_STEPS + 1];
+	static final float[] ENGLISH_SIN = new float[2 * ENGLISH_REACH * ENGLISH_STEPS + 1];
+	
+	static {
+		for(int i = 0; i < ENGLISH_COS.length; i++) {
+			double change = SALT * (i - ENGLISH_REACH * ENGLISH_STEPS) / ENGLISH_STEPS;
+			ENGLISH_COS[i] = (float) Math.cos(change);
+			ENGLISH_SIN[i] = (float) Math.sin(change);
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package org.oep.pong.engine;
+
+/**
+ * Lots of balls at once, for multi-ball play. The balls behave just like
+ * {@link Ball} but are stored as parallel primitive arrays rather than
+ * objects, so moving and colliding all of them is a couple of tight loops
+ * over contiguous memory. Headings are unit vectors, as in Ball, so
+ * bounces don't need any trigonometry.
+ * 
+ * A ball that gets past a paddle is counted as a miss and served again from
+ * the middle.
+ */
+public class BallSwarm {
+	private final int mWidth, mHeight;
+	private final Rand48 mRandom;
+	
+	private int mCount = 0;
+	
+	/** Position now and as of the last tick */
+	private final float[] mX, mY, mPx, mPy;
+	private final float[] mVx, mVy, mSpeed;
+	
+	/** Unit vector each ball is heading along */
+	private final float[] mUx, mUy;
+	
+	/** Ticks left before each served ball starts moving */
+	private final int[] mCounter;
+	
+	/** Things that happened during the last tick */
+	private int mWallBounces, mPaddleBounces, mRedMisses, mBlueMisses;
+	
+	private int mStartingSpeed = (int) Ball.SPEED;
+	
+	private ObstacleGrid mObstacles;
+	private static final int MAX_OBSTACLE_BOUNCES = 4;
+	private final Sweep mSweep = new Sweep();
+	
+	public BallSwarm(int width, int height, int capacity, long seed) {
+		mWidth = width;
+		mHeight = height;
+		mRandom = new Rand48(seed);
+		
+		mX = new float[capacity];
+		mY = new float[capacity];
+		mPx = new float[capacity];
+		mPy = new float[capacity];
+		mVx = new float[capacity];
+		mVy = new float[capacity];
+		mSpeed = new float[capacity];
+		mUx = new float[capacity];
+		mUy = new float[capacity];
+		mCounter = new int[capacity];
+	}
+	
+	public void setStartingSpeed(int speed) {
+		mStartingSpeed = speed;
+	}
+	
+	/**
+	 * Gives the balls something other than walls and paddles to bounce
+	 * off. Obstacle bounces are counted with the wall bounces.
+	 */
+	public void setObstacles(ObstacleGrid obstacles) {
+		mObstacles = obstacles;
+	}
+	
+	/**
+	 * Serves a new ball.
+	 * @return its index, or -1 if the swarm is full
+	 */
+	public int add() {
+		if(mCount == mX.length) return -1;
+		serve(mCount);
+		return mCount++;
+	}
+	
+	public void clear() {
+		mCount = 0;
+	}
+	
+	public int size() {
+		return mCount;
+	}
+	
+	public int capacity() {
+		return mX.length;
+	}
+	
+	public float getX(int i) {
+		return mX[i];
+	}
+	
+	public float getY(int i) {
+		return mY[i];
+	}
+	
+	/** Same blinking as Ball.visible() */
+	public boolean visible(int i) {
+		int c = mCounter[i];
+		return (c / 10) % 2 == 1 || c == 0;
+	}
+	
+	public boolean serving(int i) {
+		return mCounter[i] > 0;
+	}
+	
+	public int getWallBounces() {
+		return mWallBounces;
+	}
+	
+	public int getPaddleBounces() {
+		return mPaddleBounces;
+	}
+	
+	/** Balls that got past the red paddle last tick */
+	public int getRedMisses() {
+		return mRedMisses;
+	}
+	
+	public int getBlueMisses() {
+		return mBlueMisses;
+	}
+	
+	/**
+	 * Moves every ball and bounces them off the walls and paddles.
+	 */
+	public void tick(Paddle red, Paddle blue) {
+		mWallBounces = mPaddleBounces = mRedMisses = mBlueMisses = 0;
+		move();
+		collide(red, blue);
+	}
+	
+	private void move() {
+		final float[] x = mX, y = mY, px = mPx, py = mPy, vx = mVx, vy = mVy;
+		final int[] counter = mCounter;
+		final float lo = Ball.RADIUS, hi = mWidth - Ball.RADIUS;
+		
+		for(int i = 0, n = mCount; i < n; i++) {
+			px[i] = x[i];
+			py[i] = y[i];
+			
+			if(counter[i] > 0) {
+				counter[i]--;
+				continue;
+			}
+			
+			x[i] = Math.max(lo, Math.min(x[i] + vx[i], hi));
+			y[i] += vy[i];
+			
+			// Shake it up if it appears to not be moving vertically
+			if(py[i] == y[i]) randomAngle(i);
+		}
+	}
+	
+	private void collide(Paddle red, Paddle blue) {
+		final float[] x = mX, y = mY, px = mPx, py = mPy, vy = mVy;
+		final float r = Ball.RADIUS;
+		final int redEdge = red.getBottom(), redLeft = red.getLeft(), redRight = red.getRight();
+		final int blueEdge = blue.getTop(), blueLeft = blue.getLeft(), blueRight = blue.getRight();
+		
+		for(int i = 0; i < mCount; i++) {
+			if(mObstacles != null) bounceObstacles(i);
+			
+			if(vy[i] < 0) {
+				// Same sweep as PongEngine.handleTopFastBounce()
+				float ty = y[i] - r, pty = py[i] - r;
+				if(ty < redEdge && pty > redEdge) {
+					float xc = x[i] + (x[i] - px[i]) * (ty - redEdge) / (ty - pty);
+					if(xc > redLeft && xc < redRight) {
+						x[i] = xc;
+						y[i] = redEdge + r;
+						bouncePaddle(i, red);
+					}
+				}
+			}
+			else {
+				// Same sweep as PongEngine.handleBottomFastBounce()
+				float by = y[i] + r, pby = py[i] + r;
+				if(by > blueEdge && pby < blueEdge) {
+					float xc = x[i] + (x[i] - px[i]) * (by - blueEdge) / (pby - by);
+					if(xc > blueLeft && xc < blueRight) {
+						x[i] = xc;
+						y[i] = blueEdge - r;
+						bouncePaddle(i, blue);
+					}
+				}
+			}
+			
+			if(x[i] <= r || x[i] >= mWidth - r) {
+				mUx[i] = -mUx[i];
+				mVx[i] = mSpeed[i] * mUx[i];
+				mVy[i] = mSpeed[i] * mUy[i];
+				mWallBounces++;
+				if(x[i] == r) x[i]++;
+				else x[i]--;
+			}
+			
+			if(y[i] >= mHeight) {
+				mBlueMisses++;
+				serve(i);
+			}
+			else if(y[i] <= 0) {
+				mRedMisses++;
+				serve(i);
+			}
+		}
+	}
+	
+	/** Same as PongEngine.handleObstacles() */
+	private void bounceObstacles(int i) {
+		float px = mPx[i], py = mPy[i];
+		float dx = mX[i] - px, dy = mY[i] - py;
+		
+		for(int n = 0; n < MAX_OBSTACLE_BOUNCES; n++) {
+			if(mObstacles.sweep(px, py, dx, dy, Ball.RADIUS, mSweep) < 0) break;
+			
+			float remaining = 1 - mSweep.t;
+			float ux = mUx[i], uy = mUy[i];
+			float dot = ux * mSweep.nx + uy * mSweep.ny;
+			mUx[i] = ux - 2 * dot * mSweep.nx;
+			mUy[i] = uy - 2 * dot * mSweep.ny;
+			bound(i, mUy[i] < 0, 0);
+			if(mUx[i] * mSweep.nx + mUy[i] * mSweep.ny < 0) {
+				mUx[i] = -ux;
+				mUy[i] = -uy;
+			}
+			mVx[i] = mSpeed[i] * mUx[i];
+			mVy[i] = mSpeed[i] * mUy[i];
+			
+			px = mPx[i] = mSweep.x + mSweep.nx * 0.01f;
+			py = mPy[i] = mSweep.y + mSweep.ny * 0.01f;
+			if(n == MAX_OBSTACLE_BOUNCES - 1) remaining = 0;
+			dx = mVx[i] * remaining;
+			dy = mVy[i] * remaining;
+			mX[i] = Math.max(Ball.RADIUS, Math.min(px + dx, mWidth - Ball.RADIUS));
+			mY[i] = py + dy;
+			mWallBounces++;
+		}
+	}
+	
+	private void serve(int i) {
+		mX[i] = mPx[i] = mWidth / 2;
+		mY[i] = mPy[i] = mHeight / 2;
+		mSpeed[i] = mStartingSpeed;
+		randomAngle(i);
+		mCounter[i] = 60;
+	}
+	
+	private void randomAngle(int i) {
+		setAngle(i, Math.PI / 2 + mRandom.nextInt(2) * Math.PI + Math.PI / 2 * mRandom.nextGaussian());
+	}
+	
+	/** Ball.bouncePaddle() followed by PongEngine.increaseDifficulty() */
+	private void bouncePaddle(int i, Paddle p) {
+		float offset = (mX[i] - p.centerX()) / (p.getWidth() / 2);
+		int e = Ball.englishIndex((mUy[i] < 0) ? -offset : offset);
+		
+		float ux = mUx[i], uy = -mUy[i];
+		float c = Ball.ENGLISH_COS[e], s = Ball.ENGLISH_SIN[e];
+		mUx[i] = ux * c - uy * s;
+		mUy[i] = ux * s + uy * c;
+		bound(i, uy < 0, e - Ball.ENGLISH_STEPS * Ball.ENGLISH_REACH);
+		
+		mVx[i] = mSpeed[i] * mUx[i];
+		mVy[i] = mSpeed[i] * mUy[i];
+		mSpeed[i]++;
+		mPaddleBounces++;
+	}
+	
+	/** Same as Ball.bound() */
+	private void bound(int i, boolean top, int turn) {
+		float ux = mUx[i], uy = mUy[i];
+		float n = (float) (1 / Math.sqrt(ux * ux + uy * uy));
+		ux *= n;
+		uy *= n;
+		
+		float side = (top) ? -1 : 1;
+		if(uy * side <= 0 || Math.abs(ux) > Ball.COS_BOUND) {
+			boolean right = (turn == 0) ? ux >= 0 : (turn > 0) == top;
+			ux = (right) ? Ball.COS_BOUND : -Ball.COS_BOUND;
+			uy = side * Ball.SIN_BOUND;
+		}
+		mUx[i] = ux;
+		mUy[i] = uy;
+	}
+	
+	/** Only used to serve */
+	private void setAngle(int i, double angle) {
+		angle %= (2 * Math.PI);
+		if(angle >= Math.PI) {
+			angle = Math.max(Math.PI + Ball.BOUND, Math.min(2 * Math.PI - Ball.BOUND, angle));
+		}
+		else {
+			angle = Math.max(Ball.BOUND, Math.min(Math.PI - Ball.BOUND, angle));
+		}
+		mUx[i] = (float) Math.cos(angle);
+		mUy[i] = (float) Math.sin(angle);
+		mVx[i] = mSpeed[i] * mUx[i];
+		mVy[i] = mSpeed[i] * mUy[i];
+	}
+}
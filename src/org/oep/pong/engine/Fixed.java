@@ -0,0 +1,64 @@
+package org.oep.pong.engine;
+
+/**
+ * 16.16 fixed-point arithmetic. Integer math comes out the same on every
+ * CPU and VM, which float math involving anything past + - * / doesn't
+ * promise. Tables are built with StrictMath for the same reason.
+ */
+public final class Fixed {
+	public static final int SHIFT = 16;
+	public static final int ONE = 1 << SHIFT;
+	
+	private Fixed() {
+	}
+	
+	public static int fromInt(int i) {
+		return i << SHIFT;
+	}
+	
+	/** Exact for whole numbers and anything else with few enough fraction bits */
+	public static int fromFloat(float f) {
+		return (int) (f * ONE);
+	}
+	
+	public static int fromDouble(double d) {
+		return (int) StrictMath.round(d * ONE);
+	}
+	
+	/** Rounds toward zero, like casting a float to an int */
+	public static int toInt(int f) {
+		return f / ONE;
+	}
+	
+	public static float toFloat(int f) {
+		return (float) f / ONE;
+	}
+	
+	public static int mul(int a, int b) {
+		return (int) (((long) a * b) >> SHIFT);
+	}
+	
+	public static int div(int a, int b) {
+		return (int) (((long) a << SHIFT) / b);
+	}
+	
+	/** n / d rounded to the nearest integer, halves away from zero */
+	public static long roundDiv(long n, long d) {
+		if(d < 0) {
+			n = -n;
+			d = -d;
+		}
+		return (n >= 0) ? (n + d / 2) / d : -((-n + d / 2) / d);
+	}
+	
+	/** Square root of a 32.32 value, as a 16.16 one */
+	public static int sqrt(long v) {
+		if(v <= 0) return 0;
+		long r = (long) Math.sqrt((double) v);
+		
+		// The double is close; make it exact
+		while(r * r > v) r--;
+		while((r + 1) * (r + 1) <= v) r++;
+		return (int) r;
+	}
+}
@@ -0,0 +1,210 @@
+package org.oep.pong.engine;
+
+/**
+ * A ball whose position, velocity and heading are 16.16 fixed-point integers
+ * rather than floats, so the same inputs play out bit for bit the same on
+ * any device. The float fields inherited from Ball are kept in step for
+ * drawing and are never read back.
+ * 
+ * The speed is still a float, but the engine only ever sets it to whole
+ * numbers, which convert exactly.
+ */
+public class FixedBall extends Ball {
+	/** Position and velocity in 16.16 */
+	public int fx, fy, fvx, fvy;
+	
+	/** Unit heading in 16.16 */
+	protected int mHx = Fixed.ONE, mHy = 0;
+	
+	public FixedBall() {
+		findVector();
+	}
+	
+	public FixedBall(FixedBall other) {
+		super(other);
+		fx = other.fx;
+		fy = other.fy;
+		fvx = other.fvx;
+		fvy = other.fvy;
+		mHx = other.mHx;
+		mHy = other.mHy;
+	}
+	
+	@Override
+	public int save(int[] out, int at) {
+		int end = super.save(out, at);
+		out[at + 9] = fx;
+		out[at + 10] = fy;
+		out[at + 11] = fvx;
+		out[at + 12] = fvy;
+		out[at + 13] = mHx;
+		out[at + 14] = mHy;
+		return end;
+	}
+	
+	@Override
+	public int load(int[] in, int at) {
+		int end = super.load(in, at);
+		fx = in[at + 9];
+		fy = in[at + 10];
+		fvx = in[at + 11];
+		fvy = in[at + 12];
+		mHx = in[at + 13];
+		mHy = in[at + 14];
+		return end;
+	}
+	
+	@Override
+	protected void findVector() {
+		int speed = Fixed.fromFloat(this.speed);
+		fvx = Fixed.mul(speed, mHx);
+		fvy = Fixed.mul(speed, mHy);
+		
+		mUx = Fixed.toFloat(mHx);
+		mUy = Fixed.toFloat(mHy);
+		vx = Fixed.toFloat(fvx);
+		vy = Fixed.toFloat(fvy);
+		mTrajectory++;
+	}
+	
+	/**
+	 * Sets the position in 16.16.
+	 */
+	public void setFixedPosition(int fx, int fy) {
+		this.fx = fx;
+		this.fy = fy;
+		x = Fixed.toFloat(fx);
+		y = Fixed.toFloat(fy);
+	}
+	
+	@Override
+	public void setPosition(float x, float y) {
+		setFixedPosition(Fixed.fromFloat(x), Fixed.fromFloat(y));
+	}
+	
+	@Override
+	public int pixelX() {
+		return Fixed.toInt(fx);
+	}
+	
+	public int getFixedHeadingX() {
+		return mHx;
+	}
+	
+	public int getFixedHeadingY() {
+		return mHy;
+	}
+	
+	@Override
+	public boolean goingUp() {
+		return mHy < 0;
+	}
+	
+	@Override
+	public boolean goingLeft() {
+		return mHx < 0;
+	}
+	
+	@Override
+	public void move(int width) {
+		if(mCounter <= 0) {
+			int lo = Fixed.fromInt(RADIUS), hi = Fixed.fromInt(width - RADIUS);
+			setFixedPosition(Math.max(lo, Math.min(fx + fvx, hi)), fy + fvy);
+		}
+		else {
+			mCounter--;
+		}
+	}
+	
+	/**
+	 * Angles only come from serves, which are worked out in doubles using
+	 * nothing but + - * / and %, so they're the same everywhere. The sine
+	 * and cosine come from a table.
+	 */
+	@Override
+	public void setAngle(double angle) {
+		angle = boundAngle(angle % (2 * Math.PI));
+		int i = (int) (angle * (TURN_STEPS / (2 * Math.PI))) % TURN_STEPS;
+		mHx = TURN_COS[i];
+		mHy = TURN_SIN[i];
+		findVector();
+	}
+	
+	@Override
+	public void bouncePaddle(Paddle p) {
+		long offset = (long) (fx - Fixed.fromInt(p.centerX())) * ENGLISH_STEPS;
+		int e = (int) Fixed.roundDiv((goingUp()) ? -offset : offset, Fixed.fromInt(p.getWidth() / 2));
+		e = Math.max(0, Math.min(ENGLISH_COS_FIXED.length - 1, e + ENGLISH_REACH * ENGLISH_STEPS));
+		
+		int hx = mHx, hy = -mHy;
+		int c = ENGLISH_COS_FIXED[e], s = ENGLISH_SIN_FIXED[e];
+		mHx = Fixed.mul(hx, c) - Fixed.mul(hy, s);
+		mHy = Fixed.mul(hx, s) + Fixed.mul(hy, c);
+		
+		bound(hy < 0, e - ENGLISH_REACH * ENGLISH_STEPS);
+		findVector();
+	}
+	
+	@Override
+	public void bounceWall() {
+		mHx = -mHx;
+		findVector();
+	}
+	
+	@Override
+	public void bounce(float nx, float ny) {
+		int fnx = Fixed.fromFloat(nx), fny = Fixed.fromFloat(ny);
+		int hx = mHx, hy = mHy;
+		int dot = Fixed.mul(hx, fnx) + Fixed.mul(hy, fny);
+		mHx = hx - 2 * Fixed.mul(dot, fnx);
+		mHy = hy - 2 * Fixed.mul(dot, fny);
+		bound(mHy < 0, 0);
+		
+		if(Fixed.mul(mHx, fnx) + Fixed.mul(mHy, fny) < 0) {
+			mHx = -hx;
+			mHy = -hy;
+		}
+		findVector();
+	}
+	
+	/** Ball.bound() in fixed point */
+	@Override
+	protected void bound(boolean top, int turn) {
+		int length = Fixed.sqrt((long) mHx * mHx + (long) mHy * mHy);
+		if(length > 0) {
+			mHx = Fixed.div(mHx, length);
+			mHy = Fixed.div(mHy, length);
+		}
+		
+		int side = (top) ? -1 : 1;
+		if(mHy * side <= 0 || Math.abs(mHx) > COS_BOUND_FIXED) {
+			boolean right = (turn == 0) ? mHx >= 0 : (turn > 0) == top;
+			mHx = (right) ? COS_BOUND_FIXED : -COS_BOUND_FIXED;
+			mHy = side * SIN_BOUND_FIXED;
+		}
+	}
+	
+	static final int COS_BOUND_FIXED = Fixed.fromDouble(StrictMath.cos(BOUND));
+	static final int SIN_BOUND_FIXED = Fixed.fromDouble(StrictMath.sin(BOUND));
+	
+	static final int[] ENGLISH_COS_FIXED = new int[ENGLISH_COS.length];
+	static final int[] ENGLISH_SIN_FIXED = new int[ENGLISH_COS.length];
+	
+	/** Headings for serves, a full turn's worth */
+	static final int TURN_STEPS = 4096;
+	static final int[] TURN_COS = new int[TURN_STEPS];
+	static final int[] TURN_SIN = new int[TURN_STEPS];
+	
+	static {
+		for(int i = 0; i < ENGLISH_COS_FIXED.length; i++) {
+			double change = SALT * (i - ENGLISH_REACH * ENGLISH_STEPS) / ENGLISH_STEPS;
+			ENGLISH_COS_FIXED[i] = Fixed.fromDouble(StrictMath.cos(change));
+			ENGLISH_SIN_FIXED[i] = Fixed.fromDouble(StrictMath.sin(change));
+		}
+		for(int i = 0; i < TURN_STEPS; i++) {
+			double angle = 2 * Math.PI * i / TURN_STEPS;
+			TURN_COS[i] = Fixed.fromDouble(StrictMath.cos(angle));
+			TURN_SIN[i] = Fixed.fromDouble(StrictMath.sin(angle));
+		}
+	}
+}
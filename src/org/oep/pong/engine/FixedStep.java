@@ -0,0 +1,82 @@
+package org.oep.pong.engine;
+
+/**
+ * Accumulator for running the simulation at a fixed rate no matter how often
+ * frames get drawn. Every frame, hand it the current time and run as many
+ * ticks as {@link #advance(long)} says; {@link #alpha()} is then how far
+ * between the last tick and the next one the frame falls, for interpolating.
+ */
+public class FixedStep {
+	/** Never run more than this many ticks for one frame */
+	public static final int MAX_TICKS_PER_FRAME = 5;
+	
+	private final long mTickNanos;
+	
+	private long mLast;
+	private long mAccumulator;
+	private boolean mStarted = false;
+	
+	public FixedStep(int ticksPerSecond) {
+		mTickNanos = 1000000000L / ticksPerSecond;
+	}
+	
+	public long getTickNanos() {
+		return mTickNanos;
+	}
+	
+	/**
+	 * Forget any time that has built up, e.g. after being paused.
+	 */
+	public void reset(long now) {
+		mLast = now;
+		mAccumulator = 0;
+		mStarted = true;
+	}
+	
+	/**
+	 * Adds the time elapsed since the last call.
+	 * @param now Current time in nanoseconds
+	 * @return number of ticks to simulate before drawing this frame
+	 */
+	public int advance(long now) {
+		if(!mStarted) reset(now);
+		
+		mAccumulator += Math.max(0, now - mLast);
+		mLast = now;
+		
+		int ticks = (int) Math.min(MAX_TICKS_PER_FRAME, mAccumulator / mTickNanos);
+		mAccumulator -= ticks * mTickNanos;
+		
+		// If we fell way behind (a GC, the process being frozen) drop the
+		// backlog rather than spending the next few frames catching up.
+		if(mAccumulator >= mTickNanos) mAccumulator %= mTickNanos;
+		
+		return ticks;
+	}
+	
+	/**
+	 * When a tick is drawn in full, which is the moment it simulates up to:
+	 * frames are drawn between the last tick and the one before, so the
+	 * latest tick is still a little ahead of the clock.
+	 * @param i which of the <code>ticks</code> ticks the last
+	 * {@link #advance(long)} returned, from 0
+	 * @return time in nanoseconds
+	 */
+	public long tickTime(int i, int ticks) {
+		return mLast - mAccumulator + (i + 2 - ticks) * mTickNanos;
+	}
+	
+	/**
+	 * @return fraction of a tick that has elapsed since the last tick, in [0, 1)
+	 */
+	public float alpha() {
+		return (float) mAccumulator / mTickNanos;
+	}
+	
+	/**
+	 * @return nanoseconds until the next tick is due
+	 */
+	public long untilNextTick() {
+		return mTickNanos - mAccumulator;
+	}
+}
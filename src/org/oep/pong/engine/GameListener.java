@@ -0,0 +1,16 @@
+package org.oep.pong.engine;
+
+/**
+ * Receives the events the simulation produces while ticking. This is how
+ * the view hooks up sound effects without the engine knowing about them.
+ */
+public interface GameListener {
+	/** The ball bounced off the left or right wall. */
+	public void onWallBounce();
+	
+	/** The ball bounced off of <code>paddle</code>. */
+	public void onPaddleBounce(Paddle paddle);
+	
+	/** The ball got past <code>paddle</code>, which has lost a life. */
+	public void onLifeLost(Paddle paddle);
+}
@@ -0,0 +1,64 @@
+package org.oep.pong.engine;
+
+/**
+ * A bare-bones integer rectangle with the same semantics as
+ * android.graphics.Rect, so the simulation can run without the
+ * Android framework on the classpath.
+ */
+public class IntRect {
+	public int left, top, right, bottom;
+	
+	public IntRect() {
+	}
+	
+	public IntRect(int left, int top, int right, int bottom) {
+		set(left, top, right, bottom);
+	}
+	
+	public IntRect(IntRect other) {
+		set(other.left, other.top, other.right, other.bottom);
+	}
+	
+	public void set(int left, int top, int right, int bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+	
+	public void offset(int dx, int dy) {
+		left += dx;
+		right += dx;
+		top += dy;
+		bottom += dy;
+	}
+	
+	public int width() {
+		return right - left;
+	}
+	
+	public int height() {
+		return bottom - top;
+	}
+	
+	public int centerX() {
+		return (left + right) >> 1;
+	}
+	
+	public int centerY() {
+		return (top + bottom) >> 1;
+	}
+	
+	/**
+	 * Half-open containment test, exactly like Rect.contains(int, int).
+	 */
+	public boolean contains(int x, int y) {
+		return left < right && top < bottom
+			&& x >= left && x < right && y >= top && y < bottom;
+	}
+	
+	@Override
+	public String toString() {
+		return "IntRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+	}
+}
@@ -0,0 +1,165 @@
+package org.oep.pong.engine;
+
+/**
+ * Rectangular obstacles (bricks, bumpers, walls) bucketed into a uniform grid
+ * over the playing field. A swept ball only gets tested against obstacles in
+ * the cells its path crosses, so a level can have plenty of them without
+ * every ball being checked against every obstacle.
+ * 
+ * Obstacles are identified by the index {@link #add(int, int, int, int)}
+ * returned. Disabling one (a broken brick, say) leaves the other indices
+ * alone.
+ * 
+ * Keep obstacles inside the field, with room for the ball between them and
+ * the side walls, or a ball pushed back off a wall can end up inside one.
+ */
+public class ObstacleGrid {
+	private final int mCellSize;
+	private final int mColumns, mRows;
+	
+	private IntRect[] mObstacles = new IntRect[16];
+	private boolean[] mEnabled = new boolean[16];
+	private int mCount = 0;
+	
+	/** Obstacle indices in each cell, and how many of them there are */
+	private final int[][] mCells;
+	private final int[] mCellCounts;
+	
+	/** Query number each obstacle was last tested in, so it's only tested once */
+	private int[] mStamps = new int[16];
+	private int mQuery = 0;
+	
+	/** Scratch result for the obstacle currently being tested */
+	private final Sweep mCandidate = new Sweep();
+	
+	public ObstacleGrid(int width, int height, int cellSize) {
+		mCellSize = cellSize;
+		mColumns = Math.max(1, (width + cellSize - 1) / cellSize);
+		mRows = Math.max(1, (height + cellSize - 1) / cellSize);
+		mCells = new int[mColumns * mRows][];
+		mCellCounts = new int[mColumns * mRows];
+	}
+	
+	/**
+	 * Adds an obstacle covering the given rectangle.
+	 * @return the obstacle's index
+	 */
+	public int add(int left, int top, int right, int bottom) {
+		if(mCount == mObstacles.length) {
+			int n = mCount * 2;
+			IntRect[] obstacles = new IntRect[n];
+			boolean[] enabled = new boolean[n];
+			int[] stamps = new int[n];
+			System.arraycopy(mObstacles, 0, obstacles, 0, mCount);
+			System.arraycopy(mEnabled, 0, enabled, 0, mCount);
+			System.arraycopy(mStamps, 0, stamps, 0, mCount);
+			mObstacles = obstacles;
+			mEnabled = enabled;
+			mStamps = stamps;
+		}
+		
+		int id = mCount++;
+		mObstacles[id] = new IntRect(left, top, right, bottom);
+		mEnabled[id] = true;
+		mStamps[id] = mQuery;
+		
+		int c0 = column(left), c1 = column(right);
+		int r0 = row(top), r1 = row(bottom);
+		for(int row = r0; row <= r1; row++) {
+			for(int col = c0; col <= c1; col++) {
+				insert(row * mColumns + col, id);
+			}
+		}
+		return id;
+	}
+	
+	private void insert(int cell, int id) {
+		int[] ids = mCells[cell];
+		int n = mCellCounts[cell];
+		if(ids == null) {
+			ids = mCells[cell] = new int[4];
+		}
+		else if(n == ids.length) {
+			int[] grown = new int[n * 2];
+			System.arraycopy(ids, 0, grown, 0, n);
+			ids = mCells[cell] = grown;
+		}
+		ids[n] = id;
+		mCellCounts[cell] = n + 1;
+	}
+	
+	public void setEnabled(int id, boolean enabled) {
+		mEnabled[id] = enabled;
+	}
+	
+	public boolean isEnabled(int id) {
+		return mEnabled[id];
+	}
+	
+	/** The obstacle's bounds. Callers must not modify it. */
+	public IntRect get(int id) {
+		return mObstacles[id];
+	}
+	
+	public int size() {
+		return mCount;
+	}
+	
+	public void clear() {
+		for(int i = 0; i < mCellCounts.length; i++) {
+			mCellCounts[i] = 0;
+		}
+		for(int i = 0; i < mCount; i++) {
+			mObstacles[i] = null;
+		}
+		mCount = 0;
+	}
+	
+	private int column(float x) {
+		return Math.max(0, Math.min(mColumns - 1, (int) Math.floor(x / mCellSize)));
+	}
+	
+	private int row(float y) {
+		return Math.max(0, Math.min(mRows - 1, (int) Math.floor(y / mCellSize)));
+	}
+	
+	/**
+	 * Finds the first enabled obstacle a ball of radius <code>r</code> hits
+	 * moving from (x0, y0) by (dx, dy).
+	 * @param hit receives the point of contact
+	 * @return the obstacle's index, or -1 if the path is clear
+	 */
+	public int sweep(float x0, float y0, float dx, float dy, float r, Sweep hit) {
+		if(mCount == 0) return -1;
+		
+		// Stamps wrap after 4 billion queries; start them over when they do
+		if(++mQuery == 0) {
+			for(int i = 0; i < mCount; i++) mStamps[i] = 0;
+			mQuery = 1;
+		}
+		
+		float x1 = x0 + dx, y1 = y0 + dy;
+		int c0 = column(Math.min(x0, x1) - r), c1 = column(Math.max(x0, x1) + r);
+		int r0 = row(Math.min(y0, y1) - r), r1 = row(Math.max(y0, y1) + r);
+		
+		int best = -1;
+		for(int row = r0; row <= r1; row++) {
+			for(int col = c0; col <= c1; col++) {
+				int cell = row * mColumns + col;
+				int[] ids = mCells[cell];
+				for(int i = 0, n = mCellCounts[cell]; i < n; i++) {
+					int id = ids[i];
+					if(mStamps[id] == mQuery || !mEnabled[id]) continue;
+					mStamps[id] = mQuery;
+					
+					if(mCandidate.test(x0, y0, dx, dy, r, mObstacles[id])
+							&& (best < 0 || mCandidate.t < hit.t)) {
+						hit.set(mCandidate);
+						best = id;
+					}
+				}
+			}
+		}
+		return best;
+	}
+}
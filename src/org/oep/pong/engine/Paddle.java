@@ -0,0 +1,169 @@
+package org.oep.pong.engine;
+
+/**
+ * A paddle and the touch zone that controls it. Paddles only ever move
+ * horizontally.
+ */
+public class Paddle {
+	protected IntRect mRect;
+	protected IntRect mTouch;
+	protected int mHandicap = 0;
+	protected int mSpeed = PongEngine.PLAYER_PADDLE_SPEED;
+	protected int mLives = PongEngine.STARTING_LIVES;
+	
+	/** Only the thread ticking the game may touch this; others ask InputLatch.isPlaying() */
+	public boolean player = false;
+
+	public int destination;
+	
+	/**
+	 * Creates a paddle centered on a field <code>fieldWidth</code> wide
+	 * with its top edge at <code>y</code>.
+	 */
+	public Paddle(int fieldWidth, int y) {
+		int mid = fieldWidth / 2;
+		mRect = new IntRect(mid - PADDLE_WIDTH, y,
+				mid + PADDLE_WIDTH, y + PADDLE_THICKNESS);
+		destination = mid;
+	}
+	
+	/**
+	 * Writes the paddle's position, destination, lives, speed and who's
+	 * playing it into <code>out</code> at <code>at</code>. The touch zone
+	 * and the paddle's row never change, so they're left out.
+	 * @return the index after the last int written
+	 */
+	public int save(int[] out, int at) {
+		out[at] = mRect.left;
+		out[at + 1] = destination;
+		out[at + 2] = mLives;
+		out[at + 3] = mSpeed;
+		out[at + 4] = mHandicap;
+		out[at + 5] = (player) ? 1 : 0;
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	/**
+	 * Puts back a paddle written by save().
+	 * @return the index after the last int read
+	 */
+	public int load(int[] in, int at) {
+		mRect.offset(in[at] - mRect.left, 0);
+		destination = in[at + 1];
+		mLives = in[at + 2];
+		mSpeed = in[at + 3];
+		mHandicap = in[at + 4];
+		player = in[at + 5] != 0;
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	public void move() {
+		move(mSpeed);
+	}
+	
+	public void move(boolean handicapped) {
+		move((handicapped) ? mSpeed - mHandicap : mSpeed);
+	}
+	
+	public void move(int s) {
+		int dx = (int) Math.abs(mRect.centerX() - destination);
+		
+		if(destination < mRect.centerX()) {
+			mRect.offset( (dx > s) ? -s : -dx, 0);
+		}
+		else if(destination > mRect.centerX()) {
+			mRect.offset( (dx > s) ? s : dx, 0);
+		}
+	}
+	
+	public void setLives(int lives) {
+		mLives = Math.max(0, lives);
+	}
+	
+	public void setPosition(int x) {
+		mRect.offset(x - mRect.centerX(), 0);
+	}
+	
+	public void setTouchbox(IntRect r) {
+		mTouch = r;
+	}
+	
+	public void setSpeed(int s) {
+		mSpeed = (s > 0) ? s : mSpeed;
+	}
+	
+	public void setHandicap(int h) {
+		mHandicap = (h >= 0 && h < mSpeed) ? h : mHandicap; 
+	}
+	
+	public int getHandicap() {
+		return mHandicap;
+	}
+	
+	public boolean inTouchbox(int x, int y) {
+		return mTouch.contains(x, y);
+	}
+	
+	public void loseLife() {
+		mLives = Math.max(0, mLives - 1);
+	}
+	
+	public boolean living() {
+		return mLives > 0;
+	}
+	
+	public int getWidth() {
+		return Paddle.PADDLE_WIDTH;
+	}
+	
+	public int getTop() {
+		return mRect.top;
+	}
+	
+	public int getBottom() {
+		return mRect.bottom;
+	}
+	
+	public int centerX() {
+		return mRect.centerX();
+	}
+	
+	public int centerY() {
+		return mRect.centerY();
+	}
+	
+	public int getLeft() {
+		return mRect.left;
+	}
+	
+	public int getRight() {
+		return mRect.right;
+	}
+	
+	public int touchCenterY() {
+		return mTouch.centerY();
+	}
+	
+	public int getLives() {
+		return mLives;
+	}
+	
+	/** The paddle's bounds. Callers must not modify it. */
+	public IntRect getRect() {
+		return mRect;
+	}
+	
+	/** The paddle's touch zone. Callers must not modify it. */
+	public IntRect getTouchbox() {
+		return mTouch;
+	}
+	
+	/** Thickness of the paddle */
+	public static final int PADDLE_THICKNESS = 10;
+	
+	/** Width of the paddle */
+	public static final int PADDLE_WIDTH = 40;
+	
+	/** Ints save() writes */
+	public static final int SNAPSHOT_SIZE = 6;
+}
@@ -0,0 +1,614 @@
+package org.oep.pong.engine;
+
+/**
+ * The Pong simulation with no dependencies on the Android framework. Give it
+ * the dimensions of the playing field and call {@link #tick()} once per frame;
+ * PongView does exactly that, and so can anything running on a plain JVM.
+ * 
+ * The simulation is deterministic: two engines built with the same size,
+ * seed and settings that are fed the same paddle input before each tick
+ * stay in exactly the same state. That holds on one VM; across devices,
+ * float math can round differently, so anything that has to agree between
+ * machines (replays shared between devices, network play) should use the
+ * fixed-point mode, which does all of the ball's physics and the AI's
+ * prediction in 16.16 integers.
+ */
+public class PongEngine {
+	public static final int
+		STARTING_LIVES = 1,
+		PLAYER_PADDLE_SPEED = 10;
+	
+	/** Ticks per second of game time. All speeds are in pixels per tick. */
+	public static final int TICK_RATE = 30;
+	
+	/** Indices into values_ai_strategies */
+	public static final int
+		STRATEGY_PREDICTION = 0,
+		STRATEGY_EXACT = 1,
+		STRATEGY_FOLLOW = 2;
+	
+	/** Padding for touch zones and paddles */
+	public static final int PADDING = 3;
+	
+	/**
+	 * Ints in a snapshot: the tick, whether a round is starting, the serve
+	 * RNG, the ball, both paddles and what each AI has worked out.
+	 */
+	public static final int SNAPSHOT_SIZE = 3 + Rand48.SNAPSHOT_SIZE + Ball.SNAPSHOT_SIZE
+		+ 2 * Paddle.SNAPSHOT_SIZE + 2 * Predictor.SNAPSHOT_SIZE;
+	
+	/** Size of the playing field */
+	private final int mWidth, mHeight;
+	
+	private final Ball mBall;
+	
+	/** mBall, if this engine uses fixed-point physics */
+	private final FixedBall mFixed;
+	
+	private final Paddle mRed, mBlue;
+	
+	/** Random number generator used for serves */
+	private final Rand48 mRandom;
+	private final long mSeed;
+	
+	/** Number of ticks simulated so far */
+	private long mTick = 0;
+	
+	/** Starting speed added on top of Ball.SPEED */
+	private int mBallSpeedModifier = 0;
+	
+	/** AI Strategy */
+	private int mAiStrategy = STRATEGY_PREDICTION;
+	
+	/** Starts a new round when set to true */
+	private boolean mNewRound = true;
+	
+	/** Cached landing spots for the prediction AI, one per paddle */
+	private final Predictor mRedPredictor, mBluePredictor;
+	
+	/** Reseeded every time the AI jitters its destination */
+	private final Rand48 mJitter = new Rand48(0);
+	
+	/** Bricks, bumpers and so on, or null for an empty field */
+	private ObstacleGrid mObstacles;
+	
+	/** Where the ball last touched an obstacle */
+	private final Sweep mSweep = new Sweep();
+	
+	/** Most obstacles the ball can bounce off in a single tick */
+	private static final int MAX_OBSTACLE_BOUNCES = 4;
+	
+	/** Time spent on AI since takeAiNanos(), when mTimeAi is set */
+	private boolean mTimeAi = false;
+	private long mAiNanos = 0;
+	
+	/** Told about bounces and lost lives */
+	private GameListener mListener;
+	
+	public PongEngine(int width, int height) {
+		this(width, height, System.nanoTime() ^ System.currentTimeMillis());
+	}
+	
+	public PongEngine(int width, int height, long seed) {
+		this(width, height, seed, false);
+	}
+	
+	/**
+	 * @param fixedPoint use integer physics that play out the same on
+	 * every device
+	 */
+	public PongEngine(int width, int height, long seed, boolean fixedPoint) {
+		mFixed = (fixedPoint) ? new FixedBall() : null;
+		mBall = (fixedPoint) ? mFixed : new Ball();
+		mWidth = width;
+		mHeight = height;
+		mSeed = seed;
+		mRandom = new Rand48(seed);
+		
+		IntRect redTouch = new IntRect(0, 0, width, height / 8);
+		IntRect blueTouch = new IntRect(0, 7 * height / 8, width, height);
+		
+		mRed = new Paddle(width, redTouch.bottom + PADDING);
+		mBlue = new Paddle(width, blueTouch.top - PADDING - Paddle.PADDLE_THICKNESS);
+		
+		mRed.setTouchbox(redTouch);
+		mBlue.setTouchbox(blueTouch);
+		
+		mRedPredictor = new Predictor(width);
+		mBluePredictor = new Predictor(width);
+	}
+	
+	public void setListener(GameListener listener) {
+		mListener = listener;
+	}
+	
+	public void setBallSpeedModifier(int modifier) {
+		mBallSpeedModifier = Math.max(0, modifier);
+	}
+	
+	/**
+	 * Puts obstacles in the field. The ball bounces off them like it does the
+	 * walls; the AI doesn't know they're there.
+	 */
+	public void setObstacles(ObstacleGrid obstacles) {
+		if(mFixed != null && obstacles != null) {
+			throw new IllegalStateException("Obstacles aren't supported with fixed-point physics");
+		}
+		mObstacles = obstacles;
+	}
+	
+	public ObstacleGrid getObstacles() {
+		return mObstacles;
+	}
+	
+	public void setAiStrategy(int strategy) {
+		mAiStrategy = strategy;
+	}
+	
+	public void setCpuHandicap(int handicap) {
+		mRed.setHandicap(handicap);
+		mBlue.setHandicap(handicap);
+	}
+	
+	/**
+	 * Gives both paddles a fresh set of lives.
+	 */
+	public void setLives(int lives) {
+		mRed.setLives(lives);
+		mBlue.setLives(lives);
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	/**
+	 * Keep track of how long the AI takes, for profiling.
+	 */
+	public void setAiTiming(boolean enabled) {
+		mTimeAi = enabled;
+	}
+	
+	/**
+	 * @return nanoseconds spent on AI since the last call
+	 */
+	public long takeAiNanos() {
+		long nanos = mAiNanos;
+		mAiNanos = 0;
+		return nanos;
+	}
+	
+	public boolean isFixedPoint() {
+		return mFixed != null;
+	}
+	
+	public long getSeed() {
+		return mSeed;
+	}
+	
+	public long getTick() {
+		return mTick;
+	}
+	
+	public int getBallSpeedModifier() {
+		return mBallSpeedModifier;
+	}
+	
+	public int getAiStrategy() {
+		return mAiStrategy;
+	}
+	
+	public int getCpuHandicap() {
+		return mRed.getHandicap();
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	public Ball getBall() {
+		return mBall;
+	}
+	
+	public Paddle getRed() {
+		return mRed;
+	}
+	
+	public Paddle getBlue() {
+		return mBlue;
+	}
+	
+	public boolean gameRunning() {
+		return mRed.living() && mBlue.living();
+	}
+	
+	/**
+	 * Advance the game by one frame, serving first if the last frame ended
+	 * a round.
+	 */
+	public void tick() {
+		if(mNewRound) {
+			serveBall();
+			mNewRound = false;
+		}
+		doGameLogic();
+		mTick++;
+	}
+	
+	/**
+	 * Hashes everything that affects how the game plays out from here. Two
+	 * engines with the same hash will go on to do the same thing given the
+	 * same input.
+	 */
+	public long stateHash() {
+		long h = 17;
+		h = 31 * h + mTick;
+		h = 31 * h + mRandom.getState();
+		h = 31 * h + Float.floatToIntBits(mBall.x);
+		h = 31 * h + Float.floatToIntBits(mBall.y);
+		h = 31 * h + Float.floatToIntBits(mBall.vx);
+		h = 31 * h + Float.floatToIntBits(mBall.vy);
+		h = 31 * h + Float.floatToIntBits(mBall.speed);
+		h = 31 * h + Float.floatToIntBits(mBall.getHeadingX());
+		h = 31 * h + Float.floatToIntBits(mBall.getHeadingY());
+		h = 31 * h + mBall.getServeCounter();
+		if(mFixed != null) {
+			h = 31 * h + mFixed.fx;
+			h = 31 * h + mFixed.fy;
+			h = 31 * h + mFixed.fvx;
+			h = 31 * h + mFixed.fvy;
+			h = 31 * h + mFixed.getFixedHeadingX();
+			h = 31 * h + mFixed.getFixedHeadingY();
+		}
+		h = 31 * h + (mNewRound ? 1 : 0);
+		h = paddleHash(h, mRed);
+		h = paddleHash(h, mBlue);
+		return h;
+	}
+	
+	/**
+	 * Writes everything that stateHash() covers, and the AI's cached
+	 * predictions, into <code>out</code>, SNAPSHOT_SIZE ints from
+	 * <code>at</code>, without allocating. Settings
+	 * that only change between games (field size, AI strategy, ball speed
+	 * modifier) and obstacles aren't included.
+	 * @return the index after the snapshot
+	 */
+	public int snapshot(int[] out, int at) {
+		out[at] = (int) (mTick >>> 32);
+		out[at + 1] = (int) mTick;
+		out[at + 2] = (mNewRound) ? 1 : 0;
+		at = mRandom.save(out, at + 3);
+		at = mBall.save(out, at);
+		at = mRed.save(out, at);
+		at = mBlue.save(out, at);
+		at = mRedPredictor.save(out, at);
+		return mBluePredictor.save(out, at);
+	}
+	
+	/**
+	 * Puts the simulation back the way snapshot() found it. The snapshot
+	 * must come from an engine with the same settings and the same kind of
+	 * physics. Ticking on from here with the same input plays out the same
+	 * as it did the first time; with different input it's a rollback.
+	 * @return the index after the snapshot
+	 */
+	public int restore(int[] in, int at) {
+		mTick = ((long) in[at] << 32) | (in[at + 1] & 0xFFFFFFFFL);
+		mNewRound = in[at + 2] != 0;
+		at = mRandom.load(in, at + 3);
+		at = mBall.load(in, at);
+		at = mRed.load(in, at);
+		at = mBlue.load(in, at);
+		at = mRedPredictor.load(in, at);
+		return mBluePredictor.load(in, at);
+	}
+	
+	private static long paddleHash(long h, Paddle p) {
+		h = 31 * h + p.getLeft();
+		h = 31 * h + p.destination;
+		h = 31 * h + p.getLives();
+		h = 31 * h + (p.player ? 1 : 0);
+		return h;
+	}
+
+	/**
+	 * All of the game's logic (per game iteration) is in this function.
+	 * Given some initial game state, it computes the next game state.
+	 */
+	private void doGameLogic() {
+		if(mFixed != null) {
+			doFixedGameLogic();
+			return;
+		}
+		
+		float px = mBall.x;
+		float py = mBall.y;
+		
+		mBall.move(mWidth);
+		
+		// Shake it up if it appears to not be moving vertically
+		if(py == mBall.y && mBall.serving() == false) {
+			mBall.randomAngle(mRandom);
+		}
+		
+		movePaddles();
+		handleBounces(px,py);
+		checkForMiss(mBall.y >= mHeight, mBall.y <= 0);
+	}
+	
+	/**
+	 * doGameLogic() for fixed-point physics.
+	 */
+	private void doFixedGameLogic() {
+		int px = mFixed.fx;
+		int py = mFixed.fy;
+		
+		mFixed.move(mWidth);
+		
+		if(py == mFixed.fy && mFixed.serving() == false) {
+			mFixed.randomAngle(mRandom);
+		}
+		
+		movePaddles();
+		handleFixedBounces(px, py);
+		checkForMiss(mFixed.fy >= Fixed.fromInt(mHeight), mFixed.fy <= 0);
+	}
+	
+	private void movePaddles() {
+		long start = (mTimeAi) ? System.nanoTime() : 0;
+		
+		// Do some basic paddle AI
+		if(!mRed.player) doAI(mRed, mBlue);
+		else mRed.move();
+		
+		if(!mBlue.player) doAI(mBlue, mRed);
+		else mBlue.move();
+		
+		if(mTimeAi) mAiNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * See if all is lost
+	 */
+	private void checkForMiss(boolean pastBlue, boolean pastRed) {
+		if(pastBlue) {
+			mNewRound = true;
+			mBlue.loseLife();
+			if(mListener != null) mListener.onLifeLost(mBlue);
+		}
+		else if (pastRed) {
+			mNewRound = true;
+			mRed.loseLife();
+			if(mListener != null) mListener.onLifeLost(mRed);
+		}
+	}
+	
+	protected void handleBounces(float px, float py) {
+		if(mObstacles != null && handleObstacles(px, py)) {
+			px = mSweep.x;
+			py = mSweep.y;
+		}
+		
+		handleTopFastBounce(mRed, px, py);
+		handleBottomFastBounce(mBlue, px, py);
+		
+		// Handle bouncing off of a wall
+		if(mBall.x <= Ball.RADIUS || mBall.x >= mWidth - Ball.RADIUS) {
+			mBall.bounceWall();
+			if(mListener != null) mListener.onWallBounce();
+			if(mBall.x == Ball.RADIUS)
+				mBall.x++;
+			else
+				mBall.x--;
+		}
+	}
+	
+	/**
+	 * Bounces the ball off any obstacles along the path it took this tick,
+	 * spending what's left of the step in the new direction.
+	 * @return true if it hit something, in which case mSweep holds where
+	 * the ball last bounced from
+	 */
+	protected boolean handleObstacles(float px, float py) {
+		boolean hit = false;
+		float dx = mBall.x - px, dy = mBall.y - py;
+		
+		for(int i = 0; i < MAX_OBSTACLE_BOUNCES; i++) {
+			if(mObstacles.sweep(px, py, dx, dy, Ball.RADIUS, mSweep) < 0) break;
+			hit = true;
+			
+			float remaining = 1 - mSweep.t;
+			mBall.bounce(mSweep.nx, mSweep.ny);
+			
+			// Step off the surface a little so the next sweep starts clear of it
+			px = mSweep.x = mSweep.x + mSweep.nx * 0.01f;
+			py = mSweep.y = mSweep.y + mSweep.ny * 0.01f;
+			
+			// Wedged in somewhere; wait here for the next tick
+			if(i == MAX_OBSTACLE_BOUNCES - 1) remaining = 0;
+			
+			dx = mBall.vx * remaining;
+			dy = mBall.vy * remaining;
+			mBall.x = Math.max(Ball.RADIUS, Math.min(px + dx, mWidth - Ball.RADIUS));
+			mBall.y = py + dy;
+			
+			if(mListener != null) mListener.onWallBounce();
+		}
+		return hit;
+	}
+	
+	protected void handleTopFastBounce(Paddle paddle, float px, float py) {
+		if(mBall.goingUp() == false) return;
+		
+		float tx = mBall.x;
+		float ty = mBall.y - Ball.RADIUS;
+		float ptx = px;
+		float pty = py - Ball.RADIUS;
+		float dyp = ty - paddle.getBottom();
+		float xc = tx + (tx - ptx) * dyp / (ty - pty);
+		
+		if(ty < paddle.getBottom() && pty > paddle.getBottom()
+				&& xc > paddle.getLeft() && xc < paddle.getRight()) {
+			
+			mBall.x = xc;
+			mBall.y = paddle.getBottom() + Ball.RADIUS;
+			mBall.bouncePaddle(paddle);
+			if(mListener != null) mListener.onPaddleBounce(paddle);
+			increaseDifficulty();
+		}
+	}
+	
+	protected void handleBottomFastBounce(Paddle paddle, float px, float py) {
+		if(mBall.goingDown() == false) return;
+		
+		float bx = mBall.x;
+		float by = mBall.y + Ball.RADIUS;
+		float pbx = px;
+		float pby = py + Ball.RADIUS;
+		float dyp = by - paddle.getTop();
+		float xc = bx + (bx - pbx) * dyp / (pby - by);
+		
+		if(by > paddle.getTop() && pby < paddle.getTop()
+				&& xc > paddle.getLeft() && xc < paddle.getRight()) {
+			
+			mBall.x = xc;
+			mBall.y = paddle.getTop() - Ball.RADIUS;
+			mBall.bouncePaddle(paddle);
+			if(mListener != null) mListener.onPaddleBounce(paddle);
+			increaseDifficulty();
+		}
+	}
+	
+	/**
+	 * handleBounces() for fixed-point physics, minus the obstacles.
+	 */
+	protected void handleFixedBounces(int px, int py) {
+		final int r = Fixed.fromInt(Ball.RADIUS);
+		FixedBall ball = mFixed;
+		
+		if(ball.goingUp()) {
+			int edge = Fixed.fromInt(mRed.getBottom());
+			int ty = ball.fy - r, pty = py - r;
+			if(ty < edge && pty > edge) {
+				int xc = ball.fx + (int) ((long) (ball.fx - px) * (ty - edge) / (ty - pty));
+				if(xc > Fixed.fromInt(mRed.getLeft()) && xc < Fixed.fromInt(mRed.getRight())) {
+					ball.setFixedPosition(xc, edge + r);
+					ball.bouncePaddle(mRed);
+					if(mListener != null) mListener.onPaddleBounce(mRed);
+					increaseDifficulty();
+				}
+			}
+		}
+		else {
+			int edge = Fixed.fromInt(mBlue.getTop());
+			int by = ball.fy + r, pby = py + r;
+			if(by > edge && pby < edge) {
+				int xc = ball.fx + (int) ((long) (ball.fx - px) * (by - edge) / (pby - by));
+				if(xc > Fixed.fromInt(mBlue.getLeft()) && xc < Fixed.fromInt(mBlue.getRight())) {
+					ball.setFixedPosition(xc, edge - r);
+					ball.bouncePaddle(mBlue);
+					if(mListener != null) mListener.onPaddleBounce(mBlue);
+					increaseDifficulty();
+				}
+			}
+		}
+		
+		if(ball.fx <= r || ball.fx >= Fixed.fromInt(mWidth) - r) {
+			ball.bounceWall();
+			if(mListener != null) mListener.onWallBounce();
+			ball.setFixedPosition(ball.fx + ((ball.fx == r) ? Fixed.ONE : -Fixed.ONE), ball.fy);
+		}
+	}
+	
+	private void doAI(Paddle cpu, Paddle opponent) {
+		switch(mAiStrategy) {
+		case STRATEGY_FOLLOW: aiFollow(cpu); break;
+		case STRATEGY_EXACT: aiExact(cpu); break;
+		default: aiPrediction(cpu,opponent); break;
+		}
+	}
+	
+	/**
+	 * A generalized Pong AI player. Takes a Rect object and a Ball, computes where the ball will
+	 * be when ball.y == rect.y, and tries to move toward that x-coordinate. If the ball is moving
+	 * straight it will try to clip the ball with the edge of the paddle.
+	 * @param cpu
+	 */
+	private void aiPrediction(Paddle cpu, Paddle opponent) {
+		// Only ever read from, so there is no need to copy it
+		Ball ball = mBall;
+		
+		// Special case: move torward the center if the ball is blinking
+		if(mBall.serving()) {
+			cpu.destination = mWidth / 2;
+			cpu.move(true);
+			return;
+		}
+		
+		// Something is wrong if vy = 0.. let's wait until things fix themselves
+		if(ball.vy == 0) return;
+		
+		Predictor predictor = (cpu == mRed) ? mRedPredictor : mBluePredictor;
+		cpu.destination = predictor.landingX(ball, cpu, opponent);
+		
+		// Try to give it a little kick if vx = 0. The salt changes every ten
+		// seconds of game time.
+		int salt = (int) (mTick / (10 * TICK_RATE));
+		if(mFixed != null) {
+			mJitter.setSeed(cpu.centerY() + Fixed.toInt(mFixed.fvx + mFixed.fvy) + salt);
+		}
+		else {
+			mJitter.setSeed((long) (cpu.centerY() + ball.vx + ball.vy + salt));
+		}
+		int width = cpu.getWidth();
+		cpu.destination = (int) bound(
+				cpu.destination + mJitter.nextInt(2 * width - (width / 5)) - width + (width / 10),
+				0, mWidth
+		);
+		cpu.move(true);
+	}
+	
+	private void aiExact(Paddle cpu) {
+		cpu.destination = mBall.pixelX();
+		cpu.setPosition(cpu.destination);
+	}
+	
+	private void aiFollow(Paddle cpu) {
+		cpu.destination = mBall.pixelX();
+		cpu.move(true);
+	}
+	
+	/**
+	 * Knocks up the framerate a bit to keep it difficult.
+	 */
+	private void increaseDifficulty() {
+		mBall.speed++;
+	}
+	
+	/**
+	 * Reset ball to an initial state
+	 */
+	public void serveBall() {
+		mBall.setPosition(mWidth / 2, mHeight / 2);
+		mBall.speed = Ball.SPEED + mBallSpeedModifier;
+		mBall.randomAngle(mRandom);
+		mBall.pause();
+	}
+	
+	/**
+	 * Resets the lives and the position of the paddles.
+	 */
+	public void resetPaddles() {
+		int mid = mWidth / 2;
+		mRed.setPosition(mid);
+		mBlue.setPosition(mid);
+		mRed.destination = mid;
+		mBlue.destination = mid;
+		setLives(STARTING_LIVES);
+	}
+	
+	public static float bound(float x, float low, float hi) {
+		return Math.max(low, Math.min(x, hi));
+	}
+}
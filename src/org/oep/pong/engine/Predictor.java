@@ -0,0 +1,154 @@
+package org.oep.pong.engine;
+
+/**
+ * Works out where the ball will cross a paddle's row, bouncing off the side
+ * walls on the way. The answer only depends on the line the ball is travelling
+ * along, so it is computed once per trajectory (see Ball.getTrajectory()) and
+ * reused until the ball next bounces or gets served.
+ */
+public class Predictor {
+	private final int mWidth;
+	
+	/** Trajectory and row the cached answer was computed for */
+	private int mTrajectory;
+	private int mRow;
+	private boolean mValid = false;
+	
+	private int mLanding;
+	
+	/** Ints save() writes */
+	public static final int SNAPSHOT_SIZE = 4;
+	
+	/**
+	 * @param width Width of the playing field
+	 */
+	public Predictor(int width) {
+		mWidth = width;
+	}
+	
+	/** Forget the cached answer */
+	public void invalidate() {
+		mValid = false;
+	}
+	
+	/**
+	 * Writes the cached answer into <code>out</code> at <code>at</code>.
+	 * It's part of the game's state: working the landing spot out again
+	 * from further along the same line can round differently.
+	 * @return the index after the last int written
+	 */
+	public int save(int[] out, int at) {
+		out[at] = mTrajectory;
+		out[at + 1] = mRow;
+		out[at + 2] = (mValid) ? 1 : 0;
+		out[at + 3] = mLanding;
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	/**
+	 * Puts back a cached answer written by save().
+	 * @return the index after the last int read
+	 */
+	public int load(int[] in, int at) {
+		mTrajectory = in[at];
+		mRow = in[at + 1];
+		mValid = in[at + 2] != 0;
+		mLanding = in[at + 3];
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	/**
+	 * The x-coordinate the ball will be at when it reaches <code>cpu</code>'s
+	 * row. If the ball is heading away it is assumed to come back off of the
+	 * opponent first. The ball must be moving vertically.
+	 */
+	public int landingX(Ball ball, Paddle cpu, Paddle opponent) {
+		int row = cpu.centerY();
+		if(mValid && mTrajectory == ball.getTrajectory() && mRow == row) {
+			return mLanding;
+		}
+		
+		mLanding = (ball instanceof FixedBall)
+			? computeFixed((FixedBall) ball, cpu, opponent)
+			: compute(ball, cpu, opponent);
+		mTrajectory = ball.getTrajectory();
+		mRow = row;
+		mValid = true;
+		return mLanding;
+	}
+	
+	private int compute(Ball ball, Paddle cpu, Paddle opponent) {
+		// Y-Distance from ball to Rect 'cpu'
+		float cpuDist = Math.abs(ball.y - cpu.centerY());
+		// Y-Distance to opponent.
+		float oppDist = Math.abs( ball.y - opponent.centerY() );
+		
+		// Distance between two paddles.
+		float paddleDistance = Math.abs(cpu.centerY() - opponent.centerY());
+		
+		// Is the ball coming at us?
+		boolean coming = (cpu.centerY() < ball.y && ball.vy < 0)
+			|| (cpu.centerY() > ball.y && ball.vy > 0);
+		
+		// Total amount of x-distance the ball covers
+		float total = ((((coming) ? cpuDist : oppDist + paddleDistance)) / Math.abs(ball.vy)) * Math.abs( ball.vx );
+		
+		// Playable width of the stage
+		float playWidth = mWidth - 2 * Ball.RADIUS;
+		
+		float wallDist = (ball.goingLeft()) ? ball.x - Ball.RADIUS : playWidth - ball.x + Ball.RADIUS;
+		
+		// Effective x-translation left over after first bounce 
+		float remains = (total - wallDist) % playWidth;
+		
+		// Bounces the ball will incur
+		int bounces = (int) ((total) / playWidth);
+		
+		boolean left = (bounces % 2 == 0) ? !ball.goingLeft() : ball.goingLeft();
+		
+		// Now we need to compute the final x. That's all that matters.
+		if(bounces == 0) {
+			return (int) (ball.x + total * Math.signum(ball.vx));
+		}
+		else if(left) {
+			return (int) (Ball.RADIUS + remains);
+		}
+		else { // The ball is going right...
+			return (int) ((Ball.RADIUS + playWidth) - remains);
+		}
+	}
+	
+	/**
+	 * compute() in 16.16 fixed point.
+	 */
+	private int computeFixed(FixedBall ball, Paddle cpu, Paddle opponent) {
+		long cpuY = Fixed.fromInt(cpu.centerY());
+		long oppY = Fixed.fromInt(opponent.centerY());
+		long cpuDist = Math.abs(ball.fy - cpuY);
+		long oppDist = Math.abs(ball.fy - oppY);
+		long paddleDistance = Math.abs(cpuY - oppY);
+		
+		boolean coming = (cpuY < ball.fy && ball.fvy < 0)
+			|| (cpuY > ball.fy && ball.fvy > 0);
+		
+		long total = ((coming) ? cpuDist : oppDist + paddleDistance) * Math.abs(ball.fvx) / Math.abs(ball.fvy);
+		
+		long radius = Fixed.fromInt(Ball.RADIUS);
+		long playWidth = Fixed.fromInt(mWidth - 2 * Ball.RADIUS);
+		long wallDist = (ball.goingLeft()) ? ball.fx - radius : playWidth - ball.fx + radius;
+		long remains = (total - wallDist) % playWidth;
+		long bounces = total / playWidth;
+		
+		boolean left = (bounces % 2 == 0) ? !ball.goingLeft() : ball.goingLeft();
+		
+		if(bounces == 0) {
+			return (int) ((ball.fx + total * Long.signum(ball.fvx)) / Fixed.ONE);
+		}
+		else if(left) {
+			return (int) ((radius + remains) / Fixed.ONE);
+		}
+		else {
+			return (int) ((radius + playWidth - remains) / Fixed.ONE);
+		}
+	}
+}
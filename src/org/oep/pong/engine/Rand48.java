@@ -0,0 +1,116 @@
+package org.oep.pong.engine;
+
+/**
+ * A resettable random number generator that produces exactly the same
+ * sequences as java.util.Random for the same seed. Unlike java.util.Random
+ * it can be reseeded and its state read back without allocating or
+ * synchronizing, so it is cheap enough to use once per tick.
+ */
+public class Rand48 {
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+	
+	private long mSeed;
+	private double mNextNextGaussian;
+	private boolean mHaveNextNextGaussian = false;
+	
+	/** Ints save() writes */
+	public static final int SNAPSHOT_SIZE = 5;
+	
+	public Rand48(long seed) {
+		setSeed(seed);
+	}
+	
+	/**
+	 * Reseeds the generator, just like java.util.Random.setSeed().
+	 */
+	public void setSeed(long seed) {
+		mSeed = (seed ^ MULTIPLIER) & MASK;
+		mHaveNextNextGaussian = false;
+	}
+	
+	/**
+	 * The raw 48-bit state, for hashing or saving. Doesn't include a pending
+	 * Gaussian.
+	 */
+	public long getState() {
+		return mSeed;
+	}
+	
+	/**
+	 * Writes the whole state, pending Gaussian included, into
+	 * <code>out</code> at <code>at</code>.
+	 * @return the index after the last int written
+	 */
+	public int save(int[] out, int at) {
+		long g = Double.doubleToRawLongBits(mNextNextGaussian);
+		out[at] = (int) (mSeed >>> 32);
+		out[at + 1] = (int) mSeed;
+		out[at + 2] = (mHaveNextNextGaussian) ? 1 : 0;
+		out[at + 3] = (int) (g >>> 32);
+		out[at + 4] = (int) g;
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	/**
+	 * Puts back a state written by save().
+	 * @return the index after the last int read
+	 */
+	public int load(int[] in, int at) {
+		mSeed = ((long) in[at] << 32) | (in[at + 1] & 0xFFFFFFFFL);
+		mHaveNextNextGaussian = in[at + 2] != 0;
+		mNextNextGaussian = Double.longBitsToDouble(((long) in[at + 3] << 32) | (in[at + 4] & 0xFFFFFFFFL));
+		return at + SNAPSHOT_SIZE;
+	}
+	
+	protected int next(int bits) {
+		mSeed = (mSeed * MULTIPLIER + ADDEND) & MASK;
+		return (int) (mSeed >>> (48 - bits));
+	}
+	
+	public int nextInt() {
+		return next(32);
+	}
+	
+	public int nextInt(int n) {
+		if(n <= 0) throw new IllegalArgumentException("n must be positive");
+		
+		// i.e., n is a power of 2
+		if((n & -n) == n) return (int) ((n * (long) next(31)) >> 31);
+		
+		int bits, val;
+		do {
+			bits = next(31);
+			val = bits % n;
+		} while(bits - val + (n - 1) < 0);
+		return val;
+	}
+	
+	public boolean nextBoolean() {
+		return next(1) != 0;
+	}
+	
+	public double nextDouble() {
+		return (((long) next(26) << 27) + next(27)) * (1.0 / (1L << 53));
+	}
+	
+	public double nextGaussian() {
+		if(mHaveNextNextGaussian) {
+			mHaveNextNextGaussian = false;
+			return mNextNextGaussian;
+		}
+		
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while(s >= 1 || s == 0);
+		
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+		mNextNextGaussian = v2 * multiplier;
+		mHaveNextNextGaussian = true;
+		return v1 * multiplier;
+	}
+}
@@ -0,0 +1,86 @@
+package org.oep.pong.engine;
+
+/**
+ * The last few ticks' worth of engine snapshots, so the game can roll back
+ * to an earlier tick and simulate forward again, say when input for that
+ * tick turns up late. Everything is allocated up front as one flat array;
+ * saving and restoring are just copies in and out of it.
+ * 
+ * A snapshot is kept in the slot for its tick, so saving once every tick
+ * keeps exactly the last <code>capacity</code> of them.
+ * 
+ * To roll back, restore the tick you want, feed the engine that tick's
+ * input and tick it, saving again as you go, until you're back where you
+ * were. Anything listening to the engine hears the replayed ticks too;
+ * set the listener aside first unless it should.
+ */
+public class SnapshotRing {
+	private final int mCapacity;
+	private final int[] mStates;
+	
+	/** Tick held by each slot, or -1 */
+	private final long[] mTicks;
+	
+	public SnapshotRing(int capacity) {
+		if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		mCapacity = capacity;
+		mStates = new int[capacity * PongEngine.SNAPSHOT_SIZE];
+		mTicks = new long[capacity];
+		clear();
+	}
+	
+	public int getCapacity() {
+		return mCapacity;
+	}
+	
+	/** Forgets every snapshot */
+	public void clear() {
+		for(int i = 0; i < mCapacity; i++) {
+			mTicks[i] = -1;
+		}
+	}
+	
+	private int slot(long tick) {
+		return (int) (tick % mCapacity);
+	}
+	
+	/**
+	 * Saves the engine as it is now, before its next tick runs, replacing
+	 * whatever was saved <code>capacity</code> ticks ago.
+	 */
+	public void save(PongEngine engine) {
+		long tick = engine.getTick();
+		int slot = slot(tick);
+		engine.snapshot(mStates, slot * PongEngine.SNAPSHOT_SIZE);
+		mTicks[slot] = tick;
+	}
+	
+	/**
+	 * @return true if there's a snapshot from the start of <code>tick</code>
+	 */
+	public boolean contains(long tick) {
+		return tick >= 0 && mTicks[slot(tick)] == tick;
+	}
+	
+	/**
+	 * Puts the engine back the way it was at the start of <code>tick</code>.
+	 * @return false if that tick has fallen out of the ring, or never made
+	 * it in, in which case the engine is left alone
+	 */
+	public boolean restore(PongEngine engine, long tick) {
+		if(!contains(tick)) return false;
+		engine.restore(mStates, slot(tick) * PongEngine.SNAPSHOT_SIZE);
+		return true;
+	}
+	
+	/**
+	 * @return the earliest tick that can still be restored, out of the
+	 * <code>capacity</code> before <code>now</code>, or -1 if none can
+	 */
+	public long oldest(long now) {
+		for(long t = Math.max(0, now - mCapacity + 1); t <= now; t++) {
+			if(contains(t)) return t;
+		}
+		return -1;
+	}
+}
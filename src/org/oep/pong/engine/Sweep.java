@@ -0,0 +1,134 @@
+package org.oep.pong.engine;
+
+/**
+ * Swept circle vs. rectangle test. Rather than checking where the ball ends
+ * up, this checks the whole segment it travels along during a tick, so a fast
+ * ball can't pass through something thinner than its step.
+ * 
+ * An instance holds the result of the last test that hit, so one can be
+ * reused every tick without allocating.
+ */
+public class Sweep {
+	/** Fraction of the step, in [0, 1], at which the ball touched */
+	public float t;
+	
+	/** Center of the ball at the moment of contact */
+	public float x, y;
+	
+	/** Unit surface normal at the point of contact, pointing at the ball */
+	public float nx, ny;
+	
+	public void set(Sweep other) {
+		t = other.t;
+		x = other.x;
+		y = other.y;
+		nx = other.nx;
+		ny = other.ny;
+	}
+	
+	/**
+	 * Moves a circle of radius <code>r</code> from (x0, y0) by (dx, dy) and
+	 * looks for the first moment it touches <code>rect</code>. The rectangle
+	 * has rounded corners as far as the ball is concerned, so grazing a corner
+	 * gives a diagonal normal rather than a face one.
+	 * 
+	 * A ball that already overlaps the rectangle or is moving away from it
+	 * doesn't hit it.
+	 * @return true, with the contact stored in this object, on a hit
+	 */
+	public boolean test(float x0, float y0, float dx, float dy, float r, IntRect rect) {
+		// Treat the ball as a point and grow the rectangle by its radius
+		float left = rect.left - r, right = rect.right + r;
+		float top = rect.top - r, bottom = rect.bottom + r;
+		
+		if(x0 > left && x0 < right && y0 > top && y0 < bottom) {
+			// Only the corners of the grown rectangle can be left to hit
+			if((x0 >= rect.left && x0 <= rect.right) || (y0 >= rect.top && y0 <= rect.bottom)) return false;
+			return corner(x0, y0, dx, dy, r,
+					(x0 < rect.left) ? rect.left : rect.right,
+					(y0 < rect.top) ? rect.top : rect.bottom);
+		}
+		
+		float enter = 0, exit = 1;
+		float enx = 0, eny = 0;
+		
+		if(dx == 0) {
+			if(x0 <= left || x0 >= right) return false;
+		}
+		else {
+			float t1 = (left - x0) / dx, t2 = (right - x0) / dx;
+			float n = -1;
+			if(t1 > t2) {
+				float tmp = t1; t1 = t2; t2 = tmp;
+				n = 1;
+			}
+			if(t1 > enter) {
+				enter = t1;
+				enx = n;
+				eny = 0;
+			}
+			exit = Math.min(exit, t2);
+		}
+		
+		if(dy == 0) {
+			if(y0 <= top || y0 >= bottom) return false;
+		}
+		else {
+			float t1 = (top - y0) / dy, t2 = (bottom - y0) / dy;
+			float n = -1;
+			if(t1 > t2) {
+				float tmp = t1; t1 = t2; t2 = tmp;
+				n = 1;
+			}
+			if(t1 > enter) {
+				enter = t1;
+				enx = 0;
+				eny = n;
+			}
+			exit = Math.min(exit, t2);
+		}
+		
+		if(enter > exit || (enx == 0 && eny == 0)) return false;
+		
+		float hx = x0 + dx * enter, hy = y0 + dy * enter;
+		boolean besideX = hx < rect.left || hx > rect.right;
+		boolean besideY = hy < rect.top || hy > rect.bottom;
+		
+		if(!(besideX && besideY)) {
+			t = enter;
+			x = hx;
+			y = hy;
+			nx = enx;
+			ny = eny;
+			return true;
+		}
+		
+		// We entered the grown rectangle in one of its corners, which is
+		// really a quarter circle around the rectangle's own corner
+		return corner(x0, y0, dx, dy, r,
+				(hx < rect.left) ? rect.left : rect.right,
+				(hy < rect.top) ? rect.top : rect.bottom);
+	}
+	
+	/**
+	 * Moving point vs. circle of radius <code>r</code> around (cx, cy).
+	 */
+	private boolean corner(float x0, float y0, float dx, float dy, float r, float cx, float cy) {
+		float ox = x0 - cx, oy = y0 - cy;
+		float a = dx * dx + dy * dy;
+		float b = ox * dx + oy * dy;
+		float c = ox * ox + oy * oy - r * r;
+		float disc = b * b - a * c;
+		if(c <= 0 || b >= 0 || disc < 0) return false;
+		
+		float s = (-b - (float) Math.sqrt(disc)) / a;
+		if(s < 0 || s > 1) return false;
+		
+		t = s;
+		x = x0 + dx * s;
+		y = y0 + dy * s;
+		nx = (x - cx) / r;
+		ny = (y - cy) / r;
+		return true;
+	}
+}
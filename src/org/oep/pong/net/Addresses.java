@@ -0,0 +1,69 @@
+package org.oep.pong.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns what the player typed into an address without going anywhere near
+ * DNS. Connecting happens on the UI thread, where a name lookup could hang
+ * the activity, so only numeric addresses are accepted.
+ */
+public class Addresses {
+	private Addresses() {
+	}
+	
+	/**
+	 * @param host an IPv4 address like 192.168.1.2, or an IPv6 literal
+	 * @return the address, or null if <code>host</code> isn't one of those
+	 */
+	public static InetAddress numeric(String host) {
+		if(host == null || host.length() == 0) return null;
+		
+		byte[] v4 = parseV4(host);
+		if(v4 != null) {
+			try {
+				return InetAddress.getByAddress(v4);
+			}
+			catch (UnknownHostException e) {
+				return null;
+			}
+		}
+		
+		// A literal is parsed, never looked up, so only let those through
+		if(host.indexOf(':') < 0) return null;
+		for(int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+			if(!hex && c != ':' && c != '.') return null;
+		}
+		try {
+			return InetAddress.getByName(host);
+		}
+		catch (UnknownHostException e) {
+			return null;
+		}
+	}
+	
+	/** @return the four bytes of a dotted quad, or null if it isn't one */
+	private static byte[] parseV4(String host) {
+		byte[] out = new byte[4];
+		int part = 0, value = 0, digits = 0;
+		for(int i = 0; i <= host.length(); i++) {
+			char c = (i < host.length()) ? host.charAt(i) : '.';
+			if(c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if(++digits > 3 || value > 255) return null;
+			}
+			else if(c == '.') {
+				if(digits == 0 || part == 4) return null;
+				out[part++] = (byte) value;
+				value = 0;
+				digits = 0;
+			}
+			else {
+				return null;
+			}
+		}
+		return (part == 4) ? out : null;
+	}
+}
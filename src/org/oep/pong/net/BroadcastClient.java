@@ -0,0 +1,130 @@
+package org.oep.pong.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Watches a match a BroadcastServer is streaming. It never blocks: call
+ * {@link #poll()} once a frame and draw {@link #getEngine()}, which is a
+ * stand-in engine that's never ticked, just moved to wherever the stream
+ * says everything is.
+ */
+public class BroadcastClient {
+	private final SocketChannel mChannel;
+	private final ByteBuffer mIn = ByteBuffer.allocate(4096);
+	private final BroadcastCodec mCodec = new BroadcastCodec();
+	
+	private PongEngine mMirror;
+	private boolean mClosed = false;
+	private long mFrames = 0;
+	
+	/**
+	 * @param channel connected or connecting; it will be made non-blocking
+	 */
+	public BroadcastClient(SocketChannel channel) throws IOException {
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+	}
+	
+	/**
+	 * Starts connecting to a server. Nothing arrives until it has.
+	 * @param host an IP address; names would mean a blocking DNS lookup, so
+	 * they're refused
+	 * @throws UnknownHostException if <code>host</code> isn't an IP address
+	 */
+	public static BroadcastClient connect(String host, int port) throws IOException {
+		InetAddress address = Addresses.numeric(host);
+		if(address == null) throw new UnknownHostException("Not an IP address: " + host);
+		
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(address, port));
+		return new BroadcastClient(channel);
+	}
+	
+	public SocketChannel getChannel() {
+		return mChannel;
+	}
+	
+	/**
+	 * Reads whatever has arrived.
+	 * @return frames read, 0 if none, or -1 once the stream has ended; any
+	 * frames that came in just before the end have still been applied
+	 */
+	public int poll() throws IOException {
+		if(mClosed) return -1;
+		if(mChannel.isConnectionPending() && !mChannel.finishConnect()) return 0;
+		
+		int frames = 0;
+		int n;
+		while((n = mChannel.read(mIn)) > 0) {
+			frames += decodeAll();
+		}
+		if(n < 0) close();
+		
+		if(frames > 0 && mCodec.isValid()) {
+			if(mMirror == null) {
+				mMirror = new PongEngine(mCodec.getWidth(), mCodec.getHeight(), 0);
+			}
+			mCodec.apply(mMirror);
+		}
+		return mClosed ? -1 : frames;
+	}
+	
+	/** Decodes every whole frame in mIn and keeps the rest */
+	private int decodeAll() {
+		byte[] buffer = mIn.array();
+		int at = 0, end = mIn.position(), frames = 0;
+		while(at < end) {
+			int length = buffer[at] & 0xFF;
+			if(at + 1 + length > end) break;
+			if(length > 0 && mCodec.decode(buffer, at + 1, at + 1 + length)) frames++;
+			at += 1 + length;
+		}
+		mFrames += frames;
+		
+		mIn.flip();
+		mIn.position(at);
+		mIn.compact();
+		return frames;
+	}
+	
+	/**
+	 * @return the match as of the last frame, or null until a keyframe
+	 * has arrived
+	 */
+	public PongEngine getEngine() {
+		return mMirror;
+	}
+	
+	/** @return the last frame as decoded */
+	public BroadcastCodec getCodec() {
+		return mCodec;
+	}
+	
+	/** @return frames decoded so far */
+	public long getFrames() {
+		return mFrames;
+	}
+	
+	/** @return true once the server has hung up, or close() was called */
+	public boolean isClosed() {
+		return mClosed;
+	}
+	
+	public void close() {
+		mClosed = true;
+		try {
+			mChannel.close();
+		}
+		catch (IOException e) {
+			// Gone anyway
+		}
+	}
+}
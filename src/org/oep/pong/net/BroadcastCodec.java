@@ -0,0 +1,239 @@
+package org.oep.pong.net;
+
+import org.oep.pong.engine.Ball;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * What a spectator needs to draw a match, one frame per tick: where the
+ * ball and paddles are, the lives and the serve countdown. Positions are
+ * quantized to a quarter pixel. A keyframe carries everything; a delta
+ * carries the change since the frame before it, as zigzag varints, which is
+ * usually a byte per field.
+ * 
+ * Both ends keep one of these. The encoder tracks what it last sent and the
+ * decoder what it last received, in the same quantized units, so deltas
+ * never drift. A decoder that missed a frame has to wait for the next
+ * keyframe; see {@link #decode(byte[], int, int)}.
+ * 
+ * <pre>
+ * KEYFRAME  byte 1, width, height, tick, ball x, ball y, red x, blue x,
+ *           red lives, blue lives, serve countdown
+ * DELTA     byte 2, then the change in each field from tick on
+ * </pre>
+ * 
+ * Every field is a varint; paddles are sent by their center.
+ */
+public class BroadcastCodec {
+	public static final byte KEYFRAME = 1, DELTA = 2;
+	
+	/** Steps per pixel */
+	public static final int QUANTUM = 4;
+	
+	/** Largest frame encode() can write */
+	public static final int MAX_FRAME = 64;
+	
+	/** Whether there's a frame to work from */
+	private boolean mValid = false;
+	
+	private int mWidth, mHeight;
+	private long mTick;
+	private int mBallX, mBallY, mRed, mBlue, mRedLives, mBlueLives, mServe;
+	
+	/** Where decode() is up to */
+	private int mAt;
+	
+	/**
+	 * Writes a frame for the engine as it is now.
+	 * @param keyframe send everything rather than the change since the
+	 * last frame; the first frame is always a keyframe
+	 * @return the index after the frame
+	 */
+	public int encode(PongEngine engine, boolean keyframe, byte[] out, int at) {
+		Ball ball = engine.getBall();
+		Paddle red = engine.getRed(), blue = engine.getBlue();
+		long tick = engine.getTick();
+		int bx = quantize(ball.x), by = quantize(ball.y);
+		int rx = red.centerX(), bluex = blue.centerX();
+		int rl = red.getLives(), bl = blue.getLives(), serve = ball.getServeCounter();
+		
+		if(keyframe || !mValid) {
+			out[at++] = KEYFRAME;
+			at = putVarint(out, at, engine.getWidth());
+			at = putVarint(out, at, engine.getHeight());
+			at = putVarint(out, at, (int) tick);
+			at = putSigned(out, at, bx);
+			at = putSigned(out, at, by);
+			at = putSigned(out, at, rx);
+			at = putSigned(out, at, bluex);
+			at = putVarint(out, at, rl);
+			at = putVarint(out, at, bl);
+			at = putVarint(out, at, serve);
+			mWidth = engine.getWidth();
+			mHeight = engine.getHeight();
+		}
+		else {
+			out[at++] = DELTA;
+			at = putVarint(out, at, (int) (tick - mTick));
+			at = putSigned(out, at, bx - mBallX);
+			at = putSigned(out, at, by - mBallY);
+			at = putSigned(out, at, rx - mRed);
+			at = putSigned(out, at, bluex - mBlue);
+			at = putSigned(out, at, rl - mRedLives);
+			at = putSigned(out, at, bl - mBlueLives);
+			at = putVarint(out, at, serve);
+		}
+		
+		mValid = true;
+		mTick = tick;
+		mBallX = bx;
+		mBallY = by;
+		mRed = rx;
+		mBlue = bluex;
+		mRedLives = rl;
+		mBlueLives = bl;
+		mServe = serve;
+		return at;
+	}
+	
+	/**
+	 * Reads a frame. A delta is skipped until a keyframe has been read;
+	 * call {@link #reset()} after missing a frame so the next deltas are
+	 * skipped too.
+	 * @return false if the frame was skipped or malformed
+	 */
+	public boolean decode(byte[] in, int at, int end) {
+		mAt = at;
+		try {
+			byte type = in[mAt++];
+			if(type == KEYFRAME) {
+				int width = getVarint(in, end), height = getVarint(in, end);
+				long tick = getVarint(in, end) & 0xFFFFFFFFL;
+				int bx = getSigned(in, end), by = getSigned(in, end);
+				int rx = getSigned(in, end), bluex = getSigned(in, end);
+				int rl = getVarint(in, end), bl = getVarint(in, end), serve = getVarint(in, end);
+				
+				mWidth = width;
+				mHeight = height;
+				mTick = tick;
+				mBallX = bx;
+				mBallY = by;
+				mRed = rx;
+				mBlue = bluex;
+				mRedLives = rl;
+				mBlueLives = bl;
+				mServe = serve;
+				mValid = true;
+				return true;
+			}
+			if(type != DELTA || !mValid) return false;
+			
+			int dt = getVarint(in, end);
+			int dbx = getSigned(in, end), dby = getSigned(in, end);
+			int drx = getSigned(in, end), dbluex = getSigned(in, end);
+			int drl = getSigned(in, end), dbl = getSigned(in, end), serve = getVarint(in, end);
+			
+			mTick += dt;
+			mBallX += dbx;
+			mBallY += dby;
+			mRed += drx;
+			mBlue += dbluex;
+			mRedLives += drl;
+			mBlueLives += dbl;
+			mServe = serve;
+			return true;
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			// Truncated; nothing was changed
+			return false;
+		}
+	}
+	
+	/** Forget the last frame, so only a keyframe can be decoded next */
+	public void reset() {
+		mValid = false;
+	}
+	
+	/** @return true once a keyframe has been read, or written */
+	public boolean isValid() {
+		return mValid;
+	}
+	
+	/**
+	 * Makes <code>mirror</code> look like the last frame, as far as drawing
+	 * it goes. It must be the size the keyframe gave.
+	 */
+	public void apply(PongEngine mirror) {
+		Ball ball = mirror.getBall();
+		ball.setPosition((float) mBallX / QUANTUM, (float) mBallY / QUANTUM);
+		ball.setServeCounter(mServe);
+		place(mirror.getRed(), mRed, mRedLives);
+		place(mirror.getBlue(), mBlue, mBlueLives);
+	}
+	
+	private static void place(Paddle paddle, int x, int lives) {
+		paddle.setPosition(x);
+		paddle.destination = x;
+		paddle.setLives(lives);
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	public long getTick() {
+		return mTick;
+	}
+	
+	/**
+	 * A hash of the last frame, to check two ends agree.
+	 */
+	public long stateKey() {
+		long h = mTick;
+		h = 31 * h + mBallX;
+		h = 31 * h + mBallY;
+		h = 31 * h + mRed;
+		h = 31 * h + mBlue;
+		h = 31 * h + mRedLives;
+		h = 31 * h + mBlueLives;
+		h = 31 * h + mServe;
+		return h;
+	}
+	
+	private static int quantize(float v) {
+		return Math.round(v * QUANTUM);
+	}
+	
+	private static int putVarint(byte[] out, int at, int value) {
+		while((value & ~0x7F) != 0) {
+			out[at++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[at++] = (byte) value;
+		return at;
+	}
+	
+	private static int putSigned(byte[] out, int at, int value) {
+		return putVarint(out, at, (value << 1) ^ (value >> 31));
+	}
+	
+	private int getVarint(byte[] in, int end) {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			if(mAt >= end) throw new ArrayIndexOutOfBoundsException(mAt);
+			byte b = in[mAt++];
+			value |= (b & 0x7F) << shift;
+			if(b >= 0) return value;
+		}
+		throw new ArrayIndexOutOfBoundsException(mAt);
+	}
+	
+	private int getSigned(byte[] in, int end) {
+		int v = getVarint(in, end);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,418 @@
+package org.oep.pong.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Streams a match to any number of spectators over TCP. The game calls
+ * {@link #publish(PongEngine)} after each tick, which encodes one frame
+ * (see BroadcastCodec) into a shared log and never touches a socket. A few
+ * I/O threads, each with its own selector and share of the viewers, copy
+ * the log out to every viewer from wherever that viewer is up to, so one
+ * frame is encoded once however many are watching, and everything a slow
+ * viewer has missed goes out in a single write once it catches up.
+ * 
+ * Viewers never hold up the match. Each one's socket buffers are kept
+ * small, and a viewer that falls more than <code>maxLag</code> bytes behind
+ * skips ahead to the latest keyframe. The log holds about an hour of play;
+ * a viewer stuck that far behind mid-frame is disconnected.
+ * 
+ * Each frame in the log is a length byte followed by the frame.
+ */
+public class BroadcastServer {
+	public static final int DEFAULT_PORT = 7341;
+	
+	/** Ticks between keyframes; a new or lagging viewer waits up to this long */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = PongEngine.TICK_RATE;
+	
+	/** About a second and a half of frames */
+	public static final int DEFAULT_MAX_LAG = 4096;
+	
+	/** Bytes of log kept, a power of two */
+	private static final int LOG_SIZE = 1 << 20;
+	private static final int LOG_MASK = LOG_SIZE - 1;
+	
+	/** Kernel send buffer per viewer; small, so lag shows up here quickly */
+	private static final int SEND_BUFFER = 8 * 1024;
+	
+	private final byte[] mLog = new byte[LOG_SIZE];
+	
+	/** Bytes ever written to the log; the next frame goes here */
+	private volatile long mHead = 0;
+	
+	/** Where the latest keyframe starts */
+	private volatile long mKeyframe = 0;
+	
+	private final BroadcastCodec mCodec = new BroadcastCodec();
+	private final byte[] mFrame = new byte[BroadcastCodec.MAX_FRAME];
+	private final int mKeyframeInterval;
+	private int mSinceKeyframe = 0;
+	private final int mMaxLag;
+	
+	private final ServerSocketChannel mServer;
+	private final Thread mAcceptor;
+	private final Worker[] mWorkers;
+	private volatile boolean mRunning = true;
+	
+	/** When close() gives up on flushing, or 0 while running */
+	private volatile long mDrainUntil = 0;
+	
+	/**
+	 * @param port to listen on, or 0 for any
+	 * @param threads I/O threads to share the viewers between
+	 * @param keyframeInterval ticks between keyframes
+	 * @param maxLag bytes a viewer can fall behind before it skips ahead
+	 */
+	public BroadcastServer(int port, int threads, int keyframeInterval, int maxLag) throws IOException {
+		mKeyframeInterval = Math.max(1, keyframeInterval);
+		mMaxLag = Math.max(BroadcastCodec.MAX_FRAME, Math.min(maxLag, LOG_SIZE / 4));
+		
+		mServer = ServerSocketChannel.open();
+		mServer.socket().setReuseAddress(true);
+		mServer.socket().bind(new InetSocketAddress(port), 1024);
+		
+		mWorkers = new Worker[Math.max(1, threads)];
+		for(int i = 0; i < mWorkers.length; i++) {
+			mWorkers[i] = new Worker(i);
+			mWorkers[i].start();
+		}
+		
+		mAcceptor = new Thread("BroadcastAccept") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		mAcceptor.setDaemon(true);
+		mAcceptor.start();
+	}
+	
+	public BroadcastServer(int port) throws IOException {
+		this(port, 1, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_MAX_LAG);
+	}
+	
+	public int getPort() {
+		return mServer.socket().getLocalPort();
+	}
+	
+	/**
+	 * Sends a frame for the engine as it is now. Call once a tick, always
+	 * from the same thread. Never blocks on a viewer.
+	 */
+	public void publish(PongEngine engine) {
+		boolean key = mSinceKeyframe == 0;
+		mSinceKeyframe = (mSinceKeyframe + 1) % mKeyframeInterval;
+		int length = mCodec.encode(engine, key, mFrame, 0);
+		
+		long head = mHead;
+		mLog[(int) (head & LOG_MASK)] = (byte) length;
+		for(int i = 0; i < length; i++) {
+			mLog[(int) ((head + 1 + i) & LOG_MASK)] = mFrame[i];
+		}
+		
+		// Readers look at mKeyframe before mHead, so it's never ahead of it
+		if(key) mKeyframe = head;
+		mHead = head + 1 + length;
+		
+		for(Worker w : mWorkers) {
+			w.mSelector.wakeup();
+		}
+	}
+	
+	/** @return the state as of the last frame published */
+	public BroadcastCodec getCodec() {
+		return mCodec;
+	}
+	
+	public int getViewers() {
+		int n = 0;
+		for(Worker w : mWorkers) {
+			n += w.mCount;
+		}
+		return n;
+	}
+	
+	/** @return how many times a viewer skipped ahead to a keyframe */
+	public long getSkips() {
+		long n = 0;
+		for(Worker w : mWorkers) {
+			n += w.mSkips;
+		}
+		return n;
+	}
+	
+	public long getBytesSent() {
+		long n = 0;
+		for(Worker w : mWorkers) {
+			n += w.mBytes;
+		}
+		return n;
+	}
+	
+	/**
+	 * Stops taking viewers, gives the ones that are keeping up up to
+	 * <code>drainMillis</code> to receive everything published, then
+	 * disconnects everyone.
+	 */
+	public void close(long drainMillis) {
+		try {
+			mServer.close();
+		}
+		catch (IOException e) {
+			// Closing anyway
+		}
+		mDrainUntil = System.nanoTime() + drainMillis * 1000000;
+		mRunning = false;
+		for(Worker w : mWorkers) {
+			w.mSelector.wakeup();
+			boolean joined = false;
+			while(!joined) {
+				try {
+					w.join();
+					joined = true;
+				}
+				catch (InterruptedException e) {
+					// Try again
+				}
+			}
+		}
+	}
+	
+	private void accept() {
+		int next = 0;
+		while(mRunning) {
+			try {
+				SocketChannel channel = mServer.accept();
+				Worker w = mWorkers[next];
+				next = (next + 1) % mWorkers.length;
+				w.mIncoming.add(channel);
+				w.mSelector.wakeup();
+			}
+			catch (IOException e) {
+				// Closed, or out of file descriptors; either way try again
+				// or stop
+				if(!mServer.isOpen()) return;
+				pause();
+			}
+		}
+	}
+	
+	private static void pause() {
+		try {
+			Thread.sleep(10);
+		}
+		catch (InterruptedException e) {
+			// Carry on
+		}
+	}
+	
+	/** One spectator */
+	private static class Viewer {
+		final SocketChannel channel;
+		final SelectionKey key;
+		
+		/** Log position sent up to, and the next frame boundary at or after it */
+		long pos, next;
+		
+		Viewer(SocketChannel channel, SelectionKey key, long start) {
+			this.channel = channel;
+			this.key = key;
+			pos = next = start;
+		}
+	}
+	
+	private class Worker extends Thread {
+		final Selector mSelector;
+		final ConcurrentLinkedQueue<SocketChannel> mIncoming = new ConcurrentLinkedQueue<SocketChannel>();
+		final ArrayList<Viewer> mViewers = new ArrayList<Viewer>();
+		
+		/** Written by this thread only */
+		volatile int mCount = 0;
+		volatile long mSkips = 0, mBytes = 0;
+		
+		/** The log in two pieces, for when a write wraps around the end */
+		final ByteBuffer mFirst = ByteBuffer.wrap(mLog), mSecond = ByteBuffer.wrap(mLog);
+		final ByteBuffer[] mBoth = { mFirst, mSecond };
+		final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+		
+		Worker(int index) throws IOException {
+			super("Broadcast-" + index);
+			setDaemon(true);
+			mSelector = Selector.open();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(mRunning) {
+					mSelector.select(100);
+					register();
+					readAll();
+					flushAll();
+				}
+				drain();
+			}
+			catch (IOException e) {
+				// The selector failed; nothing more we can do
+			}
+			finally {
+				for(Viewer v : mViewers) {
+					closeQuietly(v.channel);
+				}
+				mViewers.clear();
+				mCount = 0;
+				try {
+					mSelector.close();
+				}
+				catch (IOException e) {
+					// Done anyway
+				}
+				SocketChannel c;
+				while((c = mIncoming.poll()) != null) {
+					closeQuietly(c);
+				}
+			}
+		}
+		
+		private void register() {
+			SocketChannel channel;
+			while((channel = mIncoming.poll()) != null) {
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setSendBufferSize(SEND_BUFFER);
+					channel.socket().setTcpNoDelay(true);
+					SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+					Viewer v = new Viewer(channel, key, mKeyframe);
+					key.attach(v);
+					mViewers.add(v);
+				}
+				catch (IOException e) {
+					closeQuietly(channel);
+				}
+			}
+			mCount = mViewers.size();
+		}
+		
+		/** Viewers don't send anything; this just notices them leaving */
+		private void readAll() {
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Viewer v = (Viewer) key.attachment();
+				try {
+					mDiscard.clear();
+					if(v.channel.read(mDiscard) < 0) drop(v);
+				}
+				catch (IOException e) {
+					drop(v);
+				}
+			}
+		}
+		
+		/** @return true if everyone still here has everything */
+		private boolean flushAll() {
+			long keyframe = mKeyframe;
+			long head = mHead;
+			boolean done = true;
+			for(int i = 0; i < mViewers.size(); i++) {
+				Viewer v = mViewers.get(i);
+				if(!v.channel.isOpen()) {
+					remove(i--);
+					continue;
+				}
+				try {
+					if(!flush(v, head, keyframe)) done = false;
+				}
+				catch (IOException e) {
+					closeQuietly(v.channel);
+					remove(i--);
+				}
+			}
+			mCount = mViewers.size();
+			return done;
+		}
+		
+		/** @return true if the viewer has everything up to <code>head</code> */
+		private boolean flush(Viewer v, long head, long keyframe) throws IOException {
+			long behind = head - v.pos;
+			if(behind > LOG_SIZE - BroadcastCodec.MAX_FRAME) {
+				// Stuck mid-frame so long its bytes have been overwritten
+				throw new ClosedChannelException();
+			}
+			
+			long end = head;
+			if(behind > mMaxLag) {
+				if(v.pos == v.next && keyframe > v.pos) {
+					v.pos = v.next = keyframe;
+					mSkips++;
+				}
+				else if(v.pos != v.next) {
+					// Finish the frame we're in the middle of first
+					end = v.next;
+				}
+			}
+			if(end <= v.pos) return end == head;
+			
+			int from = (int) (v.pos & LOG_MASK), to = (int) (end & LOG_MASK);
+			long written;
+			if(from < to) {
+				mFirst.limit(to).position(from);
+				written = v.channel.write(mFirst);
+			}
+			else {
+				mFirst.limit(LOG_SIZE).position(from);
+				mSecond.limit(to).position(0);
+				written = v.channel.write(mBoth);
+			}
+			v.pos += written;
+			mBytes += written;
+			
+			while(v.next < v.pos) {
+				v.next += 1 + (mLog[(int) (v.next & LOG_MASK)] & 0xFF);
+			}
+			return v.pos == head;
+		}
+		
+		/** Last chance for the viewers that are keeping up */
+		private void drain() throws IOException {
+			while(System.nanoTime() < mDrainUntil) {
+				register();
+				readAll();
+				if(flushAll()) return;
+				mSelector.select(10);
+			}
+		}
+		
+		private void drop(Viewer v) {
+			v.key.cancel();
+			closeQuietly(v.channel);
+		}
+		
+		private void remove(int i) {
+			int last = mViewers.size() - 1;
+			mViewers.set(i, mViewers.get(last));
+			mViewers.remove(last);
+		}
+	}
+	
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// Gone anyway
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package org.oep.pong.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * One side of a two-device match played in lockstep over UDP. Both devices
+ * run the same fixed-point simulation and only ever send each other their
+ * own paddle's destination for each tick, so they stay identical as long as
+ * the inputs arrive.
+ * 
+ * Local input is scheduled <code>delay</code> ticks ahead of the tick it's
+ * read on. That gives it time to reach the other device before it's needed,
+ * so normally neither side waits and the only lag added is the delay itself.
+ * If it hasn't arrived, the side that's ahead waits for it rather than
+ * guessing; it can never be more than <code>delay</code> ticks ahead.
+ * 
+ * Every packet carries all the inputs the other side hasn't acknowledged
+ * yet, so a lost packet is made up for by the next one with no resending.
+ * Packets also carry the hash of the simulation at the latest checkpoint,
+ * and a mismatch means the two sides have desynced.
+ * 
+ * <pre>
+ * HELLO  byte 1, int magic, byte version, byte got-yours, long nonce,
+ *        long seed, short width, short height, byte speed, byte lives,
+ *        byte delay
+ * INPUT  byte 2, int last tick received, int first tick, byte count,
+ *        short destination * count, int checkpoint tick, long hash
+ * BYE    byte 3
+ * </pre>
+ * 
+ * Whichever side picked the bigger nonce plays red and decides the seed,
+ * the rules and the delay. The field is the smaller of the two screens.
+ * 
+ * Not thread safe; the game loop drives it.
+ */
+public class LockstepSession {
+	public static final int DEFAULT_PORT = 7340;
+	
+	/** 1 tick is 33ms */
+	public static final int DEFAULT_DELAY = 3;
+	
+	/** Ticks between state hash checkpoints */
+	public static final int CHECK_INTERVAL = 30;
+	
+	private static final int MAGIC = 0x504e474c; // "PNGL"
+	private static final int VERSION = 1;
+	
+	private static final byte HELLO = 1, INPUT = 2, BYE = 3;
+	
+	/** Ticks between packets; every packet still carries every tick */
+	private static final int SEND_INTERVAL = 2;
+	
+	/** How often to say hello until the other side answers */
+	private static final long HELLO_INTERVAL = 200 * 1000000L;
+	
+	/** Give up if nothing has been heard for this long */
+	private static final long TIMEOUT = 5000 * 1000000L;
+	
+	/** Inputs kept on each side, a power of two */
+	private static final int WINDOW = 256;
+	
+	/** Most inputs in a packet */
+	private static final int MAX_INPUTS = 64;
+	
+	/** Checkpoint hashes kept on each side, a power of two */
+	private static final int CHECKPOINTS = 16;
+	
+	public enum State { CONNECTING, PLAYING, DESYNCED, DISCONNECTED }
+	
+	private final DatagramChannel mChannel;
+	private final SocketAddress mPeer;
+	private final ByteBuffer mOut = ByteBuffer.allocate(512);
+	private final ByteBuffer mIn = ByteBuffer.allocate(512);
+	
+	private State mState = State.CONNECTING;
+	
+	/** What we proposed, and what the two of us agreed on */
+	private final long mNonce;
+	private final long mSeed;
+	private final int mWidth, mHeight, mSpeed, mLives, mDelay;
+	private boolean mGotHello = false;
+	private boolean mRed;
+	private int mFieldWidth, mFieldHeight, mMatchSpeed, mMatchLives, mMatchDelay;
+	private long mMatchSeed;
+	
+	private PongEngine mEngine;
+	private Paddle mLocal, mRemote;
+	
+	/** Our inputs; everything up to mLocalHigh has been scheduled */
+	private final short[] mLocalInputs = new short[WINDOW];
+	private int mLocalHigh = -1;
+	
+	/** The other side's inputs; every tick up to mRemoteHigh has arrived */
+	private final short[] mRemoteInputs = new short[WINDOW];
+	private int mRemoteHigh = -1;
+	
+	/** Highest of our ticks the other side says it has */
+	private int mAcked = -1;
+	
+	/** Hashes at our checkpoints, and the other side's latest */
+	private final long[] mHashes = new long[CHECKPOINTS];
+	private int mLastCheckpoint = -1;
+	private int mDesyncTick = -1;
+	
+	/** When we last sent and last heard anything */
+	private long mLastSend = Long.MIN_VALUE / 2, mLastHeard;
+	
+	/** Bytes and packets sent, counting 28 bytes of IP and UDP header each */
+	private long mBytesSent = 0, mPacketsSent = 0;
+	
+	/** Ticks we couldn't run because the other side's input was late */
+	private long mStalls = 0;
+	
+	/**
+	 * @param channel bound to a local port; it will be made non-blocking
+	 * @param peer the other device
+	 * @param width size of our screen, to fit the field in
+	 * @param speed ball speed modifier, should we end up deciding
+	 * @param lives lives each, should we end up deciding
+	 * @param delay input delay in ticks, should we end up deciding
+	 */
+	public LockstepSession(DatagramChannel channel, SocketAddress peer, int width, int height,
+			int speed, int lives, int delay, long now) throws IOException {
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+		mPeer = peer;
+		
+		Random random = new Random();
+		mNonce = random.nextLong();
+		mSeed = random.nextLong();
+		mWidth = width;
+		mHeight = height;
+		mSpeed = speed;
+		mLives = lives;
+		mDelay = Math.max(1, Math.min(delay, MAX_INPUTS / 2));
+		mLastHeard = now;
+	}
+	
+	public State getState() {
+		return mState;
+	}
+	
+	/** @return the engine both sides are running, once PLAYING */
+	public PongEngine getEngine() {
+		return mEngine;
+	}
+	
+	/** @return true if we play red, the top paddle */
+	public boolean isRed() {
+		return mRed;
+	}
+	
+	public int getDelay() {
+		return mMatchDelay;
+	}
+	
+	/** @return the tick the hashes first disagreed at, or -1 */
+	public int getDesyncTick() {
+		return mDesyncTick;
+	}
+	
+	public long getBytesSent() {
+		return mBytesSent;
+	}
+	
+	public long getPacketsSent() {
+		return mPacketsSent;
+	}
+	
+	public long getStalls() {
+		return mStalls;
+	}
+	
+	/**
+	 * Reads whatever has arrived and says hello or resends inputs if it's
+	 * time. Call at least once a frame.
+	 * @param now System.nanoTime()
+	 */
+	public void update(long now) throws IOException {
+		if(mState == State.DISCONNECTED) return;
+		
+		while(receive(now)) {
+			// Keep reading
+		}
+		
+		// Waiting to connect can take as long as the other player likes
+		if(mState != State.CONNECTING && now - mLastHeard > TIMEOUT) {
+			mState = State.DISCONNECTED;
+			return;
+		}
+		
+		if(mState == State.CONNECTING) {
+			if(now - mLastSend >= HELLO_INTERVAL) {
+				sendHello(now);
+			}
+		}
+		else if(mLocalHigh > mAcked && now - mLastSend >= HELLO_INTERVAL) {
+			// We're waiting and they may have lost our last packets
+			sendInputs(now);
+		}
+	}
+	
+	/**
+	 * @return true if the next tick can be run
+	 */
+	public boolean canTick() {
+		return mState == State.PLAYING && mEngine.getTick() <= mRemoteHigh;
+	}
+	
+	/**
+	 * Runs the next tick if the other side's input for it is here.
+	 * @param destination where our player wants the paddle now; it will
+	 * get there <code>delay</code> ticks from now
+	 * @param now System.nanoTime()
+	 * @return false if we're still waiting on the other side
+	 */
+	public boolean tick(int destination, long now) throws IOException {
+		if(!canTick()) {
+			if(mState == State.PLAYING) mStalls++;
+			return false;
+		}
+		
+		int tick = (int) mEngine.getTick();
+		
+		// This is what the other side will see for tick + delay
+		int scheduled = tick + mMatchDelay;
+		mLocalInputs[scheduled & (WINDOW - 1)] = (short) destination;
+		mLocalHigh = scheduled;
+		
+		mLocal.destination = mLocalInputs[tick & (WINDOW - 1)];
+		mRemote.destination = mRemoteInputs[tick & (WINDOW - 1)];
+		mEngine.tick();
+		
+		long done = mEngine.getTick();
+		if(done % CHECK_INTERVAL == 0) {
+			mHashes[(int) (done / CHECK_INTERVAL) & (CHECKPOINTS - 1)] = mEngine.stateHash();
+			mLastCheckpoint = (int) done;
+		}
+		
+		if(tick % SEND_INTERVAL == 0) sendInputs(now);
+		return true;
+	}
+	
+	/**
+	 * Tells the other side we're leaving. The session is finished after.
+	 */
+	public void close() {
+		if(mState != State.DISCONNECTED) {
+			mOut.clear();
+			mOut.put(BYE);
+			try {
+				send(0);
+			}
+			catch (IOException e) {
+				// They'll time out instead
+			}
+		}
+		mState = State.DISCONNECTED;
+	}
+	
+	private void send(long now) throws IOException {
+		mOut.flip();
+		mBytesSent += mOut.remaining() + 28;
+		mPacketsSent++;
+		mChannel.send(mOut, mPeer);
+		mLastSend = now;
+	}
+	
+	private void sendHello(long now) throws IOException {
+		mOut.clear();
+		mOut.put(HELLO);
+		mOut.putInt(MAGIC);
+		mOut.put((byte) VERSION);
+		mOut.put((byte) (mGotHello ? 1 : 0));
+		mOut.putLong(mNonce);
+		mOut.putLong(mSeed);
+		mOut.putShort((short) mWidth);
+		mOut.putShort((short) mHeight);
+		mOut.put((byte) mSpeed);
+		mOut.put((byte) mLives);
+		mOut.put((byte) mDelay);
+		send(now);
+	}
+	
+	private void sendInputs(long now) throws IOException {
+		int first = Math.max(mAcked + 1, mLocalHigh - MAX_INPUTS + 1);
+		int count = Math.max(0, mLocalHigh - first + 1);
+		
+		mOut.clear();
+		mOut.put(INPUT);
+		mOut.putInt(mRemoteHigh);
+		mOut.putInt(first);
+		mOut.put((byte) count);
+		for(int t = first; t <= mLocalHigh; t++) {
+			mOut.putShort(mLocalInputs[t & (WINDOW - 1)]);
+		}
+		mOut.putInt(mLastCheckpoint);
+		mOut.putLong((mLastCheckpoint < 0) ? 0 : mHashes[(mLastCheckpoint / CHECK_INTERVAL) & (CHECKPOINTS - 1)]);
+		send(now);
+	}
+	
+	/** @return false if there was nothing to read */
+	private boolean receive(long now) throws IOException {
+		mIn.clear();
+		SocketAddress from = mChannel.receive(mIn);
+		if(from == null) return false;
+		if(!from.equals(mPeer)) return true;
+		mIn.flip();
+		if(!mIn.hasRemaining()) return true;
+		
+		mLastHeard = now;
+		try {
+			switch(mIn.get()) {
+			case HELLO:
+				receiveHello(now);
+				break;
+			case INPUT:
+				if(mState == State.CONNECTING && mGotHello) start();
+				if(mEngine != null) receiveInputs();
+				break;
+			case BYE:
+				mState = State.DISCONNECTED;
+				break;
+			}
+		}
+		catch (BufferUnderflowException e) {
+			// A truncated packet; ignore it
+		}
+		return true;
+	}
+	
+	private void receiveHello(long now) throws IOException {
+		if(mIn.getInt() != MAGIC || mIn.get() != VERSION) return;
+		boolean gotOurs = mIn.get() != 0;
+		long nonce = mIn.getLong();
+		long seed = mIn.getLong();
+		int width = mIn.getShort(), height = mIn.getShort();
+		int speed = mIn.get(), lives = mIn.get(), delay = mIn.get();
+		
+		if(mState != State.CONNECTING) {
+			// They haven't heard us yet; our inputs will tell them
+			if(!gotOurs) sendHello(now);
+			return;
+		}
+		
+		if(!mGotHello) {
+			mGotHello = true;
+			mRed = mNonce > nonce;
+			mFieldWidth = Math.min(mWidth, width);
+			mFieldHeight = Math.min(mHeight, height);
+			mMatchSeed = mRed ? mSeed : seed;
+			mMatchSpeed = mRed ? mSpeed : speed;
+			mMatchLives = mRed ? mLives : lives;
+			mMatchDelay = Math.max(1, Math.min(mRed ? mDelay : delay, MAX_INPUTS / 2));
+		}
+		
+		sendHello(now);
+		if(gotOurs) start();
+	}
+	
+	/** Both sides know everything; set up the match */
+	private void start() {
+		if(mEngine != null) return;
+		
+		mEngine = new PongEngine(mFieldWidth, mFieldHeight, mMatchSeed, true);
+		mEngine.setBallSpeedModifier(mMatchSpeed);
+		mEngine.setLives(mMatchLives);
+		mEngine.getRed().player = true;
+		mEngine.getBlue().player = true;
+		
+		mLocal = mRed ? mEngine.getRed() : mEngine.getBlue();
+		mRemote = mRed ? mEngine.getBlue() : mEngine.getRed();
+		
+		// The first ticks before anyone's input can arrive leave the paddles be
+		for(int t = 0; t < mMatchDelay; t++) {
+			mLocalInputs[t] = (short) mLocal.destination;
+			mRemoteInputs[t] = (short) mRemote.destination;
+		}
+		mLocalHigh = mMatchDelay - 1;
+		mRemoteHigh = mMatchDelay - 1;
+		mAcked = mMatchDelay - 1;
+		
+		mState = State.PLAYING;
+	}
+	
+	private void receiveInputs() {
+		int acked = mIn.getInt();
+		int first = mIn.getInt();
+		int count = mIn.get() & 0xFF;
+		
+		if(acked > mAcked) mAcked = Math.min(acked, mLocalHigh);
+		
+		// Inputs always start at or before the first one we're missing
+		for(int i = 0; i < count; i++) {
+			short destination = mIn.getShort();
+			int t = first + i;
+			if(t == mRemoteHigh + 1 && t - mEngine.getTick() < WINDOW) {
+				mRemoteInputs[t & (WINDOW - 1)] = destination;
+				mRemoteHigh = t;
+			}
+		}
+		
+		int checkpoint = mIn.getInt();
+		long hash = mIn.getLong();
+		checkHash(checkpoint, hash);
+	}
+	
+	private void checkHash(int checkpoint, long hash) {
+		if(checkpoint <= 0 || mState != State.PLAYING) return;
+		
+		// Only compare against checkpoints we've passed and still remember
+		if(checkpoint > mLastCheckpoint || mLastCheckpoint - checkpoint >= CHECKPOINTS * CHECK_INTERVAL) {
+			return;
+		}
+		if(mHashes[(checkpoint / CHECK_INTERVAL) & (CHECKPOINTS - 1)] != hash) {
+			mDesyncTick = checkpoint;
+			mState = State.DESYNCED;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package org.oep.pong.perf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where each frame's time went, for the last few hundred frames. The thread
+ * running the game loop is the only writer; input time can be added from any
+ * thread. Readers on any thread get a consistent copy without locking: frames
+ * are published by bumping a volatile counter, and anything the writer lapped
+ * while it was being copied is thrown out.
+ * 
+ * All times are in nanoseconds.
+ */
+public class FrameStats {
+	/** Touch and trackball handling */
+	public static final int INPUT = 0;
+	/** Simulation ticks, not counting the AI */
+	public static final int LOGIC = 1;
+	/** The AI's share of the ticks */
+	public static final int AI = 2;
+	/** Drawing */
+	public static final int DRAW = 3;
+	/** How much later than asked for the loop woke up */
+	public static final int JITTER = 4;
+	/** Start of one frame to the start of the next */
+	public static final int FRAME = 5;
+	
+	public static final int SECTIONS = 6;
+	
+	private static final String[] NAMES = { "input", "logic", "ai", "draw", "jitter", "frame" };
+	
+	/** Frames kept, a power of two */
+	private final int mCapacity;
+	private final int mMask;
+	
+	/** SECTIONS samples per frame, oldest overwritten first */
+	private final long[] mSamples;
+	
+	/** Frames published so far */
+	private volatile long mFrames = 0;
+	
+	/** Frames that took long enough to miss at least one refresh */
+	private volatile long mDropped = 0;
+	
+	private final long mTargetNanos;
+	
+	/** The frame in progress; only the writer touches these */
+	private final long[] mOpen = new long[SECTIONS];
+	private long mFrameStart = -1;
+	private long mExpectedWake = -1;
+	
+	/** Input time since the last frame, from whatever thread handles input */
+	private final AtomicLong mInput = new AtomicLong();
+	
+	/** Scratch space for summarize(), used by one reader at a time */
+	private final long[] mScratch;
+	
+	/**
+	 * @param frames how many frames to remember, rounded up to a power of two
+	 * @param fps the frame rate being aimed for
+	 */
+	public FrameStats(int frames, int fps) {
+		int capacity = Integer.highestOneBit(Math.max(2, frames - 1)) << 1;
+		mCapacity = capacity;
+		mMask = capacity - 1;
+		mSamples = new long[capacity * SECTIONS];
+		mScratch = new long[capacity];
+		mTargetNanos = 1000000000L / fps;
+	}
+	
+	public static String name(int section) {
+		return NAMES[section];
+	}
+	
+	public int capacity() {
+		return mCapacity;
+	}
+	
+	/**
+	 * Ends the previous frame and starts another. Writer only.
+	 */
+	public void beginFrame(long now) {
+		if(mFrameStart >= 0) {
+			mOpen[FRAME] = now - mFrameStart;
+			mOpen[INPUT] += mInput.getAndSet(0);
+			if(mExpectedWake >= 0) mOpen[JITTER] += Math.max(0, now - mExpectedWake);
+			commit();
+		}
+		mExpectedWake = -1;
+		mFrameStart = now;
+	}
+	
+	/**
+	 * Adds time to a section of the frame in progress. Writer only.
+	 */
+	public void add(int section, long nanos) {
+		mOpen[section] += nanos;
+	}
+	
+	/**
+	 * Adds time spent handling input. Any thread.
+	 */
+	public void addInput(long nanos) {
+		mInput.addAndGet(nanos);
+	}
+	
+	/**
+	 * The loop is about to sleep until <code>time</code>; whatever it
+	 * oversleeps by counts as jitter. Writer only.
+	 */
+	public void expectWake(long time) {
+		mExpectedWake = time;
+	}
+	
+	private void commit() {
+		long n = mFrames;
+		int base = (int) (n & mMask) * SECTIONS;
+		for(int i = 0; i < SECTIONS; i++) {
+			mSamples[base + i] = mOpen[i];
+			mOpen[i] = 0;
+		}
+		
+		long frame = mSamples[base + FRAME];
+		if(frame > mTargetNanos + mTargetNanos / 2) {
+			mDropped += Math.max(1, frame / mTargetNanos - 1);
+		}
+		mFrames = n + 1;
+	}
+	
+	public long getFrameCount() {
+		return mFrames;
+	}
+	
+	/** Refreshes missed since we started, going by the target frame rate */
+	public long getDroppedFrames() {
+		return mDropped;
+	}
+	
+	/**
+	 * Copies the recorded samples of one section, oldest first.
+	 * @param out at least capacity() long
+	 * @return how many were copied
+	 */
+	public int snapshot(int section, long[] out) {
+		return copy(section, 1, out);
+	}
+	
+	/**
+	 * Copies whole frames, oldest first, SECTIONS samples each.
+	 * @param out at least capacity() * SECTIONS long
+	 * @return how many frames were copied
+	 */
+	public int snapshot(long[] out) {
+		return copy(0, SECTIONS, out);
+	}
+	
+	private int copy(int first, int width, long[] out) {
+		long end = mFrames;
+		long start = Math.max(0, end - mCapacity);
+		int n = 0;
+		for(long f = start; f < end; f++) {
+			System.arraycopy(mSamples, (int) (f & mMask) * SECTIONS + first, out, n * width, width);
+			n++;
+		}
+		
+		// The writer may have started overwriting the oldest frames while we
+		// were copying; drop any it could have reached
+		long safe = Math.max(start, mFrames + 1 - mCapacity);
+		int skip = (int) Math.min(n, safe - start);
+		if(skip > 0) {
+			n -= skip;
+			System.arraycopy(out, skip * width, out, 0, n * width);
+		}
+		return n;
+	}
+	
+	/** Percentiles of one section, in nanoseconds */
+	public static class Summary {
+		public int count;
+		public long p50, p95, p99, max;
+	}
+	
+	/**
+	 * Works out percentiles of the frames currently remembered. Not safe to
+	 * call from two threads at once.
+	 */
+	public void summarize(int section, Summary out) {
+		int n = snapshot(section, mScratch);
+		out.count = n;
+		if(n == 0) {
+			out.p50 = out.p95 = out.p99 = out.max = 0;
+			return;
+		}
+		Arrays.sort(mScratch, 0, n);
+		out.p50 = mScratch[percentile(n, 50)];
+		out.p95 = mScratch[percentile(n, 95)];
+		out.p99 = mScratch[percentile(n, 99)];
+		out.max = mScratch[n - 1];
+	}
+	
+	private static int percentile(int n, int p) {
+		return Math.min(n - 1, (int) ((long) n * p / 100));
+	}
+	
+	/**
+	 * Writes the remembered frames as CSV, oldest first, one column per
+	 * section. Meant for tests and bug reports; safe from any thread.
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		long[] frames = new long[mCapacity * SECTIONS];
+		int n = snapshot(frames);
+		
+		StringBuilder line = new StringBuilder();
+		for(int s = 0; s < SECTIONS; s++) {
+			if(s > 0) line.append(',');
+			line.append(NAMES[s]);
+		}
+		out.write(line.append('\n').toString());
+		
+		for(int i = 0; i < n; i++) {
+			line.setLength(0);
+			for(int s = 0; s < SECTIONS; s++) {
+				if(s > 0) line.append(',');
+				line.append(frames[i * SECTIONS + s]);
+			}
+			out.write(line.append('\n').toString());
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,115 @@
+package org.oep.pong.perf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads logs written by {@link HistogramSink}, one interval at a time.
+ * 
+ * A log starts with a header:
+ * 
+ * <pre>
+ * int     magic "PHLG"
+ * byte    version
+ * long    wall clock time the log was started, in milliseconds
+ * varint  number of series
+ * UTF     name of each series
+ * </pre>
+ * 
+ * followed by intervals until the end of the file:
+ * 
+ * <pre>
+ * varint  start of the interval, in milliseconds since the log started
+ * varint  length of the interval, in milliseconds
+ *         a {@link LatencyHistogram} for each series
+ * </pre>
+ * 
+ * If the game was killed partway through writing an interval, that interval
+ * is ignored.
+ */
+public class HistogramLog {
+	static final int MAGIC = 0x50484c47; // "PHLG"
+	static final int VERSION = 1;
+	
+	/** One interval of a log; reused from one call of next() to another */
+	public static class Interval {
+		public long start, length;
+		public LatencyHistogram[] histograms;
+	}
+	
+	private final DataInputStream mIn;
+	private final long mStartTime;
+	private final String[] mSeries;
+	
+	public HistogramLog(InputStream in) throws IOException {
+		mIn = new DataInputStream(new BufferedInputStream(in));
+		
+		if(mIn.readInt() != MAGIC) {
+			throw new IOException("Not a histogram log");
+		}
+		int version = mIn.readUnsignedByte();
+		if(version != VERSION) {
+			throw new IOException("Unsupported histogram log version " + version);
+		}
+		
+		mStartTime = mIn.readLong();
+		int count = (int) LatencyHistogram.readVarint(mIn);
+		mSeries = new String[count];
+		for(int i = 0; i < count; i++) {
+			mSeries[i] = mIn.readUTF();
+		}
+	}
+	
+	/** Wall clock time the log was started, in milliseconds */
+	public long getStartTime() {
+		return mStartTime;
+	}
+	
+	public String[] getSeries() {
+		return mSeries.clone();
+	}
+	
+	/**
+	 * Reads the next interval into <code>out</code>, replacing what was
+	 * there.
+	 * @return false at the end of the log
+	 */
+	public boolean next(Interval out) throws IOException {
+		if(out.histograms == null || out.histograms.length != mSeries.length) {
+			out.histograms = new LatencyHistogram[mSeries.length];
+			for(int i = 0; i < mSeries.length; i++) {
+				out.histograms[i] = new LatencyHistogram();
+			}
+		}
+		
+		try {
+			int first = mIn.read();
+			if(first < 0) return false;
+			
+			// First byte of the start varint, already read
+			long start = first & 0x7F;
+			if((first & 0x80) != 0) {
+				start |= LatencyHistogram.readVarint(mIn) << 7;
+			}
+			
+			out.start = start;
+			out.length = LatencyHistogram.readVarint(mIn);
+			for(LatencyHistogram h : out.histograms) {
+				h.reset();
+				h.read(mIn);
+			}
+			return true;
+		}
+		catch (EOFException e) {
+			// Cut off while the interval was being written
+			return false;
+		}
+	}
+	
+	public void close() throws IOException {
+		mIn.close();
+	}
+}
@@ -0,0 +1,218 @@
+package org.oep.pong.perf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects latency histograms from the game loop and streams them to a file
+ * (see {@link HistogramLog} for the format) every few seconds.
+ * 
+ * There are two sets of histograms. The game loop records into one while a
+ * background thread writes out and clears the other, then they swap. If the
+ * writer is still busy when an interval is up the game loop just keeps
+ * recording into the interval it has, so it never waits on the disk.
+ * 
+ * record() and roll() must be called from one thread, the one running the
+ * game loop.
+ */
+public class HistogramSink {
+	private final File mFile;
+	private final String[] mSeries;
+	private final long mIntervalNanos;
+	
+	/** When the log was started, by the wall clock and by nanoTime() */
+	private final long mStartTime, mStartNanos;
+	
+	private static class Interval {
+		long start, end;
+		final LatencyHistogram[] histograms;
+		
+		Interval(int series) {
+			histograms = new LatencyHistogram[series];
+			for(int i = 0; i < series; i++) {
+				histograms[i] = new LatencyHistogram();
+			}
+		}
+	}
+	
+	/** Being recorded into; game loop only */
+	private Interval mLive;
+	
+	/** Free for the game loop to swap in, or null while the writer has it */
+	private volatile Interval mSpare;
+	
+	/** Handed to the writer, or null if there's nothing to write */
+	private volatile Interval mFull;
+	
+	private volatile boolean mRunning = true;
+	private volatile IOException mError;
+	
+	/** Waiting in close() for the writer, if anyone is */
+	private volatile Thread mCloser;
+	
+	private final Thread mWriter = new Thread("HistogramSink") {
+		@Override
+		public void run() {
+			writeLoop();
+		}
+	};
+	
+	/**
+	 * Starts a log in <code>file</code>, replacing anything already there.
+	 * @param series names of the series that will be recorded
+	 * @param intervalMillis how often to write out what has been recorded
+	 * @param now the current System.nanoTime()
+	 */
+	public HistogramSink(File file, String[] series, long intervalMillis, long now) {
+		mFile = file;
+		mSeries = series.clone();
+		mIntervalNanos = intervalMillis * 1000000;
+		mStartTime = System.currentTimeMillis();
+		mStartNanos = now;
+		
+		mLive = new Interval(series.length);
+		mLive.start = now;
+		mSpare = new Interval(series.length);
+		
+		mWriter.setPriority(Thread.MIN_PRIORITY);
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+	
+	public void record(int series, long nanos) {
+		mLive.histograms[series].record(nanos);
+	}
+	
+	/**
+	 * Hands the current interval to the writer if it's been long enough,
+	 * and the writer is free. Call once a frame.
+	 */
+	public void roll(long now) {
+		if(now - mLive.start >= mIntervalNanos) flush(now);
+	}
+	
+	/**
+	 * Hands the current interval to the writer now, unless it's still busy
+	 * with the last one. Call when the game pauses so the pause doesn't end
+	 * up inside an interval.
+	 */
+	public void flush(long now) {
+		Interval spare = mSpare;
+		if(spare == null) return;
+		
+		mSpare = null;
+		mLive.end = now;
+		mFull = mLive;
+		
+		mLive = spare;
+		mLive.start = now;
+		LockSupport.unpark(mWriter);
+	}
+	
+	/**
+	 * Writes out whatever has been recorded and closes the file. Blocks
+	 * until it's done, so only call it once the game loop has stopped.
+	 * @throws IOException if anything went wrong writing the log
+	 */
+	public void close(long now) throws IOException {
+		// Wait for the writer to be free to take the last interval. It wakes
+		// us when it is; the timeout only covers it dying first.
+		mCloser = Thread.currentThread();
+		while(mSpare == null && mWriter.isAlive()) {
+			LockSupport.parkNanos(this, mIntervalNanos);
+		}
+		mCloser = null;
+		flush(now);
+		
+		mRunning = false;
+		LockSupport.unpark(mWriter);
+		
+		boolean joined = false;
+		while(!joined) {
+			try {
+				mWriter.join();
+				joined = true;
+			}
+			catch (InterruptedException e) {
+				// Try again
+			}
+		}
+		
+		if(mError != null) throw mError;
+	}
+	
+	private void writeLoop() {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+			out.writeInt(HistogramLog.MAGIC);
+			out.writeByte(HistogramLog.VERSION);
+			out.writeLong(mStartTime);
+			LatencyHistogram.writeVarint(out, mSeries.length);
+			for(String name : mSeries) {
+				out.writeUTF(name);
+			}
+			out.flush();
+		}
+		catch (IOException e) {
+			mError = e;
+		}
+		
+		while(true) {
+			Interval full = mFull;
+			if(full == null) {
+				// close() hands over the last interval just before it stops
+				// us, so look again once we've been told to stop
+				if(!mRunning && mFull == null) break;
+				LockSupport.parkNanos(mIntervalNanos);
+				continue;
+			}
+			
+			mFull = null;
+			if(mError == null) {
+				try {
+					write(out, full);
+				}
+				catch (IOException e) {
+					mError = e;
+				}
+			}
+			
+			for(LatencyHistogram h : full.histograms) {
+				h.reset();
+			}
+			mSpare = full;
+			wakeCloser();
+		}
+		
+		if(out != null) {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				if(mError == null) mError = e;
+			}
+		}
+		wakeCloser();
+	}
+	
+	private void wakeCloser() {
+		Thread closer = mCloser;
+		if(closer != null) LockSupport.unpark(closer);
+	}
+	
+	private void write(DataOutputStream out, Interval interval) throws IOException {
+		LatencyHistogram.writeVarint(out, (interval.start - mStartNanos) / 1000000);
+		LatencyHistogram.writeVarint(out, (interval.end - interval.start) / 1000000);
+		for(LatencyHistogram h : interval.histograms) {
+			h.write(out);
+		}
+		
+		// Each interval goes out whole, so a crash costs at most the last one
+		out.flush();
+	}
+}
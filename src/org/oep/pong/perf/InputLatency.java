@@ -0,0 +1,132 @@
+package org.oep.pong.perf;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Follows input from the event that carried it to the tick that applied it
+ * and the frame that showed the result, per input source. For each source
+ * it records two latencies, both from the event's timestamp: until the
+ * start of the tick that took the input, and until the frame after that
+ * tick was drawn.
+ * 
+ * When several events come in before a tick takes any of them, the oldest
+ * is the one measured, since that's the one the player waited on longest.
+ * 
+ * {@link #posted(int, long)} may be called from any thread, the rest only
+ * from the thread running the game loop.
+ */
+public class InputLatency {
+	public static final int TOUCH = 0, TRACKBALL = 1, SOURCES = 2;
+	public static final int TICK = 0, DRAW = 1, STAGES = 2;
+	
+	/** Series names, in the order {@link #series(int, int)} numbers them */
+	public static final String[] SERIES = { "touch-tick", "touch-draw", "track-tick", "track-draw" };
+	
+	private static final long NONE = Long.MIN_VALUE;
+	
+	/** Oldest event from each source no tick has taken yet */
+	private final AtomicLongArray mPending = new AtomicLongArray(SOURCES);
+	
+	/** Events a tick has taken, waiting to be drawn; game loop only */
+	private final long[] mTaken = new long[SOURCES];
+	
+	private final LatencyHistogram[] mHistograms = new LatencyHistogram[SERIES.length];
+	
+	private HistogramSink mSink;
+	private int mFirstSeries;
+	
+	public InputLatency() {
+		for(int i = 0; i < SOURCES; i++) {
+			mPending.set(i, NONE);
+			mTaken[i] = NONE;
+		}
+		for(int i = 0; i < mHistograms.length; i++) {
+			mHistograms[i] = new LatencyHistogram();
+		}
+	}
+	
+	/** @return which of {@link #SERIES} holds <code>stage</code> of <code>source</code> */
+	public static int series(int source, int stage) {
+		return source * STAGES + stage;
+	}
+	
+	/**
+	 * Also records into <code>sink</code>, which has {@link #SERIES} in order
+	 * starting at <code>firstSeries</code>. Pass null to stop.
+	 */
+	public void setSink(HistogramSink sink, int firstSeries) {
+		mSink = sink;
+		mFirstSeries = firstSeries;
+	}
+	
+	/**
+	 * An event from <code>source</code> was handed to the game.
+	 * @param eventTime when it happened, on the System.nanoTime() clock
+	 */
+	public void posted(int source, long eventTime) {
+		mPending.compareAndSet(source, NONE, eventTime);
+	}
+	
+	/**
+	 * A tick starting at <code>now</code> applied whatever input had been
+	 * posted from <code>source</code>. Other sources stay pending until a
+	 * tick takes theirs.
+	 */
+	public void consumed(int source, long now) {
+		long time = mPending.getAndSet(source, NONE);
+		if(time == NONE) return;
+		record(series(source, TICK), now - time);
+		if(mTaken[source] == NONE) mTaken[source] = time;
+	}
+	
+	/**
+	 * A frame finished drawing at <code>now</code>.
+	 */
+	public void drawn(long now) {
+		for(int source = 0; source < SOURCES; source++) {
+			long time = mTaken[source];
+			if(time == NONE) continue;
+			record(series(source, DRAW), now - time);
+			mTaken[source] = NONE;
+		}
+	}
+	
+	private void record(int series, long nanos) {
+		mHistograms[series].record(nanos);
+		if(mSink != null) mSink.record(mFirstSeries + series, nanos);
+	}
+	
+	/**
+	 * Everything recorded so far. Only read it from the game loop, or once
+	 * the loop has stopped.
+	 */
+	public LatencyHistogram get(int source, int stage) {
+		return mHistograms[series(source, stage)];
+	}
+	
+	/**
+	 * @return a line per series with anything in it: count, p50, p90, p99
+	 * and max in milliseconds
+	 */
+	public String summarize() {
+		StringBuilder out = new StringBuilder();
+		for(int i = 0; i < SERIES.length; i++) {
+			LatencyHistogram h = mHistograms[i];
+			if(h.getCount() == 0) continue;
+			out.append(SERIES[i])
+				.append(": n=").append(h.getCount())
+				.append(" p50=").append(millis(h.getValueAtPercentile(50)))
+				.append(" p90=").append(millis(h.getValueAtPercentile(90)))
+				.append(" p99=").append(millis(h.getValueAtPercentile(99)))
+				.append(" max=").append(millis(h.getMax()))
+				.append("ms\n");
+		}
+		return out.toString();
+	}
+	
+	private static String millis(long nanos) {
+		// One decimal place, without String.format's garbage
+		long tenths = (nanos + 50000) / 100000;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+}
@@ -0,0 +1,190 @@
+package org.oep.pong.perf;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Counts latencies in log-linear buckets, the way HdrHistogram does: every
+ * power of two is split into 128 equal buckets, so any value is off by less
+ * than 1% whether it's 300ns or 3 seconds. Recording never allocates and
+ * costs a couple of shifts, which is cheap enough to do every tick.
+ * 
+ * Values are in nanoseconds. Anything over about a minute is counted as a
+ * minute.
+ */
+public class LatencyHistogram {
+	/** log2 of the buckets per power of two */
+	private static final int SUB_BITS = 7;
+	private static final int SUB = 1 << SUB_BITS;
+	
+	/** Values this big or bigger all land in the last bucket */
+	private static final int MAX_BITS = 36;
+	public static final long HIGHEST = (1L << MAX_BITS) - 1;
+	
+	static final int BUCKETS = (MAX_BITS - SUB_BITS) * SUB + SUB;
+	
+	private final long[] mCounts = new long[BUCKETS];
+	private long mTotal = 0;
+	private long mMin = Long.MAX_VALUE, mMax = 0;
+	private long mSum = 0;
+	
+	public void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		else if(nanos > HIGHEST) nanos = HIGHEST;
+		
+		mCounts[index(nanos)]++;
+		mTotal++;
+		mSum += nanos;
+		if(nanos < mMin) mMin = nanos;
+		if(nanos > mMax) mMax = nanos;
+	}
+	
+	static int index(long value) {
+		if(value < 2 * SUB) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB + (int) (value >>> shift);
+	}
+	
+	/** Smallest value that lands in bucket <code>index</code> */
+	static long lowest(int index) {
+		if(index < 2 * SUB) return index;
+		int shift = index / SUB - 1;
+		return (long) (index - shift * SUB) << shift;
+	}
+	
+	/** Largest value that lands in bucket <code>index</code> */
+	static long highest(int index) {
+		if(index < 2 * SUB) return index;
+		int shift = index / SUB - 1;
+		return lowest(index) + (1L << shift) - 1;
+	}
+	
+	public void reset() {
+		if(mTotal == 0) return;
+		Arrays.fill(mCounts, 0);
+		mTotal = 0;
+		mSum = 0;
+		mMin = Long.MAX_VALUE;
+		mMax = 0;
+	}
+	
+	/**
+	 * Adds everything recorded in <code>other</code> to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		if(other.mTotal == 0) return;
+		for(int i = 0; i < BUCKETS; i++) {
+			mCounts[i] += other.mCounts[i];
+		}
+		mTotal += other.mTotal;
+		mSum += other.mSum;
+		mMin = Math.min(mMin, other.mMin);
+		mMax = Math.max(mMax, other.mMax);
+	}
+	
+	public long getCount() {
+		return mTotal;
+	}
+	
+	public long getMin() {
+		return (mTotal == 0) ? 0 : mMin;
+	}
+	
+	public long getMax() {
+		return mMax;
+	}
+	
+	public double getMean() {
+		return (mTotal == 0) ? 0 : (double) mSum / mTotal;
+	}
+	
+	/**
+	 * @param percentile 0 to 100
+	 * @return the value that <code>percentile</code> percent of recorded
+	 * values are at or below, to within a bucket
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(mTotal == 0) return 0;
+		
+		long rank = (long) Math.ceil(percentile / 100 * mTotal);
+		rank = Math.max(1, Math.min(mTotal, rank));
+		
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += mCounts[i];
+			if(seen >= rank) return Math.min(highest(i), mMax);
+		}
+		return mMax;
+	}
+	
+	/**
+	 * Writes the histogram in a few bytes per non-empty bucket: the gap
+	 * since the previous non-empty bucket and the count, both as varints.
+	 */
+	public void write(DataOutput out) throws IOException {
+		int used = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			if(mCounts[i] != 0) used++;
+		}
+		
+		writeVarint(out, used);
+		if(used == 0) return;
+		writeVarint(out, mMin);
+		writeVarint(out, mMax);
+		writeVarint(out, mSum);
+		
+		int last = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			if(mCounts[i] == 0) continue;
+			writeVarint(out, i - last);
+			writeVarint(out, mCounts[i]);
+			last = i;
+		}
+	}
+	
+	/**
+	 * Adds a histogram written by {@link #write(DataOutput)} to this one.
+	 */
+	public void read(DataInput in) throws IOException {
+		int used = (int) readVarint(in);
+		if(used == 0) return;
+		
+		long min = readVarint(in);
+		long max = readVarint(in);
+		long sum = readVarint(in);
+		
+		int index = 0;
+		for(int n = 0; n < used; n++) {
+			index += (int) readVarint(in);
+			if(index < 0 || index >= BUCKETS) {
+				throw new IOException("Bucket out of range: " + index);
+			}
+			long count = readVarint(in);
+			mCounts[index] += count;
+			mTotal += count;
+		}
+		mSum += sum;
+		mMin = Math.min(mMin, min);
+		mMax = Math.max(mMax, max);
+	}
+	
+	static void writeVarint(DataOutput out, long n) throws IOException {
+		while((n & ~0x7FL) != 0) {
+			out.writeByte((int) (n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte((int) n);
+	}
+	
+	static long readVarint(DataInput in) throws IOException {
+		long n = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0) return n;
+		}
+		throw new IOException("Malformed varint");
+	}
+}
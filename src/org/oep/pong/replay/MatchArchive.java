@@ -0,0 +1,66 @@
+package org.oep.pong.replay;
+
+/**
+ * Constants for the match archive file format written by
+ * {@link MatchArchiveWriter} and read by {@link MatchArchiveReader}.
+ * 
+ * An archive holds one match: the engine settings, then a stream of events
+ * (human input and the bounces/misses the simulation produced) grouped into
+ * chunks, then an index of the chunks. Integers are unsigned LEB128 varints
+ * unless noted; signed values are zigzag encoded first.
+ * 
+ * <pre>
+ * header:  int MAGIC, byte VERSION, seed (signed), width, height,
+ *          ball speed modifier, AI strategy, CPU handicap, lives,
+ *          byte flags (1 = red is a player, 2 = blue is a player,
+ *          4 = fixed-point physics)
+ * chunk:   event*, each (tick - previous tick) &lt;&lt; 3 | type, then
+ *          for moves and joins the destination minus that paddle's
+ *          previous destination (signed), for misses the paddle.
+ *          "Previous" starts over at each chunk's first tick and zero.
+ * index:   match length in ticks, long final state hash, chunk count,
+ *          then for each chunk its first tick and offset (both as deltas
+ *          from the previous chunk's) and its event count
+ * trailer: long index offset, int MAGIC
+ * </pre>
+ */
+public final class MatchArchive {
+	static final int MAGIC = 0x504e4741; // "PNGA"
+	
+	/** Goes up with Replay's version */
+	static final int VERSION = 3;
+	
+	/** Events per chunk */
+	static final int CHUNK_EVENTS = 512;
+	
+	/** Bytes taken up by the trailer */
+	static final int TRAILER_SIZE = 12;
+	
+	public static final int
+		TYPE_RED_MOVE = 0,
+		TYPE_BLUE_MOVE = 1,
+		TYPE_RED_JOIN = 2,
+		TYPE_BLUE_JOIN = 3,
+		TYPE_WALL = 4,
+		TYPE_RED_PADDLE = 5,
+		TYPE_BLUE_PADDLE = 6,
+		TYPE_LIFE_LOST = 7;
+	
+	static final int TYPE_BITS = 3;
+	
+	private MatchArchive() {
+	}
+	
+	/** @return true if events of this type carry a value */
+	static boolean hasValue(int type) {
+		return type <= TYPE_BLUE_JOIN || type == TYPE_LIFE_LOST;
+	}
+	
+	static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+	
+	static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+}
@@ -0,0 +1,304 @@
+package org.oep.pong.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads match archives (see {@link MatchArchive}) straight out of a memory
+ * mapped file. Only the chunk index is decoded up front; {@link #seek(long)}
+ * binary searches it and then decodes at most one chunk's worth of events to
+ * land on a tick, however long the match.
+ */
+public class MatchArchiveReader {
+	private final ByteBuffer mBuf;
+	
+	private long mSeed;
+	private int mWidth, mHeight;
+	private int mBallSpeedModifier, mAiStrategy, mCpuHandicap, mLives;
+	private boolean mRedPlayer, mBluePlayer, mFixedPoint;
+	
+	private long mLength, mFinalHash;
+	
+	/** First tick, start and end offsets and event count of each chunk */
+	private long[] mChunkTicks;
+	private int[] mChunkStarts, mChunkEnds, mChunkEvents;
+	
+	/** Read position while parsing the header and index */
+	private int mPos;
+	
+	/**
+	 * Maps <code>file</code> and reads its index.
+	 */
+	public static MatchArchiveReader open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return new MatchArchiveReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+	
+	public MatchArchiveReader(ByteBuffer buf) throws IOException {
+		mBuf = buf;
+		int size = buf.limit();
+		if(size < MatchArchive.TRAILER_SIZE || buf.getInt(size - 4) != MatchArchive.MAGIC
+				|| buf.getInt(0) != MatchArchive.MAGIC) {
+			throw new IOException("Not a match archive");
+		}
+		
+		try {
+			readHeader();
+			readIndex((int) buf.getLong(size - MatchArchive.TRAILER_SIZE), size - MatchArchive.TRAILER_SIZE);
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt match archive");
+		}
+	}
+	
+	private void readHeader() throws IOException {
+		mPos = 4;
+		int version = mBuf.get(mPos++);
+		if(version != MatchArchive.VERSION) {
+			throw new IOException("Unsupported match archive version " + version);
+		}
+		
+		mSeed = MatchArchive.unzigzag(readVarint());
+		mWidth = (int) readVarint();
+		mHeight = (int) readVarint();
+		mBallSpeedModifier = (int) readVarint();
+		mAiStrategy = (int) readVarint();
+		mCpuHandicap = (int) readVarint();
+		mLives = (int) readVarint();
+		int flags = mBuf.get(mPos++);
+		mRedPlayer = (flags & 1) != 0;
+		mBluePlayer = (flags & 2) != 0;
+		mFixedPoint = (flags & 4) != 0;
+	}
+	
+	private void readIndex(int indexOffset, int indexEnd) {
+		mPos = indexOffset;
+		mLength = readVarint();
+		mFinalHash = mBuf.getLong(mPos);
+		mPos += 8;
+		
+		int chunks = (int) readVarint();
+		mChunkTicks = new long[chunks];
+		mChunkStarts = new int[chunks];
+		mChunkEnds = new int[chunks];
+		mChunkEvents = new int[chunks];
+		
+		long tick = 0, offset = 0;
+		for(int i = 0; i < chunks; i++) {
+			tick += readVarint();
+			offset += readVarint();
+			mChunkTicks[i] = tick;
+			mChunkStarts[i] = (int) offset;
+			mChunkEvents[i] = (int) readVarint();
+			if(i > 0) mChunkEnds[i - 1] = (int) offset;
+		}
+		if(chunks > 0) mChunkEnds[chunks - 1] = indexOffset;
+		
+		if(mPos > indexEnd) throw new IndexOutOfBoundsException();
+	}
+	
+	private long readVarint() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = mBuf.get(mPos++);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+	
+	public long getSeed() {
+		return mSeed;
+	}
+	
+	/** Number of ticks the match lasted */
+	public long getLength() {
+		return mLength;
+	}
+	
+	public long getFinalHash() {
+		return mFinalHash;
+	}
+	
+	public int getChunkCount() {
+		return mChunkTicks.length;
+	}
+	
+	/**
+	 * @return a cursor positioned just before the first event at or after
+	 * <code>tick</code>
+	 */
+	public Cursor seek(long tick) {
+		// Last chunk starting at or before tick; every earlier chunk only
+		// holds events before it
+		int lo = 0, hi = mChunkTicks.length - 1, chunk = 0;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(mChunkTicks[mid] <= tick) {
+				chunk = mid;
+				lo = mid + 1;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		
+		Cursor c = new Cursor(chunk);
+		c.skipTo(tick);
+		return c;
+	}
+	
+	/**
+	 * Pulls the human input back out into a Replay that a ReplayPlayer can
+	 * re-simulate.
+	 */
+	public Replay toReplay() {
+		Replay r = new Replay();
+		r.mSeed = mSeed;
+		r.mWidth = mWidth;
+		r.mHeight = mHeight;
+		r.mBallSpeedModifier = mBallSpeedModifier;
+		r.mAiStrategy = mAiStrategy;
+		r.mCpuHandicap = mCpuHandicap;
+		r.mLives = mLives;
+		r.mRedPlayer = mRedPlayer;
+		r.mBluePlayer = mBluePlayer;
+		r.mFixedPoint = mFixedPoint;
+		r.mLength = mLength;
+		r.mFinalHash = mFinalHash;
+		
+		Cursor c = seek(0);
+		while(c.next()) {
+			int type = c.type();
+			if(type <= MatchArchive.TYPE_BLUE_JOIN) {
+				r.add(c.tick(), type & 1, true, c.value());
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * Walks forward through the events. Cursors are independent of each
+	 * other and of the reader.
+	 */
+	public class Cursor {
+		private int mChunk;
+		private int mAt, mEnd;
+		
+		/** Decoded event, and look-ahead state for skipTo() */
+		private long mTick;
+		private int mType, mValue;
+		private final int[] mLast = new int[2];
+		
+		/** Position and tick before the current event, to undo a look-ahead */
+		private int mPrevAt;
+		private long mPrevTick;
+		private final int[] mPrevLast = new int[2];
+		
+		Cursor(int chunk) {
+			enter(chunk);
+		}
+		
+		private void enter(int chunk) {
+			mChunk = chunk;
+			if(chunk < mChunkTicks.length) {
+				mAt = mChunkStarts[chunk];
+				mEnd = mChunkEnds[chunk];
+				mTick = mChunkTicks[chunk];
+			}
+			else {
+				mAt = mEnd = 0;
+			}
+			mLast[0] = mLast[1] = 0;
+		}
+		
+		/**
+		 * Moves to the next event.
+		 * @return false if there are no more
+		 */
+		public boolean next() {
+			while(mAt >= mEnd) {
+				if(mChunk + 1 >= mChunkTicks.length) return false;
+				enter(mChunk + 1);
+			}
+			
+			mPrevAt = mAt;
+			mPrevTick = mTick;
+			mPrevLast[0] = mLast[0];
+			mPrevLast[1] = mLast[1];
+			
+			long head = varint();
+			mTick += head >>> MatchArchive.TYPE_BITS;
+			mType = (int) (head & ((1 << MatchArchive.TYPE_BITS) - 1));
+			
+			if(mType == MatchArchive.TYPE_LIFE_LOST) {
+				mValue = (int) varint();
+			}
+			else if(MatchArchive.hasValue(mType)) {
+				int paddle = mType & 1;
+				mValue = mLast[paddle] + (int) MatchArchive.unzigzag(varint());
+				mLast[paddle] = mValue;
+			}
+			else {
+				mValue = 0;
+			}
+			return true;
+		}
+		
+		/** Skips events before <code>tick</code> */
+		void skipTo(long tick) {
+			while(next()) {
+				if(mTick >= tick) {
+					// Step back so next() returns this event again
+					mAt = mPrevAt;
+					mTick = mPrevTick;
+					mLast[0] = mPrevLast[0];
+					mLast[1] = mPrevLast[1];
+					return;
+				}
+			}
+		}
+		
+		private long varint() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = mBuf.get(mAt++);
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+		
+		/** Tick the current event happened on */
+		public long tick() {
+			return mTick;
+		}
+		
+		/** One of the MatchArchive.TYPE_ constants */
+		public int type() {
+			return mType;
+		}
+		
+		/**
+		 * The paddle's new destination for moves and joins, Replay.RED or
+		 * Replay.BLUE for lost lives, and 0 otherwise.
+		 */
+		public int value() {
+			return mValue;
+		}
+	}
+}
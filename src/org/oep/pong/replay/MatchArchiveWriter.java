@@ -0,0 +1,242 @@
+package org.oep.pong.replay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.oep.pong.engine.GameListener;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Streams a match to an archive (see {@link MatchArchive}) as it is played.
+ * Set it as the engine's listener, call {@link #record(PongEngine)} right
+ * before every tick and {@link #finish(PongEngine)} at the end.
+ */
+public class MatchArchiveWriter implements GameListener {
+	private final OutputStream mOut;
+	
+	/** Bytes written to mOut so far */
+	private long mWritten = 0;
+	
+	/** Red paddle of the engine being recorded, to tell the two apart */
+	private final Paddle mRed;
+	
+	/** Events of the chunk being built */
+	private byte[] mChunk = new byte[4 * MatchArchive.CHUNK_EVENTS];
+	private int mChunkSize = 0;
+	private int mChunkEvents = 0;
+	private long mChunkTick;
+	
+	/** Index entries for the chunks written so far */
+	private byte[] mIndex = new byte[64];
+	private int mIndexSize = 0;
+	private int mChunks = 0;
+	private long mLastChunkTick = 0, mLastChunkOffset = 0;
+	
+	/** Delta coding state, reset every chunk */
+	private long mLastTick;
+	private final int[] mLastValue = new int[2];
+	
+	/** What was last recorded for each paddle */
+	private final int[] mDestination = new int[2];
+	private final boolean[] mPlayer = new boolean[2];
+	
+	/** Tick the engine is on, for events raised during the tick */
+	private long mTick;
+	
+	/** Scratch space for encoding varints */
+	private final byte[] mScratch = new byte[10];
+	
+	/**
+	 * Writes the header for a match on <code>engine</code>, which must not
+	 * have ticked yet.
+	 */
+	public MatchArchiveWriter(OutputStream out, PongEngine engine) throws IOException {
+		if(engine.getTick() != 0) {
+			throw new IllegalStateException("Recording must start before the first tick");
+		}
+		mOut = out;
+		mRed = engine.getRed();
+		
+		mPlayer[Replay.RED] = engine.getRed().player;
+		mPlayer[Replay.BLUE] = engine.getBlue().player;
+		mDestination[Replay.RED] = engine.getRed().destination;
+		mDestination[Replay.BLUE] = engine.getBlue().destination;
+		
+		writeInt(MatchArchive.MAGIC);
+		writeByte(MatchArchive.VERSION);
+		writeVarint(MatchArchive.zigzag(engine.getSeed()));
+		writeVarint(engine.getWidth());
+		writeVarint(engine.getHeight());
+		writeVarint(engine.getBallSpeedModifier());
+		writeVarint(engine.getAiStrategy());
+		writeVarint(engine.getCpuHandicap());
+		writeVarint(engine.getRed().getLives());
+		writeByte((mPlayer[Replay.RED] ? 1 : 0) | (mPlayer[Replay.BLUE] ? 2 : 0)
+				| (engine.isFixedPoint() ? 4 : 0));
+		
+		startChunk(0);
+	}
+	
+	/**
+	 * Plays <code>replay</code> back and archives it, bounces and all.
+	 */
+	public static void write(Replay replay, OutputStream out) throws IOException {
+		ReplayPlayer player = new ReplayPlayer(replay);
+		PongEngine engine = player.getEngine();
+		MatchArchiveWriter writer = new MatchArchiveWriter(out, engine);
+		engine.setListener(writer);
+		
+		while(player.applyInput()) {
+			writer.record(engine);
+			engine.tick();
+		}
+		
+		writer.finish(engine);
+	}
+	
+	/**
+	 * Records any human input given to the paddles since the last tick.
+	 */
+	public void record(PongEngine engine) throws IOException {
+		mTick = engine.getTick();
+		
+		// Chunks always start on a tick boundary, which is what makes
+		// seeking through the index work
+		if(mChunkEvents >= MatchArchive.CHUNK_EVENTS) {
+			flushChunk();
+			startChunk(mTick);
+		}
+		
+		record(Replay.RED, engine.getRed());
+		record(Replay.BLUE, engine.getBlue());
+	}
+	
+	private void record(int which, Paddle paddle) throws IOException {
+		if(!paddle.player) return;
+		
+		if(!mPlayer[which]) {
+			mPlayer[which] = true;
+			mDestination[which] = paddle.destination;
+			event(MatchArchive.TYPE_RED_JOIN + which, paddle.destination);
+		}
+		else if(mDestination[which] != paddle.destination) {
+			mDestination[which] = paddle.destination;
+			event(MatchArchive.TYPE_RED_MOVE + which, paddle.destination);
+		}
+	}
+	
+	public void onWallBounce() {
+		event(MatchArchive.TYPE_WALL, 0);
+	}
+	
+	public void onPaddleBounce(Paddle paddle) {
+		event((paddle == mRed) ? MatchArchive.TYPE_RED_PADDLE : MatchArchive.TYPE_BLUE_PADDLE, 0);
+	}
+	
+	public void onLifeLost(Paddle paddle) {
+		event(MatchArchive.TYPE_LIFE_LOST, (paddle == mRed) ? Replay.RED : Replay.BLUE);
+	}
+	
+	/**
+	 * Writes the last chunk and the index. The stream is left open.
+	 */
+	public void finish(PongEngine engine) throws IOException {
+		flushChunk();
+		
+		long indexOffset = mWritten;
+		writeVarint(engine.getTick());
+		writeLong(engine.stateHash());
+		writeVarint(mChunks);
+		mOut.write(mIndex, 0, mIndexSize);
+		mWritten += mIndexSize;
+		
+		writeLong(indexOffset);
+		writeInt(MatchArchive.MAGIC);
+		mOut.flush();
+	}
+	
+	/**
+	 * Adds an event to the current chunk. GameListener callbacks can't throw,
+	 * so a full chunk is only flushed on the next record() or finish(). It
+	 * grows past CHUNK_EVENTS in the meantime if it has to.
+	 */
+	private void event(int type, int value) {
+		if(mChunkSize + 2 * mScratch.length > mChunk.length) {
+			byte[] chunk = new byte[mChunk.length * 2];
+			System.arraycopy(mChunk, 0, chunk, 0, mChunkSize);
+			mChunk = chunk;
+		}
+		
+		mChunkSize = putVarint(mChunk, mChunkSize, ((mTick - mLastTick) << MatchArchive.TYPE_BITS) | type);
+		mLastTick = mTick;
+		
+		if(type == MatchArchive.TYPE_LIFE_LOST) {
+			mChunkSize = putVarint(mChunk, mChunkSize, value);
+		}
+		else if(MatchArchive.hasValue(type)) {
+			int paddle = type & 1;
+			mChunkSize = putVarint(mChunk, mChunkSize, MatchArchive.zigzag(value - mLastValue[paddle]));
+			mLastValue[paddle] = value;
+		}
+		
+		mChunkEvents++;
+	}
+	
+	private void startChunk(long tick) {
+		mChunkTick = tick;
+		mChunkSize = 0;
+		mChunkEvents = 0;
+		mLastTick = tick;
+		mLastValue[0] = mLastValue[1] = 0;
+	}
+	
+	private void flushChunk() throws IOException {
+		if(mChunkEvents == 0) return;
+		
+		long offset = mWritten;
+		mOut.write(mChunk, 0, mChunkSize);
+		mWritten += mChunkSize;
+		
+		if(mIndexSize + 3 * mScratch.length > mIndex.length) {
+			byte[] index = new byte[mIndex.length * 2];
+			System.arraycopy(mIndex, 0, index, 0, mIndexSize);
+			mIndex = index;
+		}
+		mIndexSize = putVarint(mIndex, mIndexSize, mChunkTick - mLastChunkTick);
+		mIndexSize = putVarint(mIndex, mIndexSize, offset - mLastChunkOffset);
+		mIndexSize = putVarint(mIndex, mIndexSize, mChunkEvents);
+		mLastChunkTick = mChunkTick;
+		mLastChunkOffset = offset;
+		mChunks++;
+	}
+	
+	static int putVarint(byte[] buf, int pos, long value) {
+		while((value & ~0x7FL) != 0) {
+			buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+	
+	private void writeVarint(long value) throws IOException {
+		int n = putVarint(mScratch, 0, value);
+		mOut.write(mScratch, 0, n);
+		mWritten += n;
+	}
+	
+	private void writeByte(int b) throws IOException {
+		mOut.write(b);
+		mWritten++;
+	}
+	
+	private void writeInt(int v) throws IOException {
+		for(int shift = 24; shift >= 0; shift -= 8) writeByte((v >>> shift) & 0xFF);
+	}
+	
+	private void writeLong(long v) throws IOException {
+		writeInt((int) (v >>> 32));
+		writeInt((int) v);
+	}
+}
@@ -0,0 +1,177 @@
+package org.oep.pong.replay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Everything needed to play a match back exactly: the engine's seed and
+ * settings plus every change a human made to a paddle, keyed by tick. The
+ * AI and physics are deterministic so nothing else needs saving.
+ */
+public class Replay {
+	private static final int MAGIC = 0x504f4e47; // "PONG"
+	
+	/** Bumped whenever the physics change, since old replays would play out differently */
+	private static final int VERSION = 3;
+	
+	public static final int RED = 0, BLUE = 1;
+	
+	long mSeed;
+	int mWidth, mHeight;
+	int mBallSpeedModifier, mAiStrategy, mCpuHandicap, mLives;
+	boolean mRedPlayer, mBluePlayer;
+	boolean mFixedPoint;
+	
+	/** Number of ticks the match lasted */
+	long mLength = 0;
+	
+	/** State hash after the last tick, or 0 if unknown */
+	long mFinalHash = 0;
+	
+	/** Input events: the tick they apply before and the packed input */
+	private long[] mTicks = new long[64];
+	private int[] mInputs = new int[64];
+	private int mCount = 0;
+	
+	Replay() {
+	}
+	
+	/**
+	 * Captures the settings of an engine that has not ticked yet.
+	 */
+	Replay(PongEngine engine) {
+		mSeed = engine.getSeed();
+		mWidth = engine.getWidth();
+		mHeight = engine.getHeight();
+		mBallSpeedModifier = engine.getBallSpeedModifier();
+		mAiStrategy = engine.getAiStrategy();
+		mCpuHandicap = engine.getCpuHandicap();
+		mLives = engine.getRed().getLives();
+		mRedPlayer = engine.getRed().player;
+		mBluePlayer = engine.getBlue().player;
+		mFixedPoint = engine.isFixedPoint();
+	}
+	
+	/**
+	 * Builds a fresh engine set up exactly like the recorded one was.
+	 */
+	public PongEngine newEngine() {
+		PongEngine engine = new PongEngine(mWidth, mHeight, mSeed, mFixedPoint);
+		engine.setBallSpeedModifier(mBallSpeedModifier);
+		engine.setAiStrategy(mAiStrategy);
+		engine.setCpuHandicap(mCpuHandicap);
+		engine.setLives(mLives);
+		engine.getRed().player = mRedPlayer;
+		engine.getBlue().player = mBluePlayer;
+		return engine;
+	}
+	
+	void add(long tick, int paddle, boolean player, int destination) {
+		if(mCount == mTicks.length) {
+			long[] ticks = new long[mCount * 2];
+			int[] inputs = new int[mCount * 2];
+			System.arraycopy(mTicks, 0, ticks, 0, mCount);
+			System.arraycopy(mInputs, 0, inputs, 0, mCount);
+			mTicks = ticks;
+			mInputs = inputs;
+		}
+		mTicks[mCount] = tick;
+		mInputs[mCount] = pack(paddle, player, destination);
+		mCount++;
+	}
+	
+	static int pack(int paddle, boolean player, int destination) {
+		return (destination << 2) | (player ? 2 : 0) | paddle;
+	}
+	
+	public long getSeed() {
+		return mSeed;
+	}
+	
+	public long getLength() {
+		return mLength;
+	}
+	
+	public long getFinalHash() {
+		return mFinalHash;
+	}
+	
+	public int getEventCount() {
+		return mCount;
+	}
+	
+	public long getEventTick(int i) {
+		return mTicks[i];
+	}
+	
+	public int getEventPaddle(int i) {
+		return mInputs[i] & 1;
+	}
+	
+	public boolean getEventPlayer(int i) {
+		return (mInputs[i] & 2) != 0;
+	}
+	
+	public int getEventDestination(int i) {
+		return mInputs[i] >> 2;
+	}
+	
+	public void write(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mSeed);
+		out.writeInt(mWidth);
+		out.writeInt(mHeight);
+		out.writeInt(mBallSpeedModifier);
+		out.writeInt(mAiStrategy);
+		out.writeInt(mCpuHandicap);
+		out.writeInt(mLives);
+		out.writeBoolean(mRedPlayer);
+		out.writeBoolean(mBluePlayer);
+		out.writeBoolean(mFixedPoint);
+		out.writeLong(mLength);
+		out.writeLong(mFinalHash);
+		out.writeInt(mCount);
+		for(int i = 0; i < mCount; i++) {
+			out.writeLong(mTicks[i]);
+			out.writeInt(mInputs[i]);
+		}
+		out.flush();
+	}
+	
+	public static Replay read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if(in.readInt() != MAGIC) throw new IOException("Not a replay");
+		int version = in.readInt();
+		if(version != VERSION) throw new IOException("Unsupported replay version " + version);
+		
+		Replay r = new Replay();
+		r.mSeed = in.readLong();
+		r.mWidth = in.readInt();
+		r.mHeight = in.readInt();
+		r.mBallSpeedModifier = in.readInt();
+		r.mAiStrategy = in.readInt();
+		r.mCpuHandicap = in.readInt();
+		r.mLives = in.readInt();
+		r.mRedPlayer = in.readBoolean();
+		r.mBluePlayer = in.readBoolean();
+		r.mFixedPoint = in.readBoolean();
+		r.mLength = in.readLong();
+		r.mFinalHash = in.readLong();
+		
+		int count = in.readInt();
+		if(count < 0) throw new IOException("Corrupt replay");
+		for(int i = 0; i < count; i++) {
+			long tick = in.readLong();
+			int input = in.readInt();
+			r.add(tick, input & 1, (input & 2) != 0, input >> 2);
+		}
+		return r;
+	}
+}
@@ -0,0 +1,76 @@
+package org.oep.pong.replay;
+
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Re-simulates a recorded match on a fresh engine, as fast as the CPU allows.
+ */
+public class ReplayPlayer {
+	private final Replay mReplay;
+	private final PongEngine mEngine;
+	
+	/** Next input event to apply */
+	private int mEvent = 0;
+	
+	public ReplayPlayer(Replay replay) {
+		mReplay = replay;
+		mEngine = replay.newEngine();
+	}
+	
+	public PongEngine getEngine() {
+		return mEngine;
+	}
+	
+	public boolean finished() {
+		return mEngine.getTick() >= mReplay.getLength();
+	}
+	
+	/**
+	 * Applies the input recorded for the next tick and runs it.
+	 * @return false if the replay has already ended
+	 */
+	public boolean step() {
+		if(!applyInput()) return false;
+		mEngine.tick();
+		return true;
+	}
+	
+	/**
+	 * Gives the paddles the input recorded for the next tick without running
+	 * it, for callers that want to look at the engine in between.
+	 * @return false if the replay has already ended
+	 */
+	public boolean applyInput() {
+		if(finished()) return false;
+		
+		long tick = mEngine.getTick();
+		while(mEvent < mReplay.getEventCount() && mReplay.getEventTick(mEvent) <= tick) {
+			Paddle paddle = (mReplay.getEventPaddle(mEvent) == Replay.RED)
+				? mEngine.getRed() : mEngine.getBlue();
+			paddle.player = mReplay.getEventPlayer(mEvent);
+			paddle.destination = mReplay.getEventDestination(mEvent);
+			mEvent++;
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs until tick <code>tick</code> or the end of the replay.
+	 */
+	public void runTo(long tick) {
+		while(mEngine.getTick() < tick && step());
+	}
+	
+	public void runToEnd() {
+		while(step());
+	}
+	
+	/**
+	 * @return true if the engine is where the recording said it would be at
+	 * the end, or if the recording didn't say
+	 */
+	public boolean verify() {
+		return mReplay.getFinalHash() == 0 || mReplay.getFinalHash() == mEngine.stateHash();
+	}
+}
@@ -0,0 +1,57 @@
+package org.oep.pong.replay;
+
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Records a match as it is played. Create it before the engine's first tick
+ * and call {@link #record(PongEngine)} right before every tick after the
+ * paddles have been given their input.
+ */
+public class ReplayRecorder {
+	private final Replay mReplay;
+	
+	/** What was last recorded for each paddle */
+	private final int[] mDestination = new int[2];
+	private final boolean[] mPlayer = new boolean[2];
+	
+	public ReplayRecorder(PongEngine engine) {
+		if(engine.getTick() != 0) {
+			throw new IllegalStateException("Recording must start before the first tick");
+		}
+		mReplay = new Replay(engine);
+		mPlayer[Replay.RED] = engine.getRed().player;
+		mPlayer[Replay.BLUE] = engine.getBlue().player;
+		mDestination[Replay.RED] = engine.getRed().destination;
+		mDestination[Replay.BLUE] = engine.getBlue().destination;
+	}
+	
+	public void record(PongEngine engine) {
+		long tick = engine.getTick();
+		record(tick, Replay.RED, engine.getRed());
+		record(tick, Replay.BLUE, engine.getBlue());
+		mReplay.mLength = tick + 1;
+	}
+	
+	private void record(long tick, int which, Paddle paddle) {
+		// The AI's moves are recomputed on playback, only people matter
+		if(!paddle.player) return;
+		
+		if(!mPlayer[which] || mDestination[which] != paddle.destination) {
+			mPlayer[which] = true;
+			mDestination[which] = paddle.destination;
+			mReplay.add(tick, which, true, paddle.destination);
+		}
+	}
+	
+	/**
+	 * @param engine The engine being recorded, whose current state is saved
+	 * so playback can check it ended up in the same place
+	 * @return the replay so far
+	 */
+	public Replay finish(PongEngine engine) {
+		mReplay.mLength = engine.getTick();
+		mReplay.mFinalHash = engine.stateHash();
+		return mReplay;
+	}
+}
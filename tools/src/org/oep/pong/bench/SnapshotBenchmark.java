@@ -0,0 +1,212 @@
+package org.oep.pong.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.engine.SnapshotRing;
+
+/**
+ * Measures PongEngine.snapshot() and restore() and a whole rollback through
+ * a SnapshotRing: restore a tick <code>--rollback</code> ticks back and
+ * simulate forward to where we were, saving each tick again. Reports ns
+ * and bytes allocated per operation, and how much of a 60 FPS frame the
+ * rollback takes.
+ * 
+ * Before timing anything it checks that a rollback replayed with the same
+ * input lands on the same state hash as the first time through, for both
+ * float and fixed-point physics.
+ * 
+ * <pre>
+ * SnapshotBenchmark [--ring N] [--rollback TICKS] [--ops N] [--iterations N]
+ *                   [--max-ns NS]
+ * </pre>
+ * 
+ * Fails if a snapshot takes longer than --max-ns (default 1000) or anything
+ * allocates.
+ */
+public class SnapshotBenchmark {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	private static final long SEED = 0x5EED;
+	
+	/** One frame at 60 FPS */
+	private static final double FRAME_NS = 1e9 / 60;
+	
+	private int mRing = 16;
+	private int mRollback = 8;
+	private int mOps = 200000;
+	private int mIterations = 10;
+	
+	private long mSink;
+	
+	private final com.sun.management.ThreadMXBean mThreads =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	/** A game under way, both paddles played by the AI */
+	private static PongEngine engine(boolean fixedPoint) {
+		PongEngine engine = new PongEngine(WIDTH, HEIGHT, SEED, fixedPoint);
+		engine.setLives(Integer.MAX_VALUE);
+		for(int i = 0; i < 500; i++) {
+			engine.tick();
+		}
+		return engine;
+	}
+	
+	/**
+	 * Input for a tick that only depends on the tick, so replaying gives
+	 * the same input back.
+	 */
+	private static void drive(PongEngine engine) {
+		long t = engine.getTick();
+		engine.getBlue().player = true;
+		engine.getBlue().destination = (int) (WIDTH / 2 + (WIDTH / 3) * Math.sin(t / 17.0));
+	}
+	
+	private static void step(PongEngine engine, SnapshotRing ring) {
+		ring.save(engine);
+		drive(engine);
+		engine.tick();
+	}
+	
+	/**
+	 * @return false if replaying the last few ticks from the ring didn't
+	 * end up in the same state
+	 */
+	private boolean checkReplay(boolean fixedPoint) {
+		PongEngine engine = engine(fixedPoint);
+		SnapshotRing ring = new SnapshotRing(mRing);
+		for(int i = 0; i < 3000; i++) {
+			step(engine, ring);
+			
+			if(i % 7 == 0) {
+				long now = engine.getTick();
+				long hash = engine.stateHash();
+				if(!rollback(engine, ring, now)) return false;
+				if(engine.stateHash() != hash) return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean rollback(PongEngine engine, SnapshotRing ring, long now) {
+		long from = Math.max(ring.oldest(now), now - mRollback);
+		if(!ring.restore(engine, from)) return false;
+		while(engine.getTick() < now) {
+			step(engine, ring);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return { snapshot ns, snapshot B, restore ns, restore B, rollback ns, rollback B }
+	 */
+	private double[] measure(boolean fixedPoint) {
+		PongEngine engine = engine(fixedPoint);
+		SnapshotRing ring = new SnapshotRing(mRing);
+		for(int i = 0; i < mRing; i++) {
+			step(engine, ring);
+		}
+		int[] buffer = new int[mRing * PongEngine.SNAPSHOT_SIZE];
+		long now = engine.getTick();
+		
+		double[] best = { Double.MAX_VALUE, 0, Double.MAX_VALUE, 0, Double.MAX_VALUE, 0 };
+		for(int it = 0; it < mIterations; it++) {
+			// Snapshots go round a ring's worth of slots, like they would in play
+			long[] r = time(0, engine, ring, buffer, now, mOps);
+			record(best, 0, r, mOps);
+			r = time(1, engine, ring, buffer, now, mOps);
+			record(best, 2, r, mOps);
+			int rollbacks = mOps / (mRollback + 1);
+			r = time(2, engine, ring, buffer, now, rollbacks);
+			record(best, 4, r, rollbacks);
+		}
+		return best;
+	}
+	
+	/** @return { ns, bytes } for <code>ops</code> of <code>what</code> */
+	private long[] time(int what, PongEngine engine, SnapshotRing ring, int[] buffer, long now, int ops) {
+		long thread = Thread.currentThread().getId();
+		long bytes = mThreads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		switch(what) {
+		case 0:
+			for(int i = 0; i < ops; i++) {
+				mSink += engine.snapshot(buffer, (i % mRing) * PongEngine.SNAPSHOT_SIZE);
+			}
+			break;
+		case 1:
+			for(int i = 0; i < ops; i++) {
+				mSink += engine.restore(buffer, (i % mRing) * PongEngine.SNAPSHOT_SIZE);
+			}
+			break;
+		default:
+			for(int i = 0; i < ops; i++) {
+				rollback(engine, ring, now);
+				mSink += engine.getTick();
+			}
+		}
+		long ns = System.nanoTime() - start;
+		bytes = mThreads.getThreadAllocatedBytes(thread) - bytes;
+		return new long[] { ns, bytes };
+	}
+	
+	private static void record(double[] best, int at, long[] r, int ops) {
+		double ns = (double) r[0] / ops;
+		if(ns < best[at]) {
+			best[at] = ns;
+			best[at + 1] = (double) r[1] / ops;
+		}
+	}
+	
+	public static void main(String[] args) {
+		SnapshotBenchmark bench = new SnapshotBenchmark();
+		double maxNs = 1000;
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--ring")) bench.mRing = Integer.parseInt(args[++i]);
+			else if(arg.equals("--rollback")) bench.mRollback = Integer.parseInt(args[++i]);
+			else if(arg.equals("--ops")) bench.mOps = Integer.parseInt(args[++i]);
+			else if(arg.equals("--iterations")) bench.mIterations = Integer.parseInt(args[++i]);
+			else if(arg.equals("--max-ns")) maxNs = Double.parseDouble(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		if(bench.mRollback >= bench.mRing) {
+			System.err.println("--rollback must be less than --ring");
+			System.exit(2);
+		}
+		
+		int failures = 0;
+		for(boolean fixed : new boolean[] { false, true }) {
+			if(!bench.checkReplay(fixed)) {
+				System.out.println((fixed ? "fixed" : "float") + ": replaying from the ring changed the outcome");
+				failures++;
+			}
+		}
+		
+		System.out.println(String.format("%d ints per snapshot, ring of %d, rolling back %d ticks",
+				PongEngine.SNAPSHOT_SIZE, bench.mRing, bench.mRollback));
+		System.out.println(String.format("%-7s %12s %8s %12s %8s %12s %8s %9s", "physics",
+				"snapshot ns", "B", "restore ns", "B", "rollback ns", "B", "% frame"));
+		for(boolean fixed : new boolean[] { false, true }) {
+			double[] r = bench.measure(fixed);
+			System.out.println(String.format(Locale.US, "%-7s %12.1f %8.2f %12.1f %8.2f %12.1f %8.2f %9.3f",
+					fixed ? "fixed" : "float", r[0], r[1], r[2], r[3], r[4], r[5], 100 * r[4] / FRAME_NS));
+			
+			if(r[0] > maxNs) {
+				System.out.println(String.format(Locale.US, "Snapshots take %.1fns, over %.0fns", r[0], maxNs));
+				failures++;
+			}
+			// Allow for the odd allocation by the benchmark harness itself
+			if(r[1] >= 1 || r[3] >= 1 || r[5] >= 1) {
+				System.out.println("Something allocated");
+				failures++;
+			}
+		}
+		
+		if(bench.mSink == 42) System.out.println();
+		if(failures > 0) System.exit(1);
+	}
+}
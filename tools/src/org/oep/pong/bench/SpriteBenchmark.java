@@ -0,0 +1,170 @@
+package org.oep.pong.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+
+import org.oep.pong.engine.Ball;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Compares drawing the ball, paddles and lives counters as shapes, the way
+ * PongView used to, against blitting pre-rendered sprites the way SpriteCache
+ * does. There's no Android canvas on the JVM, so this draws the same frame
+ * with Java2D into an offscreen image; the absolute times won't match a
+ * phone, but the number of draw calls and paint changes per frame do, and
+ * the ratio is a fair hint. On a device, toggle "Pre-rendered sprites" with
+ * the frame log on and compare with HistogramDiff.
+ * 
+ * <pre>
+ * SpriteBenchmark [--frames N] [--iterations N] [--lives N]
+ * </pre>
+ */
+public class SpriteBenchmark {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	private static final int PADDING = PongEngine.PADDING;
+	private static final int RADIUS = Ball.RADIUS;
+	private static final int MARGIN = 1;
+	
+	/** Paddles are drawn twice as wide as Paddle.getWidth() says */
+	private static final int PADDLE_W = 2 * Paddle.PADDLE_WIDTH, PADDLE_H = Paddle.PADDLE_THICKNESS;
+	
+	private int mFrames = 2000;
+	private int mIterations = 10;
+	private int mLives = 5;
+	
+	/** Draw calls and paint changes in the last frame drawn */
+	private int mCalls, mStateChanges;
+	
+	private final BufferedImage mTarget = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private BufferedImage mBall, mRed, mBlue, mLivesRow;
+	
+	private void prepareSprites() {
+		int size = 2 * (RADIUS + MARGIN);
+		mBall = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = mBall.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillOval(MARGIN, MARGIN, 2 * RADIUS, 2 * RADIUS);
+		g.dispose();
+		
+		mRed = solid(Color.RED);
+		mBlue = solid(Color.BLUE);
+		
+		int step = 2 * RADIUS + PADDING;
+		mLivesRow = new BufferedImage(mLives * step + 2 * MARGIN, size, BufferedImage.TYPE_INT_ARGB);
+		g = mLivesRow.createGraphics();
+		g.setColor(Color.WHITE);
+		for(int i = 0; i < mLives; i++) {
+			g.fillOval(MARGIN + i * step, MARGIN, 2 * RADIUS, 2 * RADIUS);
+		}
+		g.dispose();
+	}
+	
+	private static BufferedImage solid(Color color) {
+		BufferedImage b = new BufferedImage(PADDLE_W, PADDLE_H, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = b.createGraphics();
+		g.setColor(color);
+		g.fillRect(0, 0, PADDLE_W, PADDLE_H);
+		g.dispose();
+		return b;
+	}
+	
+	/** Where things are in frame <code>f</code>; they move so nothing is cached by accident */
+	private static int ballX(int f) {
+		return RADIUS + (f * 7) % (WIDTH - 2 * RADIUS);
+	}
+	
+	private static int ballY(int f) {
+		return RADIUS + (f * 11) % (HEIGHT - 2 * RADIUS);
+	}
+	
+	private static int paddleX(int f) {
+		return (f * 5) % (WIDTH - PADDLE_W);
+	}
+	
+	private void drawShapes(Graphics2D g, int f) {
+		g.setColor(Color.RED);
+		g.fillRect(paddleX(f), 2 * PADDING, PADDLE_W, PADDLE_H);
+		g.setColor(Color.BLUE);
+		g.fillRect(WIDTH - PADDLE_W - paddleX(f), HEIGHT - 2 * PADDING - PADDLE_H, PADDLE_W, PADDLE_H);
+		
+		g.setColor(Color.WHITE);
+		g.fillOval(ballX(f) - RADIUS, ballY(f) - RADIUS, 2 * RADIUS, 2 * RADIUS);
+		
+		for(int i = 0; i < mLives; i++) {
+			int x = PADDING + i * (2 * RADIUS + PADDING);
+			g.fillOval(x, PADDING, 2 * RADIUS, 2 * RADIUS);
+			g.fillOval(x, HEIGHT - PADDING - 2 * RADIUS, 2 * RADIUS, 2 * RADIUS);
+		}
+		
+		// PongView set the color and style for each paddle and again for
+		// the lives; the ball's share with the text, so isn't counted
+		mCalls = 3 + 2 * mLives;
+		mStateChanges = 6;
+	}
+	
+	private void drawSprites(Graphics2D g, int f) {
+		g.drawImage(mRed, paddleX(f), 2 * PADDING, null);
+		g.drawImage(mBlue, WIDTH - PADDLE_W - paddleX(f), HEIGHT - 2 * PADDING - PADDLE_H, null);
+		g.drawImage(mBall, ballX(f) - RADIUS - MARGIN, ballY(f) - RADIUS - MARGIN, null);
+		g.drawImage(mLivesRow, PADDING - MARGIN, PADDING - MARGIN, null);
+		g.drawImage(mLivesRow, PADDING - MARGIN, HEIGHT - PADDING - 2 * RADIUS - MARGIN, null);
+		
+		mCalls = 5;
+		mStateChanges = 0;
+	}
+	
+	/** @return ns per frame of the fastest iteration */
+	private double measure(boolean sprites) {
+		Graphics2D g = mTarget.createGraphics();
+		try {
+			double best = Double.MAX_VALUE;
+			for(int it = 0; it < mIterations; it++) {
+				long start = System.nanoTime();
+				for(int f = 0; f < mFrames; f++) {
+					if(sprites) drawSprites(g, f);
+					else drawShapes(g, f);
+				}
+				best = Math.min(best, (double) (System.nanoTime() - start) / mFrames);
+			}
+			return best;
+		}
+		finally {
+			g.dispose();
+		}
+	}
+	
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		
+		SpriteBenchmark bench = new SpriteBenchmark();
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--frames")) bench.mFrames = Integer.parseInt(args[++i]);
+			else if(arg.equals("--iterations")) bench.mIterations = Integer.parseInt(args[++i]);
+			else if(arg.equals("--lives")) bench.mLives = Integer.parseInt(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		bench.prepareSprites();
+		
+		// Warm both paths up before timing either
+		bench.measure(false);
+		bench.measure(true);
+		
+		double shapes = bench.measure(false);
+		int shapeCalls = bench.mCalls, shapeChanges = bench.mStateChanges;
+		double sprites = bench.measure(true);
+		int spriteCalls = bench.mCalls, spriteChanges = bench.mStateChanges;
+		
+		System.out.println(String.format("%-8s %10s %8s %10s", "path", "us/frame", "calls", "paint sets"));
+		System.out.println(String.format(Locale.US, "%-8s %10.2f %8d %10d", "shapes", shapes / 1000, shapeCalls, shapeChanges));
+		System.out.println(String.format(Locale.US, "%-8s %10.2f %8d %10d", "sprites", sprites / 1000, spriteCalls, spriteChanges));
+		System.out.println(String.format(Locale.US, "sprites take %.0f%% of the time with %d lives each",
+				100 * sprites / shapes, bench.mLives));
+	}
+}
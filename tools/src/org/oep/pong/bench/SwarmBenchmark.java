@@ -0,0 +1,139 @@
+package org.oep.pong.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import org.oep.pong.engine.BallSwarm;
+import org.oep.pong.engine.ObstacleGrid;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.engine.Rand48;
+
+/**
+ * Measures BallSwarm.tick() for a range of ball counts, with both paddles
+ * sweeping across the field so that balls keep hitting them. Prints the time
+ * per tick alongside the share of a 60 FPS frame it would take.
+ * 
+ * <pre>
+ * SwarmBenchmark --balls 100,1000,10000 --budget 25
+ * SwarmBenchmark --obstacles 500
+ * </pre>
+ * 
+ * With <code>--budget PCT</code> the run fails if 1,000 balls (or the
+ * largest count measured, if fewer) take more than that share of a frame.
+ */
+public class SwarmBenchmark {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	private static final long SEED = 0x5EED;
+	
+	/** One frame at 60 FPS */
+	private static final double FRAME_NS = 1e9 / 60;
+	
+	private int mWarmups = 5;
+	private int mIterations = 10;
+	private int mTicks = 2000;
+	private int mObstacles = 0;
+	
+	private float mSink;
+	
+	private final com.sun.management.ThreadMXBean mThreads =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	private void runTicks(BallSwarm swarm, Paddle red, Paddle blue, int ticks) {
+		for(int i = 0; i < ticks; i++) {
+			int sweep = WIDTH / 2 + (int) ((WIDTH / 2 - Paddle.PADDLE_WIDTH) * Math.sin(i / 20.0));
+			red.setPosition(sweep);
+			blue.setPosition(WIDTH - sweep);
+			swarm.tick(red, blue);
+			mSink += swarm.getPaddleBounces();
+		}
+	}
+	
+	/**
+	 * Scatters small bricks over the middle of the field, clear of the walls
+	 * and the serve spot.
+	 */
+	private static ObstacleGrid bricks(int count) {
+		ObstacleGrid grid = new ObstacleGrid(WIDTH, HEIGHT, 32);
+		Rand48 random = new Rand48(SEED);
+		while(grid.size() < count) {
+			int x = 16 + random.nextInt(WIDTH - 64);
+			int y = HEIGHT / 8 + 16 + random.nextInt(3 * HEIGHT / 4 - 48);
+			if(Math.abs(y - HEIGHT / 2) < 24) continue;
+			grid.add(x, y, x + 16 + random.nextInt(16), y + 8);
+		}
+		return grid;
+	}
+	
+	/**
+	 * @return { ns/tick, bytes/tick }
+	 */
+	public double[] measure(int balls) {
+		PongEngine engine = new PongEngine(WIDTH, HEIGHT, SEED);
+		Paddle red = engine.getRed(), blue = engine.getBlue();
+		
+		BallSwarm swarm = new BallSwarm(WIDTH, HEIGHT, balls, SEED);
+		while(swarm.add() >= 0);
+		if(mObstacles > 0) swarm.setObstacles(bricks(mObstacles));
+		
+		for(int i = 0; i < mWarmups; i++) {
+			runTicks(swarm, red, blue, mTicks);
+		}
+		
+		long thread = Thread.currentThread().getId();
+		long bytes = mThreads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for(int i = 0; i < mIterations; i++) {
+			runTicks(swarm, red, blue, mTicks);
+		}
+		long ticks = (long) mIterations * mTicks;
+		double ns = (double) (System.nanoTime() - start) / ticks;
+		bytes = mThreads.getThreadAllocatedBytes(thread) - bytes;
+		
+		return new double[] { ns, (double) bytes / ticks };
+	}
+	
+	public static void main(String[] args) {
+		SwarmBenchmark bench = new SwarmBenchmark();
+		String[] counts = { "100", "1000", "10000" };
+		double budget = -1;
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--warmups")) bench.mWarmups = Integer.parseInt(args[++i]);
+			else if(arg.equals("--iterations")) bench.mIterations = Integer.parseInt(args[++i]);
+			else if(arg.equals("--ticks")) bench.mTicks = Integer.parseInt(args[++i]);
+			else if(arg.equals("--balls")) counts = args[++i].split(",");
+			else if(arg.equals("--obstacles")) bench.mObstacles = Integer.parseInt(args[++i]);
+			else if(arg.equals("--budget")) budget = Double.parseDouble(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		System.out.println(String.format("%8s %12s %10s %10s %10s", "balls", "ns/tick", "ns/ball", "% frame", "B/tick"));
+		double checked = -1;
+		int checkedBalls = 0;
+		for(String c : counts) {
+			int balls = Integer.parseInt(c.trim());
+			double[] r = bench.measure(balls);
+			double share = 100 * r[0] / FRAME_NS;
+			System.out.println(String.format(Locale.US, "%8d %12.1f %10.2f %10.3f %10.2f",
+					balls, r[0], r[0] / balls, share, r[1]));
+			
+			if(checkedBalls != 1000 && (balls == 1000 || balls > checkedBalls)) {
+				checked = share;
+				checkedBalls = balls;
+			}
+		}
+		
+		if(budget >= 0 && checked > budget) {
+			System.out.println(String.format(Locale.US, "%d balls take %.2f%% of a frame, over the %.2f%% budget",
+					checkedBalls, checked, budget));
+			System.exit(1);
+		}
+		
+		if(bench.mSink == 42) System.out.println();
+	}
+}
@@ -0,0 +1,309 @@
+package org.oep.pong.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.oep.pong.engine.Ball;
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.perf.HistogramSink;
+
+/**
+ * Measures the cost of PongEngine.tick() for every AI strategy in a few
+ * representative game states. Each case is run from a fixed seed with warm-up
+ * iterations first, and reports nanoseconds and bytes allocated per tick.
+ * 
+ * Results can be saved and later compared against, which exits non-zero if any
+ * case got slower (or allocates more) than the tolerance allows:
+ * 
+ * <pre>
+ * TickBenchmark --save base.txt
+ * TickBenchmark --compare base.txt --tolerance 10
+ * </pre>
+ * 
+ * Passing <code>--max-bytes 0</code> fails the run if any case allocates in
+ * steady state.
+ * 
+ * <code>--histogram FILE</code> also times every tick of one more pass of
+ * each case and logs them the same way the game does, for HistogramDiff.
+ */
+public class TickBenchmark {
+	/** Field size of a typical phone in portrait */
+	private static final int WIDTH = 480, HEIGHT = 800;
+	
+	private static final long SEED = 0x5EED;
+	
+	/** Must line up with values_ai_strategies */
+	private static final String[] STRATEGIES = { "PREDI", "EXACT", "FOLLO" };
+	
+	/** Ball speed used by the high-speed case */
+	private static final float FAST_SPEED = Ball.SPEED + 30;
+	
+	/**
+	 * The game states we measure. Each one gets a chance to nudge the
+	 * engine back into that state before every tick.
+	 */
+	enum Scenario {
+		/** The ball is blinking in the middle of the field */
+		SERVE {
+			void maintain(PongEngine engine) {
+				Ball ball = engine.getBall();
+				if(!ball.serving()) {
+					engine.serveBall();
+				}
+			}
+		},
+		
+		/** Ordinary play, skipping the serve delay */
+		RALLY {
+			void maintain(PongEngine engine) {
+				engine.getBall().setServeCounter(0);
+			}
+		},
+		
+		/** The ball is moving faster than a paddle's full length per tick */
+		FAST {
+			void maintain(PongEngine engine) {
+				Ball ball = engine.getBall();
+				ball.setServeCounter(0);
+				if(ball.speed < FAST_SPEED) {
+					ball.setSpeed(FAST_SPEED);
+				}
+			}
+		};
+		
+		abstract void maintain(PongEngine engine);
+	}
+	
+	private int mWarmups = 5;
+	private int mIterations = 10;
+	private int mTicks = 200000;
+	
+	/** Keeps the JIT from throwing the simulation away */
+	private float mSink;
+	
+	private final com.sun.management.ThreadMXBean mThreads =
+		(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	public static class Result {
+		public final String name;
+		public final double nsPerTick, nsError, bytesPerTick;
+		
+		public Result(String name, double nsPerTick, double nsError, double bytesPerTick) {
+			this.name = name;
+			this.nsPerTick = nsPerTick;
+			this.nsError = nsError;
+			this.bytesPerTick = bytesPerTick;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%-12s %10.1f %8.1f %10.2f", name, nsPerTick, nsError, bytesPerTick);
+		}
+	}
+	
+	private PongEngine newEngine(int strategy) {
+		PongEngine engine = new PongEngine(WIDTH, HEIGHT, SEED);
+		engine.setAiStrategy(strategy);
+		engine.setCpuHandicap(4);
+		engine.setLives(Integer.MAX_VALUE);
+		return engine;
+	}
+	
+	private void runTicks(PongEngine engine, Scenario scenario, int ticks) {
+		Ball ball = engine.getBall();
+		for(int i = 0; i < ticks; i++) {
+			scenario.maintain(engine);
+			engine.tick();
+			mSink += ball.x;
+		}
+	}
+	
+	public Result measure(int strategy, Scenario scenario) {
+		PongEngine engine = newEngine(strategy);
+		
+		for(int i = 0; i < mWarmups; i++) {
+			runTicks(engine, scenario, mTicks);
+		}
+		
+		long thread = Thread.currentThread().getId();
+		double[] samples = new double[mIterations];
+		long bytes = 0;
+		for(int i = 0; i < mIterations; i++) {
+			long before = mThreads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			runTicks(engine, scenario, mTicks);
+			samples[i] = (double) (System.nanoTime() - start) / mTicks;
+			bytes += mThreads.getThreadAllocatedBytes(thread) - before;
+		}
+		
+		double mean = 0;
+		for(double s : samples) mean += s;
+		mean /= samples.length;
+		
+		double var = 0;
+		for(double s : samples) var += (s - mean) * (s - mean);
+		double err = (samples.length > 1) ? Math.sqrt(var / (samples.length - 1)) : 0;
+		
+		String name = STRATEGIES[strategy] + "." + scenario.name().toLowerCase(Locale.US);
+		return new Result(name, mean, err, (double) bytes / ((long) mIterations * mTicks));
+	}
+	
+	/**
+	 * Times each tick of one more run of every case, warmed up first, into a
+	 * series per case.
+	 */
+	public void recordHistograms(File file) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for(int strategy = 0; strategy < STRATEGIES.length; strategy++) {
+			for(Scenario scenario : Scenario.values()) {
+				names.add(STRATEGIES[strategy] + "." + scenario.name().toLowerCase(Locale.US));
+			}
+		}
+		
+		HistogramSink sink = new HistogramSink(file, names.toArray(new String[names.size()]), 1000, System.nanoTime());
+		int series = 0;
+		for(int strategy = 0; strategy < STRATEGIES.length; strategy++) {
+			for(Scenario scenario : Scenario.values()) {
+				PongEngine engine = newEngine(strategy);
+				for(int i = 0; i < mWarmups; i++) {
+					runTicks(engine, scenario, mTicks);
+				}
+				
+				Ball ball = engine.getBall();
+				for(int i = 0; i < mTicks; i++) {
+					scenario.maintain(engine);
+					long start = System.nanoTime();
+					engine.tick();
+					long end = System.nanoTime();
+					sink.record(series, end - start);
+					sink.roll(end);
+					mSink += ball.x;
+				}
+				series++;
+			}
+		}
+		sink.close(System.nanoTime());
+	}
+	
+	public List<Result> runAll() {
+		List<Result> results = new ArrayList<Result>();
+		for(int strategy = 0; strategy < STRATEGIES.length; strategy++) {
+			for(Scenario scenario : Scenario.values()) {
+				results.add(measure(strategy, scenario));
+			}
+		}
+		return results;
+	}
+	
+	public static void save(List<Result> results, String path) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(path));
+		try {
+			for(Result r : results) {
+				out.println(String.format(Locale.US, "%s %f %f %f", r.name, r.nsPerTick, r.nsError, r.bytesPerTick));
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	public static Map<String, Result> load(String path) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				String[] f = line.trim().split("\\s+");
+				if(f.length < 4) continue;
+				results.put(f[0], new Result(f[0], Double.parseDouble(f[1]),
+						Double.parseDouble(f[2]), Double.parseDouble(f[3])));
+			}
+		}
+		finally {
+			in.close();
+		}
+		return results;
+	}
+	
+	/**
+	 * Checks results against a baseline.
+	 * @return the number of cases that regressed
+	 */
+	public static int compare(List<Result> results, Map<String, Result> baseline, double tolerance) {
+		int regressions = 0;
+		for(Result r : results) {
+			Result b = baseline.get(r.name);
+			if(b == null) continue;
+			
+			double change = 100 * (r.nsPerTick - b.nsPerTick) / b.nsPerTick;
+			boolean slower = change > tolerance;
+			boolean allocates = r.bytesPerTick > b.bytesPerTick + 1;
+			if(slower || allocates) regressions++;
+			
+			System.out.println(String.format(Locale.US, "%-12s %+8.1f%% %10.2f -> %.2f B/tick%s",
+					r.name, change, b.bytesPerTick, r.bytesPerTick,
+					(slower || allocates) ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		TickBenchmark bench = new TickBenchmark();
+		String save = null, baseline = null, histogram = null;
+		double tolerance = 10;
+		double maxBytes = -1;
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--warmups")) bench.mWarmups = Integer.parseInt(args[++i]);
+			else if(arg.equals("--iterations")) bench.mIterations = Integer.parseInt(args[++i]);
+			else if(arg.equals("--ticks")) bench.mTicks = Integer.parseInt(args[++i]);
+			else if(arg.equals("--save")) save = args[++i];
+			else if(arg.equals("--compare")) baseline = args[++i];
+			else if(arg.equals("--tolerance")) tolerance = Double.parseDouble(args[++i]);
+			else if(arg.equals("--max-bytes")) maxBytes = Double.parseDouble(args[++i]);
+			else if(arg.equals("--histogram")) histogram = args[++i];
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		System.out.println(String.format("%-12s %10s %8s %10s", "case", "ns/tick", "+-", "B/tick"));
+		List<Result> results = bench.runAll();
+		for(Result r : results) System.out.println(r);
+		
+		if(save != null) save(results, save);
+		if(histogram != null) bench.recordHistograms(new File(histogram));
+		
+		if(maxBytes >= 0) {
+			int over = 0;
+			for(Result r : results) {
+				// Allow for the odd byte of JIT/profiler noise
+				if(r.bytesPerTick > maxBytes + 0.01) {
+					System.out.println(r.name + " allocates " + r.bytesPerTick + " B/tick");
+					over++;
+				}
+			}
+			if(over > 0) System.exit(1);
+		}
+		
+		if(baseline != null) {
+			System.out.println();
+			int regressions = compare(results, load(baseline), tolerance);
+			if(regressions > 0) System.exit(1);
+		}
+		
+		if(bench.mSink == 42) System.out.println();
+	}
+}
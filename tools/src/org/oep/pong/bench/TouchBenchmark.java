@@ -0,0 +1,209 @@
+package org.oep.pong.bench;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.oep.pong.InputLatch;
+import org.oep.pong.engine.FixedStep;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Plays a scripted finger, mostly drags with the odd fast flick, through
+ * the touch pipeline the way the game does: the touchscreen samples at
+ * <code>--sample-hz</code>, Android batches the samples into one event per
+ * 60 FPS frame, and each frame runs however many 30 ticks/s ticks are due
+ * and draws in between the last two. Compares three ways of feeding the
+ * paddle:
+ * 
+ * <pre>
+ * latest     only the newest sample of each event, as the game used to
+ * samples    every sample, each tick taking the one closest to its time
+ * predicted  samples, extrapolated up to --prediction MS past the newest
+ * </pre>
+ * 
+ * For each it reports the latency, i.e. how far behind the finger the
+ * drawn paddle destination is on the whole, found by sliding the finger's
+ * path back until it lines up best, and how far off the paddle is at that
+ * latency, in pixels. --jank PCT drops that share of frames, so the next
+ * runs two ticks at once.
+ * 
+ * <pre>
+ * TouchBenchmark [--seconds N] [--sample-hz HZ] [--jank PCT] [--prediction MS]
+ * </pre>
+ * 
+ * Fails if prediction doesn't cut the latency or the samples are further
+ * off than the latest alone.
+ */
+public class TouchBenchmark {
+	private static final int WIDTH = 480;
+	private static final long MS = 1000000L;
+	private static final long FRAME_NS = 1000000000L / 60;
+	
+	private int mSeconds = 120;
+	private int mSampleHz = 120;
+	private double mJank = 5;
+	private long mPrediction = 20;
+	
+	/** The finger's x at each millisecond */
+	private int[] mPath;
+	
+	/** Drags between random points, every few moves a fast flick */
+	private void script() {
+		Random random = new Random(0x70C4);
+		mPath = new int[mSeconds * 1000 + 1];
+		double x = WIDTH / 2;
+		int t = 0;
+		while(t < mPath.length) {
+			boolean flick = random.nextInt(4) == 0;
+			double to = 20 + random.nextInt(WIDTH - 40);
+			int duration = flick ? 40 + random.nextInt(60) : 200 + random.nextInt(600);
+			for(int i = 1; i <= duration && t < mPath.length; i++, t++) {
+				// Ease in and out like a real swipe
+				double f = (1 - Math.cos(Math.PI * i / duration)) / 2;
+				mPath[t] = (int) Math.round(x + (to - x) * f);
+			}
+			x = to;
+			int rest = random.nextInt(150);
+			for(int i = 0; i < rest && t < mPath.length; i++, t++) {
+				mPath[t] = (int) x;
+			}
+		}
+	}
+	
+	private int finger(long nanos) {
+		int ms = (int) Math.max(0, Math.min(mPath.length - 1, nanos / MS));
+		return mPath[ms];
+	}
+	
+	/**
+	 * Runs the pipeline.
+	 * @param mode 0 latest, 1 samples, 2 predicted
+	 * @return the drawn destination at each frame, or -1 where the frame was dropped
+	 */
+	private int[] run(int mode) {
+		Random jank = new Random(42);
+		InputLatch latch = new InputLatch();
+		latch.setPrediction(mode == 2 ? mPrediction * MS : 0);
+		Paddle paddle = new Paddle(WIDTH, 100);
+		paddle.player = true;
+		paddle.destination = finger(0);
+		FixedStep step = new FixedStep(PongEngine.TICK_RATE);
+		
+		long sampleNanos = 1000000000L / mSampleHz;
+		long nextSample = 0;
+		int frames = (int) (mSeconds * 1000000000L / FRAME_NS);
+		int[] drawn = new int[frames];
+		int last = paddle.destination, current = paddle.destination;
+		
+		step.reset(0);
+		for(int f = 0; f < frames; f++) {
+			long now = f * FRAME_NS;
+			
+			// Everything sampled since the last event arrives at once
+			boolean dropped = f > 0 && jank.nextDouble() * 100 < mJank;
+			if(dropped) {
+				drawn[f] = -1;
+				continue;
+			}
+			int newest = -1;
+			long newestTime = 0;
+			while(nextSample <= now) {
+				int x = finger(nextSample);
+				if(mode == 0) {
+					newest = x;
+					newestTime = nextSample;
+				}
+				else {
+					latch.postSample(x, nextSample, false);
+				}
+				nextSample += sampleNanos;
+			}
+			if(newest >= 0) latch.postSample(newest, newestTime, false);
+			
+			int ticks = step.advance(now);
+			for(int i = 0; i < ticks; i++) {
+				latch.drain(paddle, WIDTH, (mode == 0) ? Long.MAX_VALUE : step.tickTime(i, ticks));
+				last = current;
+				current = paddle.destination;
+			}
+			drawn[f] = Math.round(last + (current - last) * step.alpha());
+		}
+		return drawn;
+	}
+	
+	/**
+	 * @return { latency ms, mean error px, p99 error px } at the latency
+	 * where the drawn path best fits the finger's
+	 */
+	private double[] fit(int[] drawn) {
+		double best = Double.MAX_VALUE;
+		int bestLag = 0;
+		for(int lag = -20; lag <= 150; lag++) {
+			double error = 0;
+			int n = 0;
+			for(int f = 0; f < drawn.length; f++) {
+				if(drawn[f] < 0) continue;
+				error += Math.abs(drawn[f] - finger(f * FRAME_NS - lag * MS));
+				n++;
+			}
+			error /= n;
+			if(error < best) {
+				best = error;
+				bestLag = lag;
+			}
+		}
+		
+		int[] errors = new int[WIDTH + 1];
+		int n = 0;
+		for(int f = 0; f < drawn.length; f++) {
+			if(drawn[f] < 0) continue;
+			errors[Math.min(WIDTH, Math.abs(drawn[f] - finger(f * FRAME_NS - bestLag * MS)))]++;
+			n++;
+		}
+		int p99 = 0;
+		for(int seen = 0; p99 < WIDTH; p99++) {
+			seen += errors[p99];
+			if(seen >= n * 0.99) break;
+		}
+		return new double[] { bestLag, best, p99 };
+	}
+	
+	public static void main(String[] args) {
+		TouchBenchmark bench = new TouchBenchmark();
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--seconds")) bench.mSeconds = Integer.parseInt(args[++i]);
+			else if(arg.equals("--sample-hz")) bench.mSampleHz = Integer.parseInt(args[++i]);
+			else if(arg.equals("--jank")) bench.mJank = Double.parseDouble(args[++i]);
+			else if(arg.equals("--prediction")) bench.mPrediction = Long.parseLong(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		bench.script();
+		
+		String[] names = { "latest", "samples", "predicted" };
+		double[][] results = new double[names.length][];
+		System.out.println(String.format(Locale.US, "%ds of touches sampled at %dHz, %.0f%% of frames dropped",
+				bench.mSeconds, bench.mSampleHz, bench.mJank));
+		System.out.println(String.format("%-10s %11s %13s %12s", "pipeline", "latency ms", "mean err px", "p99 err px"));
+		for(int mode = 0; mode < names.length; mode++) {
+			results[mode] = bench.fit(bench.run(mode));
+			System.out.println(String.format(Locale.US, "%-10s %11.0f %13.2f %12.0f",
+					names[mode], results[mode][0], results[mode][1], results[mode][2]));
+		}
+		
+		int failures = 0;
+		if(results[2][0] >= results[0][0]) {
+			System.out.println("Prediction didn't cut the latency");
+			failures++;
+		}
+		if(results[1][1] > results[0][1]) {
+			System.out.println("Every sample tracks the finger worse than the latest alone");
+			failures++;
+		}
+		if(failures > 0) System.exit(1);
+	}
+}
@@ -0,0 +1,107 @@
+package org.oep.pong.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.oep.pong.replay.MatchArchive;
+import org.oep.pong.replay.MatchArchiveReader;
+import org.oep.pong.replay.MatchArchiveWriter;
+import org.oep.pong.replay.Replay;
+import org.oep.pong.replay.ReplayPlayer;
+
+/**
+ * Works with match archives.
+ * 
+ * <pre>
+ * ArchiveTool pack IN.replay OUT.pongarc   archive a saved replay
+ * ArchiveTool dump FILE [FROM [COUNT]]     list events from tick FROM on
+ * ArchiveTool verify FILE...               re-simulate and check each one
+ * </pre>
+ */
+public class ArchiveTool {
+	private static final String[] TYPES = {
+		"red-move", "blue-move", "red-join", "blue-join",
+		"wall", "red-paddle", "blue-paddle", "life-lost"
+	};
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) usage();
+		
+		String command = args[0];
+		if(command.equals("pack") && args.length == 3) {
+			pack(args[1], args[2]);
+		}
+		else if(command.equals("dump")) {
+			long from = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+			long count = (args.length > 3) ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+			dump(args[1], from, count);
+		}
+		else if(command.equals("verify")) {
+			int failures = 0;
+			for(int i = 1; i < args.length; i++) {
+				if(!verify(args[i])) failures++;
+			}
+			if(failures > 0) System.exit(1);
+		}
+		else {
+			usage();
+		}
+	}
+	
+	private static void usage() {
+		System.err.println("usage: ArchiveTool pack IN OUT | dump FILE [FROM [COUNT]] | verify FILE...");
+		System.exit(2);
+	}
+	
+	private static void pack(String in, String out) throws IOException {
+		Replay replay;
+		InputStream is = new BufferedInputStream(new FileInputStream(in));
+		try {
+			replay = Replay.read(is);
+		}
+		finally {
+			is.close();
+		}
+		
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+		try {
+			MatchArchiveWriter.write(replay, os);
+		}
+		finally {
+			os.close();
+		}
+		
+		System.out.println(String.format("%s: %d ticks, %d bytes (%.2f bytes/s of play)",
+				out, replay.getLength(), new File(out).length(),
+				new File(out).length() * 30.0 / Math.max(1, replay.getLength())));
+	}
+	
+	private static void dump(String file, long from, long count) throws IOException {
+		MatchArchiveReader reader = MatchArchiveReader.open(new File(file));
+		System.out.println(String.format("seed %d, %d ticks, %d chunks, final hash %016x",
+				reader.getSeed(), reader.getLength(), reader.getChunkCount(), reader.getFinalHash()));
+		
+		MatchArchiveReader.Cursor c = reader.seek(from);
+		for(long n = 0; n < count && c.next(); n++) {
+			String value = (c.type() == MatchArchive.TYPE_LIFE_LOST)
+				? ((c.value() == Replay.RED) ? " red" : " blue")
+				: (c.type() <= MatchArchive.TYPE_BLUE_JOIN) ? " " + c.value() : "";
+			System.out.println(c.tick() + " " + TYPES[c.type()] + value);
+		}
+	}
+	
+	private static boolean verify(String file) throws IOException {
+		MatchArchiveReader reader = MatchArchiveReader.open(new File(file));
+		ReplayPlayer player = new ReplayPlayer(reader.toReplay());
+		player.runToEnd();
+		boolean ok = player.verify();
+		System.out.println(file + ": " + (ok ? "OK" : "MISMATCH"));
+		return ok;
+	}
+}
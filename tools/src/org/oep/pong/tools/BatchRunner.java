@@ -0,0 +1,240 @@
+package org.oep.pong.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.oep.pong.engine.GameListener;
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+
+/**
+ * Plays lots of AI-vs-AI matches for every combination of the settings given
+ * and reports how they went. Matches are spread over a fork-join pool; each
+ * one gets its own engine and seed and nothing is shared between workers
+ * until the results are added up, so it scales with the number of cores.
+ * 
+ * <pre>
+ * BatchRunner [--matches N] [--lives N] [--threads N] [--seed N] [--max-ticks N]
+ *             [--strategies PREDI,EXACT,FOLLO] [--speeds 0,5]
+ *             [--red-handicaps 4] [--blue-handicaps 0,4,8]
+ * </pre>
+ */
+public class BatchRunner {
+	/** Must line up with values_ai_strategies */
+	private static final String[] STRATEGIES = { "PREDI", "EXACT", "FOLLO" };
+	
+	private static final int WIDTH = 480, HEIGHT = 800;
+	
+	/** Matches per leaf task; enough to amortize the fork */
+	private static final int LEAF_MATCHES = 8;
+	
+	/** One combination of settings */
+	static class Config {
+		final int strategy, speed, redHandicap, blueHandicap;
+		
+		Config(int strategy, int speed, int redHandicap, int blueHandicap) {
+			this.strategy = strategy;
+			this.speed = speed;
+			this.redHandicap = redHandicap;
+			this.blueHandicap = blueHandicap;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s +%d %d/%d",
+					STRATEGIES[strategy], speed, redHandicap, blueHandicap);
+		}
+	}
+	
+	/** Results for a run of matches; only ever touched by one thread at a time */
+	static class Stats {
+		long matches, redWins, blueWins, draws;
+		long points, rallyHits, longestRally, ticks;
+		
+		void add(Stats o) {
+			matches += o.matches;
+			redWins += o.redWins;
+			blueWins += o.blueWins;
+			draws += o.draws;
+			points += o.points;
+			rallyHits += o.rallyHits;
+			longestRally = Math.max(longestRally, o.longestRally);
+			ticks += o.ticks;
+		}
+	}
+	
+	/** Counts paddle hits per point for one match */
+	static class RallyCounter implements GameListener {
+		final Stats stats;
+		long hits = 0;
+		
+		RallyCounter(Stats stats) {
+			this.stats = stats;
+		}
+		
+		public void onWallBounce() {
+		}
+		
+		public void onPaddleBounce(Paddle paddle) {
+			hits++;
+		}
+		
+		public void onLifeLost(Paddle paddle) {
+			stats.points++;
+			stats.rallyHits += hits;
+			stats.longestRally = Math.max(stats.longestRally, hits);
+			hits = 0;
+		}
+	}
+	
+	/** Plays matches [from, to) of a config, splitting in half until small */
+	static class Matches extends RecursiveTask<Stats> {
+		private static final long serialVersionUID = 1L;
+		
+		final Config config;
+		final int lives;
+		final long seed, maxTicks;
+		final int from, to;
+		
+		Matches(Config config, int lives, long seed, long maxTicks, int from, int to) {
+			this.config = config;
+			this.lives = lives;
+			this.seed = seed;
+			this.maxTicks = maxTicks;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Stats compute() {
+			if(to - from > LEAF_MATCHES) {
+				int mid = (from + to) >>> 1;
+				Matches left = new Matches(config, lives, seed, maxTicks, from, mid);
+				left.fork();
+				Stats stats = new Matches(config, lives, seed, maxTicks, mid, to).compute();
+				stats.add(left.join());
+				return stats;
+			}
+			
+			Stats stats = new Stats();
+			for(int i = from; i < to; i++) {
+				play(stats, mix(seed + i));
+			}
+			return stats;
+		}
+		
+		private void play(Stats stats, long matchSeed) {
+			PongEngine engine = new PongEngine(WIDTH, HEIGHT, matchSeed);
+			engine.setAiStrategy(config.strategy);
+			engine.setBallSpeedModifier(config.speed);
+			engine.setLives(lives);
+			engine.getRed().setHandicap(config.redHandicap);
+			engine.getBlue().setHandicap(config.blueHandicap);
+			engine.setListener(new RallyCounter(stats));
+			
+			while(engine.gameRunning() && engine.getTick() < maxTicks) {
+				engine.tick();
+			}
+			
+			stats.matches++;
+			stats.ticks += engine.getTick();
+			if(engine.gameRunning()) stats.draws++;
+			else if(engine.getRed().living()) stats.redWins++;
+			else stats.blueWins++;
+		}
+	}
+	
+	/**
+	 * SplitMix64's finalizer, so neighbouring match numbers get unrelated seeds.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	private static int[] parseList(String s) {
+		String[] parts = s.split(",");
+		int[] values = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+	
+	private static int[] parseStrategies(String s) {
+		String[] parts = s.split(",");
+		int[] values = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			values[i] = -1;
+			for(int j = 0; j < STRATEGIES.length; j++) {
+				if(STRATEGIES[j].equalsIgnoreCase(parts[i].trim())) values[i] = j;
+			}
+			if(values[i] < 0) throw new IllegalArgumentException("Unknown strategy " + parts[i]);
+		}
+		return values;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int matches = 1000, lives = 3, threads = Runtime.getRuntime().availableProcessors();
+		long seed = 1, maxTicks = 30 * 60 * PongEngine.TICK_RATE;
+		int[] strategies = { 0, 1, 2 }, speeds = { 0 }, redHandicaps = { 4 }, blueHandicaps = { 4 };
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--matches")) matches = Integer.parseInt(args[++i]);
+			else if(arg.equals("--lives")) lives = Integer.parseInt(args[++i]);
+			else if(arg.equals("--threads")) threads = Integer.parseInt(args[++i]);
+			else if(arg.equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if(arg.equals("--max-ticks")) maxTicks = Long.parseLong(args[++i]);
+			else if(arg.equals("--strategies")) strategies = parseStrategies(args[++i]);
+			else if(arg.equals("--speeds")) speeds = parseList(args[++i]);
+			else if(arg.equals("--red-handicaps")) redHandicaps = parseList(args[++i]);
+			else if(arg.equals("--blue-handicaps")) blueHandicaps = parseList(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		List<Config> configs = new ArrayList<Config>();
+		for(int strategy : strategies)
+			for(int speed : speeds)
+				for(int red : redHandicaps)
+					for(int blue : blueHandicaps)
+						configs.add(new Config(strategy, speed, red, blue));
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		System.out.println(String.format(Locale.US, "%d matches per config, %d lives, %d threads",
+				matches, lives, threads));
+		System.out.println(String.format(Locale.US, "%-18s %7s %7s %7s %9s %7s %12s",
+				"config", "red%", "blue%", "draw%", "hits/pt", "longest", "ticks/s"));
+		
+		Stats total = new Stats();
+		long allStart = System.nanoTime();
+		for(int c = 0; c < configs.size(); c++) {
+			Config config = configs.get(c);
+			long start = System.nanoTime();
+			Stats s = pool.invoke(new Matches(config, lives, seed + (long) c * matches, maxTicks, 0, matches));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			total.add(s);
+			
+			System.out.println(String.format(Locale.US, "%-18s %7.1f %7.1f %7.1f %9.2f %7d %12.0f",
+					config,
+					100.0 * s.redWins / s.matches,
+					100.0 * s.blueWins / s.matches,
+					100.0 * s.draws / s.matches,
+					(double) s.rallyHits / Math.max(1, s.points),
+					s.longestRally,
+					s.ticks / seconds));
+		}
+		pool.shutdown();
+		
+		double seconds = (System.nanoTime() - allStart) / 1e9;
+		System.out.println(String.format(Locale.US, "%d matches, %d ticks in %.2fs: %.0f ticks/s",
+				total.matches, total.ticks, seconds, total.ticks / seconds));
+	}
+}
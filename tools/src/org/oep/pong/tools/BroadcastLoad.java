@@ -0,0 +1,282 @@
+package org.oep.pong.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.net.BroadcastClient;
+import org.oep.pong.net.BroadcastServer;
+import org.oep.pong.perf.LatencyHistogram;
+
+/**
+ * Streams an AI-vs-AI match from a BroadcastServer to thousands of
+ * spectators on the loopback interface and checks the match keeps time and
+ * the viewers see what was sent.
+ * 
+ * <pre>
+ * BroadcastLoad [--viewers N] [--slow N] [--ticks N] [--threads N]
+ *               [--max-late MS]
+ * </pre>
+ * 
+ * The viewers run in a second JVM, so the two ends don't share a file
+ * descriptor limit. They're all BroadcastClients on one selector; the
+ * --slow ones have a tiny receive buffer and never read, to check they
+ * only cost themselves. Fails if any viewer doesn't connect, a reading
+ * viewer doesn't end on the last frame published, or a tick goes out more
+ * than --max-late ms (default 100) after it was due.
+ */
+public class BroadcastLoad {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	
+	/** Long enough for everyone to connect */
+	private static final long TIMEOUT_NANOS = 60 * 1000000000L;
+	
+	private int mViewers = 10000;
+	private int mSlow = 100;
+	private int mTicks = 1800;
+	private int mThreads = 2;
+	private long mMaxLate = 100;
+	
+	/**
+	 * The viewers' side: connects, reads until the server hangs up, and
+	 * prints how many viewers ended on each state.
+	 */
+	private static int watch(String host, int port, int viewers, int slow) throws IOException {
+		Selector selector = Selector.open();
+		List<BroadcastClient> clients = new ArrayList<BroadcastClient>();
+		Set<BroadcastClient> slowOnes = new HashSet<BroadcastClient>();
+		for(int i = 0; i < viewers; i++) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if(i < slow) channel.socket().setReceiveBufferSize(1024);
+			channel.connect(new InetSocketAddress(host, port));
+			BroadcastClient client = new BroadcastClient(channel);
+			channel.register(selector, SelectionKey.OP_CONNECT, client);
+			clients.add(client);
+			if(i < slow) slowOnes.add(client);
+		}
+		
+		int connected = 0, ended = 0, reading = viewers - slow;
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		boolean announced = false;
+		// No deadline once everyone's in; the server hangs up when it's done,
+		// and if it dies the sockets close anyway
+		while(ended < reading && (announced || System.nanoTime() < deadline)) {
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				BroadcastClient client = (BroadcastClient) key.attachment();
+				try {
+					if(key.isConnectable()) {
+						if(!client.getChannel().finishConnect()) continue;
+						connected++;
+						key.interestOps(slowOnes.contains(client) ? 0 : SelectionKey.OP_READ);
+						continue;
+					}
+					if(client.poll() < 0) {
+						key.cancel();
+						ended++;
+					}
+				}
+				catch (IOException e) {
+					key.cancel();
+					client.close();
+					ended++;
+				}
+			}
+			if(!announced && connected == viewers) {
+				System.out.println("connected " + connected);
+				announced = true;
+			}
+		}
+		if(!announced) System.out.println("connected " + connected);
+		
+		Map<String, Integer> finals = new TreeMap<String, Integer>();
+		long frames = 0;
+		for(int i = slow; i < viewers; i++) {
+			BroadcastClient client = clients.get(i);
+			frames += client.getFrames();
+			String key = client.getCodec().isValid()
+					? client.getCodec().getTick() + " " + Long.toHexString(client.getCodec().stateKey()) : "none";
+			Integer n = finals.get(key);
+			finals.put(key, (n == null) ? 1 : n + 1);
+		}
+		for(Map.Entry<String, Integer> e : finals.entrySet()) {
+			System.out.println("final " + e.getKey() + " " + e.getValue());
+		}
+		System.out.println("frames " + frames);
+		
+		for(BroadcastClient client : clients) {
+			client.close();
+		}
+		selector.close();
+		return 0;
+	}
+	
+	/** Reads the viewer JVM's output as it comes */
+	static class Output extends Thread {
+		final BufferedReader reader;
+		final List<String> lines = new ArrayList<String>();
+		
+		Output(Process process) {
+			super("viewers");
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					synchronized(lines) {
+						lines.add(line);
+						lines.notifyAll();
+					}
+				}
+			}
+			catch (IOException e) {
+				// The viewers are gone
+			}
+		}
+		
+		String waitFor(String prefix, long deadline) throws InterruptedException {
+			synchronized(lines) {
+				while(true) {
+					for(String line : lines) {
+						if(line.startsWith(prefix)) return line;
+					}
+					long left = (deadline - System.nanoTime()) / 1000000;
+					if(left <= 0 || !isAlive()) return null;
+					lines.wait(Math.min(left, 100));
+				}
+			}
+		}
+	}
+	
+	public int run() throws IOException, InterruptedException {
+		BroadcastServer server = new BroadcastServer(0, mThreads,
+				BroadcastServer.DEFAULT_KEYFRAME_INTERVAL, BroadcastServer.DEFAULT_MAX_LAG);
+		
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				BroadcastLoad.class.getName(), "--watch", "127.0.0.1:" + server.getPort(),
+				"--viewers", String.valueOf(mViewers), "--slow", String.valueOf(mSlow));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		Output output = new Output(process);
+		output.start();
+		
+		int failures = 0;
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		String line = output.waitFor("connected ", deadline);
+		while(server.getViewers() < mViewers && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		System.out.println(String.format("%d viewers connected, %d of them slow",
+				server.getViewers(), Math.min(mSlow, mViewers)));
+		if(line == null || server.getViewers() < mViewers) {
+			System.out.println("Not everyone connected: " + line);
+			failures++;
+		}
+		
+		PongEngine engine = new PongEngine(WIDTH, HEIGHT, 0x5EED);
+		engine.setLives(Integer.MAX_VALUE);
+		LatencyHistogram publish = new LatencyHistogram();
+		LatencyHistogram late = new LatencyHistogram();
+		long tickNanos = 1000000000L / PongEngine.TICK_RATE;
+		long start = System.nanoTime();
+		for(int i = 0; i < mTicks; i++) {
+			long due = start + i * tickNanos;
+			long now;
+			while((now = System.nanoTime()) < due) {
+				long wait = due - now;
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			engine.tick();
+			long before = System.nanoTime();
+			server.publish(engine);
+			long after = System.nanoTime();
+			publish.record(after - before);
+			late.record(after - due);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		String expected = server.getCodec().getTick() + " " + Long.toHexString(server.getCodec().stateKey());
+		server.close(5000);
+		
+		process.waitFor();
+		output.join(1000);
+		
+		System.out.println(String.format(Locale.US, "%d ticks in %.1fs", mTicks, seconds));
+		System.out.println(String.format(Locale.US, "publish: p50 %.1fus, p99 %.1fus, max %.1fus",
+				publish.getValueAtPercentile(50) / 1e3, publish.getValueAtPercentile(99) / 1e3,
+				publish.getMax() / 1e3));
+		System.out.println(String.format(Locale.US, "late:    p50 %.2fms, p99 %.2fms, max %.2fms",
+				late.getValueAtPercentile(50) / 1e6, late.getValueAtPercentile(99) / 1e6,
+				late.getMax() / 1e6));
+		System.out.println(String.format(Locale.US, "%d bytes sent, %.0f B/s per viewer, %d skips to a keyframe",
+				server.getBytesSent(), server.getBytesSent() / seconds / Math.max(1, mViewers), server.getSkips()));
+		
+		if(late.getMax() > mMaxLate * 1000000) {
+			System.out.println("A tick went out more than " + mMaxLate + "ms late");
+			failures++;
+		}
+		
+		int agreed = 0;
+		synchronized(output.lines) {
+			for(String l : output.lines) {
+				if(l.startsWith("final ") || l.startsWith("frames ")) System.out.println("viewers: " + l);
+				if(l.startsWith("final " + expected + " ")) agreed = Integer.parseInt(l.split(" ")[3]);
+				else if(!l.startsWith("final ") && !l.startsWith("frames ") && !l.startsWith("connected ")) {
+					System.out.println("viewers: " + l);
+				}
+			}
+		}
+		int reading = Math.max(0, mViewers - mSlow);
+		System.out.println(String.format("%d of %d reading viewers ended on the last frame (%s)",
+				agreed, reading, expected));
+		if(agreed != reading) failures++;
+		return failures;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		BroadcastLoad load = new BroadcastLoad();
+		String watch = null;
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--viewers")) load.mViewers = Integer.parseInt(args[++i]);
+			else if(arg.equals("--slow")) load.mSlow = Integer.parseInt(args[++i]);
+			else if(arg.equals("--ticks")) load.mTicks = Integer.parseInt(args[++i]);
+			else if(arg.equals("--threads")) load.mThreads = Integer.parseInt(args[++i]);
+			else if(arg.equals("--max-late")) load.mMaxLate = Long.parseLong(args[++i]);
+			else if(arg.equals("--watch")) watch = args[++i];
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		if(watch != null) {
+			int colon = watch.lastIndexOf(':');
+			System.exit(watch(watch.substring(0, colon), Integer.parseInt(watch.substring(colon + 1)),
+					load.mViewers, Math.min(load.mSlow, load.mViewers)));
+		}
+		if(load.run() > 0) System.exit(1);
+	}
+}
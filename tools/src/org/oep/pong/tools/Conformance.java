@@ -0,0 +1,192 @@
+package org.oep.pong.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.oep.pong.engine.Paddle;
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.engine.Rand48;
+
+/**
+ * Checks that fixed-point physics play out bit for bit the same on this VM
+ * as they did wherever the expected hashes were recorded. Each case runs a
+ * fixed-point engine for 100,000 ticks from a fixed seed, with scripted
+ * human input on some of them, and compares state hashes at a few
+ * checkpoints against tools/conformance.txt.
+ * 
+ * <pre>
+ * Conformance [--expect FILE] [--ticks N]
+ * Conformance --update
+ * </pre>
+ * 
+ * --update rewrites the expected hashes instead of checking them. Only do
+ * that when the physics have been changed on purpose.
+ */
+public class Conformance {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	
+	/** Must line up with values_ai_strategies */
+	private static final String[] STRATEGIES = { "PREDI", "EXACT", "FOLLO" };
+	
+	private static final int[] SPEEDS = { 0, 6, 20 };
+	
+	static class Case {
+		final String name;
+		final long seed;
+		final int strategy, speed;
+		
+		/** Whether blue is driven by scripted input */
+		final boolean human;
+		
+		Case(long seed, int strategy, int speed, boolean human) {
+			this.seed = seed;
+			this.strategy = strategy;
+			this.speed = speed;
+			this.human = human;
+			this.name = STRATEGIES[strategy] + ".s" + speed + (human ? ".human" : ".cpu");
+		}
+	}
+	
+	static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		long seed = 1;
+		for(int strategy = 0; strategy < STRATEGIES.length; strategy++) {
+			for(int speed : SPEEDS) {
+				cases.add(new Case(seed++, strategy, speed, false));
+				cases.add(new Case(seed++, strategy, speed, true));
+			}
+		}
+		return cases;
+	}
+	
+	/**
+	 * Runs a case and returns its state hash at each checkpoint.
+	 */
+	static long[] run(Case c, long[] checkpoints) {
+		PongEngine engine = new PongEngine(WIDTH, HEIGHT, c.seed, true);
+		engine.setAiStrategy(c.strategy);
+		engine.setBallSpeedModifier(c.speed);
+		engine.setCpuHandicap(4);
+		engine.setLives(Integer.MAX_VALUE);
+		
+		// The script gets its own generator so it can't disturb the engine's
+		Rand48 script = new Rand48(~c.seed);
+		Paddle blue = engine.getBlue();
+		
+		long[] hashes = new long[checkpoints.length];
+		int next = 0;
+		long end = checkpoints[checkpoints.length - 1];
+		while(engine.getTick() < end) {
+			if(c.human && engine.getTick() % 7 == 0) {
+				blue.player = script.nextInt(10) != 0;
+				blue.destination = script.nextInt(WIDTH);
+			}
+			engine.tick();
+			
+			if(engine.getTick() == checkpoints[next]) {
+				hashes[next++] = engine.stateHash();
+			}
+		}
+		return hashes;
+	}
+	
+	static Map<String, long[]> load(String path) throws IOException {
+		Map<String, long[]> expected = new LinkedHashMap<String, long[]>();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#")) continue;
+				
+				String[] f = line.split("\\s+");
+				long[] hashes = new long[f.length - 1];
+				for(int i = 1; i < f.length; i++) {
+					hashes[i - 1] = Long.parseUnsignedLong(f[i], 16);
+				}
+				expected.put(f[0], hashes);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return expected;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		String path = "tools/conformance.txt";
+		boolean update = false;
+		long ticks = 100000;
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--expect")) path = args[++i];
+			else if(arg.equals("--update")) update = true;
+			else if(arg.equals("--ticks")) ticks = Long.parseLong(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		long[] checkpoints = { 1000, ticks / 10, ticks };
+		Map<String, long[]> expected = (update) ? null : load(path);
+		PrintWriter out = (update) ? new PrintWriter(new FileWriter(path)) : null;
+		int failures = 0;
+		
+		try {
+			if(out != null) {
+				out.println("# Fixed-point state hashes at ticks " + checkpoints[0] + ", "
+						+ checkpoints[1] + " and " + checkpoints[2] + "; see Conformance.java");
+			}
+			
+			for(Case c : cases()) {
+				long[] hashes = run(c, checkpoints);
+				StringBuilder line = new StringBuilder(c.name);
+				for(long h : hashes) line.append(String.format(" %016x", h));
+				
+				if(out != null) {
+					out.println(line);
+					System.out.println(line);
+					continue;
+				}
+				
+				long[] want = expected.get(c.name);
+				String verdict;
+				if(want == null) {
+					verdict = "MISSING";
+					failures++;
+				}
+				else {
+					int diverged = -1;
+					for(int i = 0; i < hashes.length && diverged < 0; i++) {
+						if(i >= want.length || hashes[i] != want[i]) diverged = i;
+					}
+					if(diverged >= 0) {
+						verdict = "DIVERGED by tick " + checkpoints[diverged];
+						failures++;
+					}
+					else {
+						verdict = "OK";
+					}
+				}
+				System.out.println(line + "  " + verdict);
+			}
+		}
+		finally {
+			if(out != null) out.close();
+		}
+		
+		if(failures > 0) {
+			System.out.println(failures + " case(s) failed");
+			System.exit(1);
+		}
+	}
+}
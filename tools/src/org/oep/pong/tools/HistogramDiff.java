@@ -0,0 +1,146 @@
+package org.oep.pong.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.oep.pong.perf.HistogramLog;
+import org.oep.pong.perf.LatencyHistogram;
+
+/**
+ * Compares frame logs from two runs (files/frames.hlog in the app's data
+ * directory, or TickBenchmark --histogram) series by series, and exits
+ * non-zero if the new one is slower than the tolerance allows.
+ * 
+ * <pre>
+ * HistogramDiff [--skip SECONDS] [--tolerance PCT] [--percentiles 50,99,...] BASE [NEW]
+ * </pre>
+ * 
+ * With one file, just prints its percentiles. --skip leaves out intervals
+ * that start in the first few seconds, while the JIT is still warming up.
+ */
+public class HistogramDiff {
+	private static final double[] DEFAULT_PERCENTILES = { 50, 90, 99, 99.9 };
+	
+	/**
+	 * Adds up every interval in a log, per series.
+	 */
+	public static Map<String, LatencyHistogram> load(String path, long skipMillis) throws IOException {
+		Map<String, LatencyHistogram> totals = new LinkedHashMap<String, LatencyHistogram>();
+		HistogramLog log = new HistogramLog(new FileInputStream(path));
+		try {
+			String[] series = log.getSeries();
+			for(String name : series) {
+				totals.put(name, new LatencyHistogram());
+			}
+			
+			HistogramLog.Interval interval = new HistogramLog.Interval();
+			while(log.next(interval)) {
+				if(interval.start < skipMillis) continue;
+				for(int i = 0; i < series.length; i++) {
+					totals.get(series[i]).add(interval.histograms[i]);
+				}
+			}
+		}
+		finally {
+			log.close();
+		}
+		return totals;
+	}
+	
+	private static String label(double p) {
+		return (p == Math.rint(p)) ? String.format(Locale.US, "p%d", (long) p) : String.format(Locale.US, "p%s", p);
+	}
+	
+	public static void print(Map<String, LatencyHistogram> run, double[] percentiles) {
+		System.out.println(String.format("%-12s %-6s %12s", "series", "", "ns"));
+		for(Map.Entry<String, LatencyHistogram> e : run.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			System.out.println(String.format(Locale.US, "%-12s %-6s %12d", e.getKey(), "count", h.getCount()));
+			for(double p : percentiles) {
+				System.out.println(String.format("%-12s %-6s %12d", e.getKey(), label(p), h.getValueAtPercentile(p)));
+			}
+			System.out.println(String.format("%-12s %-6s %12d", e.getKey(), "max", h.getMax()));
+		}
+	}
+	
+	/**
+	 * Prints both runs side by side.
+	 * @return how many percentiles got slower by more than
+	 * <code>tolerance</code> percent
+	 */
+	public static int compare(Map<String, LatencyHistogram> base, Map<String, LatencyHistogram> run,
+			double[] percentiles, double tolerance) {
+		int regressions = 0;
+		System.out.println(String.format("%-12s %-6s %12s %12s %9s", "series", "", "base ns", "new ns", "change"));
+		for(Map.Entry<String, LatencyHistogram> e : run.entrySet()) {
+			LatencyHistogram b = base.get(e.getKey());
+			LatencyHistogram h = e.getValue();
+			if(b == null || b.getCount() == 0 || h.getCount() == 0) {
+				System.out.println(String.format("%-12s not in both runs", e.getKey()));
+				continue;
+			}
+			
+			System.out.println(String.format(Locale.US, "%-12s %-6s %12d %12d", e.getKey(), "count",
+					b.getCount(), h.getCount()));
+			for(double p : percentiles) {
+				long before = b.getValueAtPercentile(p);
+				long after = h.getValueAtPercentile(p);
+				double change = 100.0 * (after - before) / Math.max(1, before);
+				boolean slower = change > tolerance;
+				if(slower) regressions++;
+				
+				System.out.println(String.format(Locale.US, "%-12s %-6s %12d %12d %+8.1f%%%s",
+						e.getKey(), label(p), before, after, change,
+						slower ? "  REGRESSION" : ""));
+			}
+			System.out.println(String.format("%-12s %-6s %12d %12d", e.getKey(), "max",
+					b.getMax(), h.getMax()));
+		}
+		return regressions;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		double tolerance = 10;
+		long skip = 0;
+		double[] percentiles = DEFAULT_PERCENTILES;
+		String basePath = null, newPath = null;
+		
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--tolerance")) tolerance = Double.parseDouble(args[++i]);
+			else if(arg.equals("--skip")) skip = (long) (Double.parseDouble(args[++i]) * 1000);
+			else if(arg.equals("--percentiles")) {
+				String[] f = args[++i].split(",");
+				percentiles = new double[f.length];
+				for(int j = 0; j < f.length; j++) percentiles[j] = Double.parseDouble(f[j]);
+			}
+			else if(arg.startsWith("--")) {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+			else if(basePath == null) basePath = arg;
+			else if(newPath == null) newPath = arg;
+			else {
+				System.err.println("Too many files: " + arg);
+				System.exit(2);
+			}
+		}
+		
+		if(basePath == null) {
+			System.err.println("Usage: HistogramDiff [--skip SECONDS] [--tolerance PCT] [--percentiles 50,99,...] BASE [NEW]");
+			System.exit(2);
+		}
+		
+		Map<String, LatencyHistogram> base = load(basePath, skip);
+		if(newPath == null) {
+			print(base, percentiles);
+			return;
+		}
+		
+		int regressions = compare(base, load(newPath, skip), percentiles, tolerance);
+		if(regressions > 0) System.exit(1);
+	}
+}
@@ -0,0 +1,284 @@
+package org.oep.pong.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.oep.pong.engine.FixedBall;
+import org.oep.pong.engine.FixedStep;
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.net.LockstepSession;
+
+/**
+ * Plays a networked match between two headless peers over the loopback
+ * interface and checks they end up in the same state.
+ * 
+ * <pre>
+ * NetLoopback [--ticks N] [--delay TICKS] [--loss PCT] [--latency MS]
+ *             [--fast] [--desync-at TICK] [--max-rate BYTES]
+ * </pre>
+ * 
+ * With --loss or --latency the peers talk through a relay that drops and
+ * holds back packets. --fast runs the simulation as fast as the peers can
+ * go instead of at 30 ticks a second. --desync-at knocks one peer's ball
+ * off by a hair at that tick to check the other notices. Fails if the
+ * peers disagree, or either sends more than --max-rate bytes a second
+ * (default 1024) of game time, headers included.
+ */
+public class NetLoopback {
+	private static final int WIDTH = 480, HEIGHT = 800;
+	private static final InetSocketAddress LOOPBACK = new InetSocketAddress("127.0.0.1", 0);
+	
+	private int mTicks = 3000;
+	private int mDelay = LockstepSession.DEFAULT_DELAY;
+	private double mLoss = 0;
+	private long mLatency = 0;
+	private boolean mFast = false;
+	private int mDesyncAt = -1;
+	private double mMaxRate = 1024;
+	
+	/** Peers done playing; each keeps answering the other until both are */
+	private volatile int mFinished = 0;
+	
+	class Peer extends Thread {
+		final LockstepSession session;
+		final boolean cheat;
+		boolean done = false;
+		long hash;
+		IOException error;
+		
+		Peer(String name, DatagramChannel channel, SocketAddress peer, boolean cheat) throws IOException {
+			super(name);
+			session = new LockstepSession(channel, peer, WIDTH, HEIGHT, 4, Integer.MAX_VALUE >> 24,
+					mDelay, System.nanoTime());
+			this.cheat = cheat;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				play();
+			}
+			catch (IOException e) {
+				error = e;
+			}
+			if(!done) finish();
+		}
+		
+		private void finish() {
+			done = true;
+			if(session.getEngine() != null) hash = session.getEngine().stateHash();
+			synchronized(NetLoopback.this) {
+				mFinished++;
+			}
+		}
+		
+		private void play() throws IOException {
+			FixedStep step = new FixedStep(PongEngine.TICK_RATE);
+			Random script = new Random(getName().hashCode());
+			int aim = 0;
+			
+			while(!done || mFinished < 2) {
+				long now = System.nanoTime();
+				session.update(now);
+				
+				LockstepSession.State state = session.getState();
+				if(state == LockstepSession.State.DISCONNECTED) break;
+				if(state == LockstepSession.State.CONNECTING) {
+					step.reset(now);
+					pause();
+					continue;
+				}
+				
+				PongEngine engine = session.getEngine();
+				if(!done) {
+					int due = mFast ? 1 : step.advance(now);
+					for(int i = 0; i < due && engine.getTick() < mTicks; i++) {
+						// Follow the ball, missing now and then
+						if(engine.getTick() % 15 == 0) aim = script.nextInt(120) - 60;
+						if(!session.tick((int) engine.getBall().x + aim, now)) break;
+						
+						if(cheat && engine.getTick() == mDesyncAt) {
+							((FixedBall) engine.getBall()).fx += 1;
+						}
+					}
+					if(session.getState() == LockstepSession.State.DESYNCED) {
+						// The game would give up here, and so does the other side
+						finish();
+						session.close();
+						break;
+					}
+					if(engine.getTick() >= mTicks) finish();
+				}
+				pause();
+			}
+		}
+		
+		private void pause() {
+			try {
+				Thread.sleep(mFast ? 0 : 1);
+			}
+			catch (InterruptedException e) {
+				// Carry on
+			}
+		}
+	}
+	
+	/**
+	 * Passes packets between two peers, losing and holding back some.
+	 */
+	class Relay extends Thread {
+		final DatagramChannel a, b;
+		SocketAddress toA, toB;
+		final Random random = new Random(42);
+		volatile boolean running = true;
+		int dropped = 0;
+		
+		/** Packets being held back, in the order they'll go out */
+		final List<Object[]> held = new ArrayList<Object[]>();
+		
+		Relay() throws IOException {
+			super("relay");
+			a = open();
+			b = open();
+			a.configureBlocking(false);
+			b.configureBlocking(false);
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(512);
+			try {
+				while(running) {
+					relay(a, b, toB, buffer);
+					relay(b, a, toA, buffer);
+					
+					long now = System.nanoTime();
+					while(!held.isEmpty() && (Long) held.get(0)[0] <= now) {
+						Object[] p = held.remove(0);
+						((DatagramChannel) p[1]).send(ByteBuffer.wrap((byte[]) p[2]), (SocketAddress) p[3]);
+					}
+					Thread.sleep(0, 200000);
+				}
+			}
+			catch (Exception e) {
+				if(running) e.printStackTrace();
+			}
+		}
+		
+		private void relay(DatagramChannel from, DatagramChannel to, SocketAddress dest, ByteBuffer buffer)
+				throws IOException {
+			buffer.clear();
+			while(from.receive(buffer) != null) {
+				buffer.flip();
+				if(random.nextDouble() * 100 < mLoss) {
+					dropped++;
+				}
+				else {
+					byte[] data = new byte[buffer.remaining()];
+					buffer.get(data);
+					long due = System.nanoTime() + mLatency * 1000000;
+					held.add(new Object[] { due, to, data, dest });
+				}
+				buffer.clear();
+			}
+		}
+	}
+	
+	private static DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(LOOPBACK);
+		return channel;
+	}
+	
+	private static SocketAddress address(DatagramChannel channel) {
+		return channel.socket().getLocalSocketAddress();
+	}
+	
+	public int run() throws IOException, InterruptedException {
+		DatagramChannel a = open(), b = open();
+		Relay relay = null;
+		SocketAddress aSeesB = address(b), bSeesA = address(a);
+		
+		if(mLoss > 0 || mLatency > 0) {
+			relay = new Relay();
+			relay.toA = address(a);
+			relay.toB = address(b);
+			aSeesB = address(relay.a);
+			bSeesA = address(relay.b);
+			relay.start();
+		}
+		
+		Peer pa = new Peer("a", a, aSeesB, false);
+		Peer pb = new Peer("b", b, bSeesA, mDesyncAt >= 0);
+		long start = System.nanoTime();
+		pa.start();
+		pb.start();
+		pa.join();
+		pb.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if(relay != null) relay.running = false;
+		
+		int failures = 0;
+		for(Peer p : new Peer[] { pa, pb }) {
+			if(p.error != null) {
+				System.out.println(p.getName() + ": " + p.error);
+				failures++;
+				continue;
+			}
+			LockstepSession s = p.session;
+			long ticks = (s.getEngine() == null) ? 0 : s.getEngine().getTick();
+			double rate = s.getBytesSent() / Math.max(ticks / (double) PongEngine.TICK_RATE, 1e-9);
+			System.out.println(String.format(Locale.US,
+					"%s: %-5s %6d ticks, %5d packets, %7d bytes, %6.0f B/s, %4d stalls, delay %dms, %s%s, hash %016x",
+					p.getName(), s.isRed() ? "red" : "blue", ticks, s.getPacketsSent(), s.getBytesSent(), rate,
+					s.getStalls(), s.getDelay() * 1000 / PongEngine.TICK_RATE, s.getState(),
+					(s.getDesyncTick() >= 0) ? " at " + s.getDesyncTick() : "", p.hash));
+			if(rate > mMaxRate) {
+				System.out.println(p.getName() + " sent more than " + mMaxRate + " B/s");
+				failures++;
+			}
+		}
+		if(relay != null) System.out.println("relay dropped " + relay.dropped + " packets");
+		System.out.println(String.format(Locale.US, "%.1fs", seconds));
+		
+		boolean desynced = pa.session.getDesyncTick() >= 0 || pb.session.getDesyncTick() >= 0;
+		if(mDesyncAt >= 0) {
+			if(!desynced) {
+				System.out.println("Desync at tick " + mDesyncAt + " went unnoticed");
+				failures++;
+			}
+		}
+		else if(desynced || pa.hash != pb.hash) {
+			System.out.println("Peers disagree");
+			failures++;
+		}
+		return failures;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		NetLoopback loopback = new NetLoopback();
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--ticks")) loopback.mTicks = Integer.parseInt(args[++i]);
+			else if(arg.equals("--delay")) loopback.mDelay = Integer.parseInt(args[++i]);
+			else if(arg.equals("--loss")) loopback.mLoss = Double.parseDouble(args[++i]);
+			else if(arg.equals("--latency")) loopback.mLatency = Long.parseLong(args[++i]);
+			else if(arg.equals("--fast")) loopback.mFast = true;
+			else if(arg.equals("--desync-at")) loopback.mDesyncAt = Integer.parseInt(args[++i]);
+			else if(arg.equals("--max-rate")) loopback.mMaxRate = Double.parseDouble(args[++i]);
+			else {
+				System.err.println("Unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		if(loopback.run() > 0) System.exit(1);
+	}
+}
@@ -0,0 +1,71 @@
+package org.oep.pong.tools;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.oep.pong.engine.PongEngine;
+import org.oep.pong.replay.Replay;
+import org.oep.pong.replay.ReplayPlayer;
+
+/**
+ * Plays replays saved by the game back headlessly and checks they end up in
+ * the state they were recorded in.
+ * 
+ * <pre>
+ * ReplayTool [--until TICK] FILE...
+ * </pre>
+ * 
+ * With --until, stops at that tick and prints the state there instead, which
+ * is handy for bisecting where two runs diverge.
+ */
+public class ReplayTool {
+	public static void main(String[] args) throws IOException {
+		long until = -1;
+		int failures = 0;
+		
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--until")) {
+				until = Long.parseLong(args[++i]);
+				continue;
+			}
+			
+			Replay replay = load(args[i]);
+			ReplayPlayer player = new ReplayPlayer(replay);
+			
+			long start = System.nanoTime();
+			if(until >= 0) player.runTo(until);
+			else player.runToEnd();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			PongEngine engine = player.getEngine();
+			boolean ok = until >= 0 || player.verify();
+			if(!ok) failures++;
+			
+			System.out.println(String.format("%s: %d ticks (%d inputs) in %.3fs, %.0f ticks/s, hash %016x %s",
+					args[i], engine.getTick(), replay.getEventCount(), seconds,
+					engine.getTick() / Math.max(seconds, 1e-9), engine.stateHash(),
+					(until >= 0) ? "" : (ok ? "OK" : "MISMATCH")));
+			
+			if(until >= 0) {
+				System.out.println(String.format("  ball (%f, %f) v (%f, %f) red %d/%d blue %d/%d",
+						engine.getBall().x, engine.getBall().y, engine.getBall().vx, engine.getBall().vy,
+						engine.getRed().getLeft(), engine.getRed().getLives(),
+						engine.getBlue().getLeft(), engine.getBlue().getLives()));
+			}
+		}
+		
+		if(failures > 0) System.exit(1);
+	}
+	
+	private static Replay load(String path) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+		try {
+			return Replay.read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+}